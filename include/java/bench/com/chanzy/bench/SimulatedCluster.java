@@ -0,0 +1,81 @@
+package com.chanzy.bench;
+
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.apache.sshd.sftp.server.SftpSubsystem;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author CHanzy
+ * 本地的模拟集群，在 localhost 上开启内嵌的 ssh/sftp 服务器（Apache MINA SSHD），登录后的家目录为 aHome
+ * 所有指令都使用本地的 bash 执行，并且 PATH 中优先使用 SlurmSimulator 提供的假的 sbatch，squeue，scancel 以及 sacct
+ * 这样 ServerSSH 和 ServerSLURM 可以不经修改地直接连接，用于测量调度本身的开销
+ */
+public final class SimulatedCluster implements Closeable {
+    public final static String USERNAME = "slurm", PASSWORD = "slurm";
+    
+    private final SlurmSimulator mSimulator;
+    private final SshServer mServer;
+    private final AtomicLong mExecCount = new AtomicLong(0); // 每个 exec 通道算一次 ssh 往返
+    private final AtomicLong mSftpCount = new AtomicLong(0);
+    
+    public SimulatedCluster(Path aHome) throws IOException {this(aHome, 0);}
+    public SimulatedCluster(Path aHome, long aSeed) throws IOException {
+        final Path tHome = Files.createDirectories(aHome).toAbsolutePath();
+        mSimulator = new SlurmSimulator(tHome, aSeed);
+        mServer = SshServer.setUpDefaultServer();
+        mServer.setHost("127.0.0.1");
+        mServer.setPort(0);
+        mServer.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(tHome.resolve(".simhostkey")));
+        mServer.setPasswordAuthenticator((aUsername, aPassword, aSession) -> USERNAME.equals(aUsername) && PASSWORD.equals(aPassword));
+        mServer.setFileSystemFactory(new VirtualFileSystemFactory(tHome));
+        mServer.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory() {
+            @Override public Command createSubsystem(ChannelSession aChannel) throws IOException {
+                mSftpCount.incrementAndGet();
+                // OpenSSH 的 mkdir 允许以 / 结尾（ServerSSH 会这样使用），而 MINA 不允许，这里统一去除结尾的 /
+                SftpSubsystem tSubsystem = new SftpSubsystem(aChannel, this) {
+                    @Override protected void doMakeDirectory(int aID, String aPath, Map<String, ?> aAttrs) throws IOException {
+                        while (aPath.length() > 1 && aPath.endsWith("/")) aPath = aPath.substring(0, aPath.length()-1);
+                        super.doMakeDirectory(aID, aPath, aAttrs);
+                    }
+                };
+                for (SftpEventListener tListener : getRegisteredListeners()) tSubsystem.addSftpEventListener(tListener);
+                return tSubsystem;
+            }
+        }));
+        // 指令在家目录中执行，和真实的服务器一致，~ 为家目录
+        final String tPrefix = String.format("export HOME=%s SIM_USER=%s PATH=%s:$PATH; cd; ", quote_(tHome.toString()), USERNAME, quote_(mSimulator.binDir().toString()));
+        mServer.setCommandFactory((aChannel, aCommand) -> {
+            mExecCount.incrementAndGet();
+            return new ProcessShellFactory(aCommand, "bash", "-c", tPrefix+aCommand).createShell(aChannel);
+        });
+        mServer.start();
+    }
+    
+    public SlurmSimulator simulator() {return mSimulator;}
+    public String host() {return "127.0.0.1";}
+    public int port() {return mServer.getPort();}
+    public Path home() {return mSimulator.home();}
+    public long execCount() {return mExecCount.get();}
+    public long sftpCount() {return mSftpCount.get();}
+    
+    @Override public void close() throws IOException {
+        mServer.stop(true);
+        mSimulator.close();
+    }
+    
+    static String quote_(String aStr) {return "'"+aStr.replace("'", "'\\''")+"'";}
+}
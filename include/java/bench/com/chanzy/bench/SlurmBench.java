@@ -0,0 +1,103 @@
+package com.chanzy.bench;
+
+import com.chanzy.ServerSLURM;
+import com.chanzy.code.UT;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * @author CHanzy
+ * ServerSLURM 端到端的调度开销测量，连接 SimulatedCluster 提交任务并等待完成
+ * 参数使用 key=value 的形式，例如：
+ *   gradle slurmBench -Pargs="jobs=100 queued=10,1000,100000 sleep=500 mirror=true"
+ * 输出每种排队数目下的提交速度（jobs/s），任务结束到 afterTask 执行的延迟，每个任务的 ssh 往返次数以及容忍失败的情况
+ */
+public final class SlurmBench {
+    public static void main(String[] aArgs) throws Exception {
+        Map<String, String> tArgs = new HashMap<>();
+        for (String tArg : aArgs) for (String tPair : tArg.trim().split("\\s+")) {
+            int tIdx = tPair.indexOf('=');
+            if (tIdx > 0) tArgs.put(tPair.substring(0, tIdx), tPair.substring(tIdx+1));
+        }
+        int tJobs = Integer.parseInt(tArgs.getOrDefault("jobs", "50"));
+        int tMaxJobs = Integer.parseInt(tArgs.getOrDefault("maxJobs", "64"));
+        int tNodes = Integer.parseInt(tArgs.getOrDefault("nodes", "64"));
+        long tDuration = Long.parseLong(tArgs.getOrDefault("duration", "200"));
+        long tJitter = Long.parseLong(tArgs.getOrDefault("jitter", "0"));
+        long tLatency = Long.parseLong(tArgs.getOrDefault("latency", "5"));
+        long tSleep = Long.parseLong(tArgs.getOrDefault("sleep", "500"));
+        int tShell = Integer.parseInt(tArgs.getOrDefault("shell", "0"));
+        boolean tMirror = Boolean.parseBoolean(tArgs.getOrDefault("mirror", "false"));
+        double tSbatchFail = Double.parseDouble(tArgs.getOrDefault("sbatchFail", "0"));
+        double tSqueueFail = Double.parseDouble(tArgs.getOrDefault("squeueFail", "0"));
+        double tJobFail = Double.parseDouble(tArgs.getOrDefault("jobFail", "0"));
+        long tSeed = Long.parseLong(tArgs.getOrDefault("seed", "0"));
+        Path tDir = Paths.get(tArgs.getOrDefault("dir", UT.toAbsolutePath(".temp/slurmbench"))).toAbsolutePath();
+        
+        System.out.printf("jobs=%d maxJobs=%d nodes=%d duration=%dms jitter=%dms latency=%dms sleep=%dms shell=%d mirror=%b fail(sbatch/squeue/job)=%.3f/%.3f/%.3f\n",
+                          tJobs, tMaxJobs, tNodes, tDuration, tJitter, tLatency, tSleep, tShell, tMirror, tSbatchFail, tSqueueFail, tJobFail);
+        System.out.printf("%10s %10s %12s %12s %12s %12s %10s %10s %10s\n", "queued", "jobs/s", "makespan(s)", "after50(ms)", "after99(ms)", "afterMax(ms)", "ssh/job", "rpc/job", "lost");
+        for (String tQueued : tArgs.getOrDefault("queued", "10,1000,100000").split(",")) {
+            int tQueuedNumber = Integer.parseInt(tQueued.trim());
+            try (SimulatedCluster tCluster = new SimulatedCluster(tDir.resolve("run-"+tQueuedNumber), tSeed)) {
+                tCluster.simulator().setNodes(tNodes).setDuration(tDuration, tJitter).setLatency(tLatency).setFailures(tSbatchFail, tSqueueFail, tJobFail);
+                tCluster.simulator().addQueuedJobs(SimulatedCluster.USERNAME, tQueuedNumber);
+                run_(tCluster, tQueuedNumber, tJobs, tMaxJobs, tSleep, tShell, tMirror);
+            }
+        }
+    }
+    
+    private static void run_(SimulatedCluster aCluster, int aQueued, int aJobs, int aMaxJobs, long aSleep, int aShell, boolean aMirror) throws Exception {
+        // 已经在排队的任务也会计入 squeue 的结果，因此总的任务上限需要加上这部分
+        ServerSLURM tSLURM = ServerSLURM.getPassword(aQueued+aMaxJobs, aMaxJobs, SimulatedCluster.USERNAME, aCluster.host(), aCluster.port(), SimulatedCluster.PASSWORD);
+        tSLURM.setSleepTime(aSleep);
+        if (aShell > 0) tSLURM.ssh().setPersistentShell(aShell);
+        if (aMirror) tSLURM.setMirror(aCluster.home().resolve("mirror.json").toString());
+        long tExec0 = aCluster.execCount(), tSftp0 = aCluster.sftpCount(), tRPC0 = aCluster.simulator().totalCalls();
+        
+        // 通过输出文件的路径来对应 afterTask 和模拟器中的任务
+        final Map<Integer, Long> tAfterTimes = new ConcurrentHashMap<>();
+        long tStart = System.currentTimeMillis();
+        for (int i = 0; i < aJobs; ++i) {
+            final int tIdx = i;
+            tSLURM.submitSystem(null, new UT.Task() {@Override public boolean run() {tAfterTimes.put(tIdx, System.currentTimeMillis()); return true;}}, "true", 1, String.format(".temp/slurmbench/out-%d-%%j", i));
+        }
+        tSLURM.waitUntilDone();
+        long tEnd = System.currentTimeMillis();
+        tSLURM.shutdown();
+        tSLURM.awaitTermination();
+        
+        long tExec = aCluster.execCount()-tExec0, tSftp = aCluster.sftpCount()-tSftp0, tRPC = aCluster.simulator().totalCalls()-tRPC0;
+        long tFirstSubmit = Long.MAX_VALUE, tLastSubmit = Long.MIN_VALUE;
+        List<Long> tLatencies = new ArrayList<>();
+        for (SlurmSimulator.Job tJob : aCluster.simulator().finishedJobs()) {
+            if (tJob.mHeld || tJob.mOutputPath == null) continue;
+            tFirstSubmit = Math.min(tFirstSubmit, tJob.mSubmitTime);
+            tLastSubmit = Math.max(tLastSubmit, tJob.mSubmitTime);
+            String tName = Paths.get(tJob.mOutputPath).getFileName().toString(); // out-<idx>-<jobid>
+            int tIdx = Integer.parseInt(tName.substring(4, tName.lastIndexOf('-')));
+            Long tAfter = tAfterTimes.get(tIdx);
+            if (tAfter != null && tJob.mEndTime > 0) tLatencies.add(tAfter-tJob.mEndTime);
+        }
+        Collections.sort(tLatencies);
+        int tSubmitted = tLatencies.size();
+        double tRate = tLastSubmit > tFirstSubmit ? (tSubmitted-1)*1000.0/(tLastSubmit-tFirstSubmit) : Double.NaN;
+        System.out.printf("%10d %10.2f %12.2f %12d %12d %12d %10.2f %10.2f %10d\n",
+                          aQueued, tRate, (tEnd-tStart)/1000.0, percentile_(tLatencies, 0.50), percentile_(tLatencies, 0.99), percentile_(tLatencies, 1.0),
+                          (tExec+tSftp)/(double)aJobs, tRPC/(double)aJobs, aJobs-tAfterTimes.size());
+        System.out.flush();
+        // 任务的输出文件不需要保留
+        Path tOutDir = aCluster.home().resolve(".temp/slurmbench");
+        if (Files.isDirectory(tOutDir)) try (Stream<Path> tFiles = Files.list(tOutDir)) {tFiles.forEach(p -> p.toFile().delete());}
+    }
+    private static long percentile_(List<Long> aSorted, double aP) {
+        if (aSorted.isEmpty()) return -1;
+        int tIdx = (int)Math.ceil(aP*aSorted.size()) - 1;
+        return aSorted.get(Math.max(0, Math.min(aSorted.size()-1, tIdx)));
+    }
+}
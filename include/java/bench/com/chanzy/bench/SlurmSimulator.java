@@ -0,0 +1,290 @@
+package com.chanzy.bench;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author CHanzy
+ * 模拟的 SLURM 任务队列，提供假的 sbatch，squeue，scancel 以及 sacct 指令
+ * 这些指令是写入 bin 目录的 bash 脚本，通过本地的 socket 把参数和标准输入转发给模拟器，由模拟器返回输出以及退出码
+ * 任务按照真实时间推进，可以设置任务时长，每次指令的延迟（对应 slurmctld 的响应时间），可用节点数以及各种注入的失败概率
+ * 只支持 ServerSLURM 使用到的参数
+ */
+public final class SlurmSimulator implements Closeable {
+    public enum State {PENDING, RUNNING, COMPLETED, FAILED, CANCELLED}
+    public final static class Job {
+        public final int mJobID;
+        public final String mUser, mName, mOutputPath;
+        public final int mNodes;
+        public final boolean mHeld; // 预先放入队列的任务，一直处于排队状态
+        public volatile State mState = State.PENDING;
+        public final long mSubmitTime;
+        public volatile long mStartTime = -1, mEndTime = -1; // ms
+        final long mDuration;
+        Job(int aJobID, String aUser, String aName, String aOutputPath, int aNodes, boolean aHeld, long aSubmitTime, long aDuration) {
+            mJobID = aJobID; mUser = aUser; mName = aName; mOutputPath = aOutputPath; mNodes = aNodes; mHeld = aHeld; mSubmitTime = aSubmitTime; mDuration = aDuration;
+        }
+    }
+    
+    private final Path mHome;
+    private final Path mBinDir;
+    private final ServerSocket mServer;
+    private final ExecutorService mPool = Executors.newCachedThreadPool(r -> {Thread t = new Thread(r, "SlurmSimulator"); t.setDaemon(true); return t;});
+    private final Random mRNG;
+    
+    private final TreeMap<Integer, Job> mActive = new TreeMap<>(); // 排队中以及正在执行的任务
+    private final Map<Integer, Job> mFinished = new HashMap<>();
+    private int mNextJobID = 1000;
+    private int mUsedNodes = 0;
+    
+    private volatile int mNodes = Integer.MAX_VALUE;
+    private volatile long mDuration = 1000, mDurationJitter = 0; // ms
+    private volatile long mLatency = 0; // ms
+    private volatile double mSbatchFail = 0, mSqueueFail = 0, mJobFail = 0;
+    
+    private final Map<String, AtomicLong> mCalls = new TreeMap<>();
+    private volatile boolean mClosed = false;
+    
+    public SlurmSimulator(Path aHome) throws IOException {this(aHome, 0);}
+    public SlurmSimulator(Path aHome, long aSeed) throws IOException {
+        mHome = aHome.toAbsolutePath();
+        mBinDir = Files.createDirectories(mHome.resolve(".simbin"));
+        mRNG = new Random(aSeed);
+        mServer = new ServerSocket(0, 256, InetAddress.getLoopbackAddress());
+        for (String tName : new String[] {"sbatch", "squeue", "scancel", "sacct"}) {
+            mCalls.put(tName, new AtomicLong(0));
+            writeScript_(tName);
+        }
+        mPool.execute(this::accept_);
+    }
+    
+    /// 参数设置
+    public SlurmSimulator setNodes(int aNodes) {mNodes = Math.max(1, aNodes); return this;}
+    public SlurmSimulator setDuration(long aDuration, long aJitter) {mDuration = Math.max(0, aDuration); mDurationJitter = Math.max(0, aJitter); return this;}
+    public SlurmSimulator setLatency(long aLatency) {mLatency = Math.max(0, aLatency); return this;}
+    public SlurmSimulator setFailures(double aSbatchFail, double aSqueueFail, double aJobFail) {mSbatchFail = aSbatchFail; mSqueueFail = aSqueueFail; mJobFail = aJobFail; return this;}
+    // 预先放入一些一直排队的任务，用于测量队列较长时 squeue 的开销
+    public synchronized void addQueuedJobs(String aUser, int aNumber) {
+        long tNow = System.currentTimeMillis();
+        for (int i = 0; i < aNumber; ++i) {
+            Job tJob = new Job(mNextJobID++, aUser, "held", null, 1, true, tNow, 0);
+            mActive.put(tJob.mJobID, tJob);
+        }
+    }
+    
+    /// 获取状态
+    public Path binDir() {return mBinDir;}
+    public Path home() {return mHome;}
+    public long calls(String aCommand) {AtomicLong tCount = mCalls.get(aCommand); return tCount==null ? 0 : tCount.get();}
+    public long totalCalls() {long rTotal = 0; for (AtomicLong tCount : mCalls.values()) rTotal += tCount.get(); return rTotal;}
+    public synchronized Job job(int aJobID) {advance_(System.currentTimeMillis()); Job tJob = mActive.get(aJobID); return tJob!=null ? tJob : mFinished.get(aJobID);}
+    public synchronized List<Job> finishedJobs() {advance_(System.currentTimeMillis()); return new ArrayList<>(mFinished.values());}
+    public synchronized int activeNumber() {advance_(System.currentTimeMillis()); return mActive.size();}
+    
+    @Override public void close() throws IOException {
+        mClosed = true;
+        mServer.close();
+        mPool.shutdownNow();
+    }
+    
+    
+    /// 内部实现
+    // 所有指令共用一个脚本模板，把指令名称，用户，参数以及标准输入（只有 sbatch 没有脚本参数并且没有 --wrap 时）发送给模拟器
+    // 返回的格式为若干行 "2 <stderr>"，一行 "= <exit>"，然后是原样的标准输出直到连接关闭；bash 的 read 每次只读一个字节，因此不会多读
+    private void writeScript_(String aName) throws IOException {
+        String tScript = "#!/bin/bash\n" +
+            "exec 3<>/dev/tcp/127.0.0.1/" + mServer.getLocalPort() + " || exit 1\n" +
+            "tBody=\n" +
+            (aName.equals("sbatch") ?
+            "tRead=1; tSkip=0\n" +
+            "for a in \"$@\"; do\n" +
+            "  if [ $tSkip = 1 ]; then tSkip=0; continue; fi\n" +
+            "  case \"$a\" in --parsable|--wait|--hold) ;; --wrap) tRead=0; tSkip=1 ;; --wrap=*) tRead=0 ;; --*=*) ;; -*) tSkip=1 ;; *) tRead=0 ;; esac\n" +
+            "done\n" +
+            "if [ $tRead = 1 ]; then tBody=$(cat; printf x); tBody=${tBody%x}; fi\n" : "") +
+            "LC_ALL=C printf '%s\\0' \"" + aName + "\" \"${SIM_USER:-$USER}\" \"$PWD\" \"$#\" \"$@\" >&3\n" +
+            "LC_ALL=C printf '%s\\0%s' \"${#tBody}\" \"$tBody\" >&3\n" +
+            "tStatus=1\n" +
+            "while IFS= read -r tLine <&3; do\n" +
+            "  case \"$tLine\" in \"2 \"*) printf '%s\\n' \"${tLine:2}\" >&2 ;; \"= \"*) tStatus=\"${tLine:2}\"; break ;; esac\n" +
+            "done\n" +
+            "cat <&3\n" +
+            "exit \"$tStatus\"\n";
+        Path tPath = mBinDir.resolve(aName);
+        Files.write(tPath, tScript.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(tPath, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+    private void accept_() {
+        while (!mClosed) {
+            final Socket tSocket;
+            try {tSocket = mServer.accept();} catch (IOException e) {break;}
+            mPool.execute(() -> {
+                try (Socket tS = tSocket) {serve_(tS);} catch (IOException ignored) {}
+            });
+        }
+    }
+    private void serve_(Socket aSocket) throws IOException {
+        InputStream tIn = new BufferedInputStream(aSocket.getInputStream());
+        String tName = readField_(tIn);
+        String tUser = readField_(tIn);
+        String tDir = readField_(tIn);
+        int tArgc = Integer.parseInt(readField_(tIn));
+        List<String> tArgs = new ArrayList<>(tArgc);
+        for (int i = 0; i < tArgc; ++i) tArgs.add(readField_(tIn));
+        int tBodyLen = Integer.parseInt(readField_(tIn));
+        byte[] tBody = new byte[tBodyLen];
+        int tPos = 0, tRead;
+        while (tPos < tBodyLen && (tRead = tIn.read(tBody, tPos, tBodyLen-tPos)) > 0) tPos += tRead;
+        
+        AtomicLong tCount = mCalls.get(tName);
+        if (tCount != null) tCount.incrementAndGet();
+        // 模拟 slurmctld 的响应时间
+        if (mLatency > 0) {try {Thread.sleep(mLatency);} catch (InterruptedException e) {return;}}
+        
+        StringBuilder rOut = new StringBuilder(), rErr = new StringBuilder();
+        int tStatus;
+        switch (tName) {
+        case "sbatch":  tStatus = sbatch_ (tUser, tDir, tArgs, rOut, rErr); break;
+        case "squeue":  tStatus = squeue_ (tUser, tArgs, rOut, rErr); break;
+        case "scancel": tStatus = scancel_(tUser, tArgs, rOut, rErr); break;
+        case "sacct":   tStatus = sacct_  (tUser, tArgs, rOut, rErr); break;
+        default: rErr.append(tName).append(": command not found\n"); tStatus = 127; break;
+        }
+        StringBuilder rHead = new StringBuilder();
+        for (String tLine : rErr.toString().split("\n")) if (!tLine.isEmpty()) rHead.append("2 ").append(tLine).append('\n');
+        rHead.append("= ").append(tStatus).append('\n');
+        OutputStream tOut = new BufferedOutputStream(aSocket.getOutputStream());
+        tOut.write(rHead.toString().getBytes(StandardCharsets.UTF_8));
+        tOut.write(rOut.toString().getBytes(StandardCharsets.UTF_8));
+        tOut.flush();
+    }
+    private static String readField_(InputStream aIn) throws IOException {
+        ByteArrayOutputStream rField = new ByteArrayOutputStream();
+        int b;
+        while ((b = aIn.read()) > 0) rField.write(b);
+        if (b < 0) throw new EOFException();
+        return new String(rField.toByteArray(), StandardCharsets.UTF_8);
+    }
+    // 获取参数的值，支持 --key value 以及 --key=value
+    private static String option_(List<String> aArgs, String aLong, String aShort) {
+        for (int i = 0; i < aArgs.size(); ++i) {
+            String tArg = aArgs.get(i);
+            if (tArg.startsWith(aLong+"=")) return tArg.substring(aLong.length()+1);
+            if ((tArg.equals(aLong) || (aShort != null && tArg.equals(aShort))) && i+1 < aArgs.size()) return aArgs.get(i+1);
+        }
+        return null;
+    }
+    private static boolean flag_(List<String> aArgs, String aFlag) {return aArgs.contains(aFlag);}
+    
+    private synchronized int sbatch_(String aUser, String aDir, List<String> aArgs, StringBuilder rOut, StringBuilder rErr) {
+        if (mRNG.nextDouble() < mSbatchFail) {rErr.append("sbatch: error: Batch job submission failed: Socket timed out on send/recv operation\n"); return 1;}
+        String tNodes = option_(aArgs, "--nodes", "-N");
+        String tName = option_(aArgs, "--job-name", "-J");
+        String tOutput = option_(aArgs, "--output", "-o");
+        long tDuration = mDuration + (mDurationJitter > 0 ? (long)(mRNG.nextDouble()*mDurationJitter) : 0);
+        int tJobID = mNextJobID++;
+        if (tOutput == null) tOutput = "slurm-%j.out";
+        tOutput = tOutput.replace("%j", String.valueOf(tJobID)).replace("%x", tName==null ? "sbatch" : tName);
+        tOutput = mHome.resolve(aDir).resolve(tOutput).toString(); // 和 sbatch 一致，相对路径是相对提交时的目录
+        Job tJob = new Job(tJobID, aUser, tName==null ? "sbatch" : tName, tOutput, tNodes==null ? 1 : Integer.parseInt(tNodes), false, System.currentTimeMillis(), tDuration);
+        mActive.put(tJobID, tJob);
+        advance_(System.currentTimeMillis());
+        if (flag_(aArgs, "--parsable")) rOut.append(tJobID).append('\n');
+        else rOut.append("Submitted batch job ").append(tJobID).append('\n');
+        return 0;
+    }
+    private synchronized int squeue_(String aUser, List<String> aArgs, StringBuilder rOut, StringBuilder rErr) {
+        if (mRNG.nextDouble() < mSqueueFail) {rErr.append("slurm_load_jobs error: Socket timed out on send/recv operation\n"); return 1;}
+        advance_(System.currentTimeMillis());
+        String tUser = option_(aArgs, "--user", "-u");
+        String tName = option_(aArgs, "--name", "-n");
+        if (!flag_(aArgs, "--noheader") && !flag_(aArgs, "-h")) rOut.append("JOBID\n");
+        for (Job tJob : mActive.values()) {
+            if (tUser != null && !tUser.equals(tJob.mUser)) continue;
+            if (tName != null && !tName.equals(tJob.mName)) continue;
+            rOut.append(tJob.mJobID).append('\n');
+        }
+        return 0;
+    }
+    private synchronized int scancel_(String aUser, List<String> aArgs, StringBuilder rOut, StringBuilder rErr) {
+        advance_(System.currentTimeMillis());
+        String tUser = option_(aArgs, "--user", "-u");
+        String tName = option_(aArgs, "--name", "-n");
+        Set<Integer> tIDs = new HashSet<>();
+        for (String tArg : aArgs) if (!tArg.startsWith("-")) {try {tIDs.add(Integer.parseInt(tArg));} catch (NumberFormatException ignored) {}}
+        if (tUser == null && tName == null && tIDs.isEmpty()) {rErr.append("scancel: error: No job identification provided\n"); return 1;}
+        long tNow = System.currentTimeMillis();
+        Iterator<Job> tIt = mActive.values().iterator();
+        while (tIt.hasNext()) {
+            Job tJob = tIt.next();
+            if (!tJob.mUser.equals(aUser)) continue; // 只能取消自己的任务
+            if (tUser != null && !tUser.equals(tJob.mUser)) continue;
+            if (tName != null && !tName.equals(tJob.mName)) continue;
+            if (!tIDs.isEmpty() && !tIDs.contains(tJob.mJobID)) continue;
+            finish_(tJob, State.CANCELLED, tNow);
+            tIt.remove();
+        }
+        return 0;
+    }
+    // 只支持 sacct -j <ids> 的查询，输出 "JobID|State|ExitCode"
+    private synchronized int sacct_(String aUser, List<String> aArgs, StringBuilder rOut, StringBuilder rErr) {
+        advance_(System.currentTimeMillis());
+        String tJobs = option_(aArgs, "--jobs", "-j");
+        if (tJobs == null) {rErr.append("sacct: error: only --jobs is supported by the simulator\n"); return 1;}
+        for (String tID : tJobs.split(",")) {
+            Job tJob;
+            try {int tJobID = Integer.parseInt(tID.trim()); tJob = mActive.containsKey(tJobID) ? mActive.get(tJobID) : mFinished.get(tJobID);} catch (NumberFormatException e) {continue;}
+            if (tJob == null) continue;
+            rOut.append(tJob.mJobID).append('|').append(tJob.mState.name()).append('|').append(tJob.mState==State.FAILED ? "1:0" : "0:0").append('\n');
+        }
+        return 0;
+    }
+    
+    // 推进模拟的时间，先结束到时间的任务，再按照任务号的顺序开始排队的任务
+    private void advance_(long aNow) {
+        Iterator<Job> tIt = mActive.values().iterator();
+        while (tIt.hasNext()) {
+            Job tJob = tIt.next();
+            if (tJob.mState == State.RUNNING && aNow >= tJob.mStartTime+tJob.mDuration) {
+                finish_(tJob, mRNG.nextDouble() < mJobFail ? State.FAILED : State.COMPLETED, tJob.mStartTime+tJob.mDuration);
+                tIt.remove();
+            }
+        }
+        if (mUsedNodes >= mNodes) return;
+        for (Job tJob : mActive.values()) {
+            if (tJob.mState != State.PENDING || tJob.mHeld) continue;
+            if (mUsedNodes + tJob.mNodes > mNodes) break;
+            tJob.mState = State.RUNNING;
+            tJob.mStartTime = aNow;
+            mUsedNodes += tJob.mNodes;
+            output_(tJob, String.format("job %d started on %d node(s)\n", tJob.mJobID, tJob.mNodes));
+        }
+    }
+    private void finish_(Job aJob, State aState, long aEndTime) {
+        if (aJob.mState == State.RUNNING) {
+            mUsedNodes -= aJob.mNodes;
+            output_(aJob, String.format("job %d %s\n", aJob.mJobID, aState.name().toLowerCase()));
+        }
+        aJob.mState = aState;
+        aJob.mEndTime = aEndTime;
+        mFinished.put(aJob.mJobID, aJob);
+    }
+    // 和 SLURM 一致，输出文件所在的文件夹需要已经存在
+    private void output_(Job aJob, String aLine) {
+        if (aJob.mOutputPath == null) return;
+        Path tPath = Paths.get(aJob.mOutputPath);
+        if (!Files.isDirectory(tPath.getParent())) return;
+        try (OutputStream tOut = new FileOutputStream(tPath.toFile(), true)) {tOut.write(aLine.getBytes(StandardCharsets.UTF_8));} catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,109 @@
+package com.chanzy;
+
+import com.chanzy.code.Decryptor;
+import com.chanzy.code.Encryptor;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author CHanzy
+ * ServerSLURM 中不需要服务器的部分的微基准测试：保存和加载 json，镜像的加密和解密，以及每次 squeue 之后对 mJobIDList 的更新
+ * 使用没有连接的 ServerSSH 来加载，并且设置很长的 SleepTime 使得提交线程不会尝试连接
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerSLURMBenchmark {
+    private final static String KEY = "SmartSLURM-jmh";
+    
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+    
+    private JSONObject mJson;
+    private String mMirror;
+    private byte[] mEncrypted;
+    private ServerSLURM mSLURM;
+    private Set<Integer> mSqueue;
+    
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        // 构造和真实镜像相同格式的 json，排队和正在执行的任务各 entries 个
+        JSONObject rJsonSSH = new JSONObject();
+        rJsonSSH.put("Username", "jmh");
+        rJsonSSH.put("Hostname", "127.0.0.1");
+        rJsonSSH.put("Port", 22);
+        rJsonSSH.put("Password", "jmh");
+        JSONObject rJsonSLURM = new JSONObject();
+        rJsonSLURM.put("MaxJobNumber", 64);
+        rJsonSLURM.put("SleepTime", TimeUnit.DAYS.toMillis(1));
+        rJsonSLURM.put("JobName", "JOB-FROM-jmh");
+        rJsonSLURM.put("Tolerant", 3);
+        JSONArray rJobIDList = new JSONArray(), rCommandList = new JSONArray();
+        for (int i = 0; i < entries; ++i) {
+            rJobIDList.add(100000+i);
+            rJobIDList.add(String.format("MERGE{GET_FILE{.temp/out/out-%d}:REMOVE_DIR{.temp/job-%d/}}", i, i));
+            rCommandList.add(String.format("echo -e '#!/bin/bash\\nsrun -n 1 ./run %d' | sbatch --parsable --nodes 1 --job-name JOB-FROM-jmh --output .temp/out/out-%d", i, i));
+            rCommandList.add(String.format("PUT_FILE{.temp/in/in-%d}", i));
+            rCommandList.add(String.format("GET_FILE{.temp/out/out-%d}", i));
+        }
+        rJsonSLURM.put("JobIDList", rJobIDList);
+        rJsonSLURM.put("CommandList", rCommandList);
+        mJson = new JSONObject();
+        mJson.put("SSH", rJsonSSH);
+        mJson.put("SLURM", rJsonSLURM);
+        
+        mSLURM = load_(mJson);
+        mMirror = mJson.toJSONString();
+        mEncrypted = new Encryptor(KEY).getData(mMirror);
+        // squeue 的结果包含所有正在执行的任务以及同样数目的其他任务，这时不会有任务被移除
+        mSqueue = new LinkedHashSet<>();
+        for (int i = 0; i < 2*entries; ++i) mSqueue.add(100000+i);
+    }
+    @TearDown public void tearDown() {mSLURM.kill(false);}
+    
+    private static ServerSLURM load_(JSONObject aJson) throws Exception {
+        ServerSLURM rSLURM = ServerSLURM.load_(ServerSSH.load_((JSONObject) aJson.get("SSH")), aJson);
+        rSLURM.pause();
+        return rSLURM;
+    }
+    
+    @Benchmark public JSONObject save() {
+        JSONObject rJson = new JSONObject();
+        mSLURM.save(rJson);
+        return rJson;
+    }
+    // 每次修改后保存到加密镜像的完整过程（不包括写入文件）
+    @Benchmark public byte[] saveMirror() throws Exception {
+        JSONObject rJson = new JSONObject();
+        mSLURM.save(rJson);
+        return new Encryptor(KEY).getData(rJson.toJSONString());
+    }
+    @Benchmark public ServerSLURM load() throws Exception {
+        ServerSLURM tSLURM = load_(mJson);
+        tSLURM.kill(false);
+        return tSLURM;
+    }
+    // 从加密镜像加载的完整过程（不包括读取文件）
+    @Benchmark public ServerSLURM loadMirror() throws Exception {
+        JSONObject tJson = (JSONObject) new JSONParser().parse(new Decryptor(KEY).get(mEncrypted));
+        ServerSLURM tSLURM = load_(tJson);
+        tSLURM.kill(false);
+        return tSLURM;
+    }
+    @Benchmark public byte[] encrypt() throws Exception {return new Encryptor(KEY).getData(mMirror);}
+    @Benchmark public String decrypt() throws Exception {return new Decryptor(KEY).get(mEncrypted);}
+    // 每次 squeue 之后的更新，需要在 this 锁内调用
+    @Benchmark public boolean updateJobIDList() {
+        synchronized (mSLURM) {return mSLURM.updateJobIDList_(mSqueue);}
+    }
+}
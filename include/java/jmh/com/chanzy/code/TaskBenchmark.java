@@ -0,0 +1,45 @@
+package com.chanzy.code;
+
+import com.chanzy.ServerLocal;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.chanzy.code.UT.Task;
+
+/**
+ * @author CHanzy
+ * Task 序列化和反序列化的微基准测试，使用多次 mergeTask 得到的深层 MERGE 链（镜像中 afterTask 的常见形式）
+ * 叶节点使用 ServerLocal 的 task_system，创建时不需要任何服务器
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskBenchmark {
+    @Param({"16", "128", "1024"})
+    public int depth;
+    
+    private ServerLocal mLocal;
+    private Task mTask;
+    private String mStr;
+    
+    @Setup public void setup() {
+        mLocal = ServerLocal.get(1);
+        // 和逐个添加 afterTask 一致，得到左深的链 MERGE{MERGE{...:b}:c}
+        Task rTask = null;
+        for (int i = 0; i < depth; ++i) rTask = UT.mergeTask(rTask, mLocal.task_system(String.format("rm -rf .temp/job-%d", i)));
+        mTask = rTask;
+        mStr = rTask.toString();
+    }
+    @TearDown public void tearDown() {mLocal.shutdown();}
+    
+    // 只解析最外层
+    @Benchmark public Object getKeyValue() {return Task.getKeyValue_(mStr);}
+    // 完整的反序列化
+    @Benchmark public Task fromString() {return Task.fromString(mLocal, mStr);}
+    // 序列化
+    @Benchmark public String toStr() {return mTask.toString();}
+}
@@ -0,0 +1,612 @@
+package com.chanzy;
+
+import com.chanzy.code.Decryptor;
+import com.chanzy.code.Encryptor;
+import com.chanzy.code.UT;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.chanzy.code.UT.Task;
+
+/**
+ * @author CHanzy
+ * 在本地执行任务的 SLURM 替代，提供和 ServerSLURM 相同的任务队列接口（submitSystem，before/after task，mirror，waitUntilDone 等）
+ * 任务直接作为本地进程执行，mCoreNumber 为同时可以使用的核数，每个任务占用提交时指定的核数（对应 ServerSLURM 中的节点数），按照提交的顺序执行
+ * 不需要网络，可以直接在本地运行相同的流程，也可以用来测量任务队列本身的开销
+ */
+@SuppressWarnings("UnusedReturnValue")
+public final class ServerLocal {
+    static final String DEFAULT_OUTPUT_PATH = ".temp/local/out-%j";
+    static final boolean IS_WINDOWS = System.getProperty("os.name").toLowerCase().contains("windows");
+    
+    private final int mCoreNumber;
+    private final String mWorkingDir_; // 保存时使用原本的路径
+    private final String mWorkingDir;
+    
+    private final Map<Integer, Job> mJobIDList = new LinkedHashMap<>(); // <JobID, job>
+    private final LinkedList<Job> mCommandList = new LinkedList<>();
+    private final Map<Integer, Job> mLostJobList = new LinkedHashMap<>(); // 加载前正在执行的任务，进程可能仍在执行，需要手动 rerunLostJobs 才会重新执行
+    private final ExecutorService mPool;
+    private int mUsedCore = 0; // 正在执行的任务占用的核数
+    private int mNextJobID = 1;
+    private boolean mDead = false;
+    private boolean mPause = false; // 可以暂停任务的提交
+    private boolean mKilled = false; // 直接强制杀死提交进程
+    
+    private long mSleepTime = 100; // ms 检测任务是否完成的间隔，提交任务时会直接唤醒，不需要等待
+    private final ServerSLURM.TolerantCounter mTolerantCounter = new ServerSLURM.TolerantCounter();
+    private String mJobName = "JOB-FROM-"+this;
+    // 本地的镜像存储地址，会在任何修改后保存到此镜像，同时使用 mMirrorPath+".owner" 记录镜像的所有者，用于检测是否有多个对象同时管理一个镜像
+    private String mMirrorPath_ = null;
+    private String mMirrorPath = null;
+    private String mMirrorKey = null;
+    
+    // 发生内部参数改变都需要调用一下这个函数
+    Runnable doMemberChange = this::saveToMirror_;
+    
+    /// 保存到文件以及从文件加载
+    public void save(String aFilePath) throws Exception {save(aFilePath, null);}
+    public static ServerLocal load(String aFilePath) throws Exception {
+        aFilePath = UT.toAbsolutePath(aFilePath);
+        FileReader tFile = new FileReader(aFilePath);
+        JSONObject tJson = (JSONObject) new JSONParser().parse(tFile);
+        tFile.close();
+        return load(tJson);
+    }
+    // 带有密码的读写
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void save(String aFilePath, String aKey) throws Exception {
+        aFilePath = UT.toAbsolutePath(aFilePath);
+        JSONObject rJson = new JSONObject();
+        save(rJson);
+        // 和 ServerSLURM 一致，需要先备份旧的文件
+        File tFile = new File(aFilePath);
+        if (tFile.exists()) Files.copy(tFile.toPath(), new File(aFilePath+".bak").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (aKey != null && !aKey.isEmpty()) {
+            Encryptor tEncryptor = new Encryptor(aKey);
+            Files.write(Paths.get(aFilePath), tEncryptor.getData(rJson.toJSONString()));
+        } else {
+            FileWriter tFileWriter = new FileWriter(aFilePath);
+            JSONObject.writeJSONString(rJson, tFileWriter);
+            tFileWriter.close();
+        }
+        if (tFile.exists()) new File(aFilePath+".bak").delete();
+    }
+    public static ServerLocal load(String aFilePath, String aKey) throws Exception {
+        aFilePath = UT.toAbsolutePath(aFilePath);
+        Decryptor tDecryptor = new Decryptor(aKey);
+        JSONObject tJson = (JSONObject) new JSONParser().parse(tDecryptor.get(Files.readAllBytes(Paths.get(aFilePath))));
+        return load(tJson);
+    }
+    // 偏向于内部使用的保存到 json 和从 json 读取
+    @SuppressWarnings("unchecked")
+    public synchronized void save(JSONObject rJson) {
+        // 保存需要暂停，防止重复提交
+        pause();
+        JSONObject rJsonLocal = new JSONObject();
+        rJson.put("LOCAL", rJsonLocal);
+        rJsonLocal.put("CoreNumber", mCoreNumber);
+        rJsonLocal.put("WorkingDir", mWorkingDir_);
+        rJsonLocal.put("SleepTime", mSleepTime);
+        rJsonLocal.put("JobName", mJobName);
+        rJsonLocal.put("Tolerant", mTolerantCounter.tolerant());
+        rJsonLocal.put("NextJobID", mNextJobID);
+        
+        if (mMirrorPath_ != null)
+            rJsonLocal.put("MirrorPath", mMirrorPath_);
+        if (mMirrorKey != null)
+            rJsonLocal.put("MirrorKey", mMirrorKey);
+        
+        // 本地进程在加载后无法再次获取，因此正在执行的任务也保存指令，加载时会放到 mLostJobList 中而不会自动重新执行
+        if (!mJobIDList.isEmpty()) rJsonLocal.put("JobIDList", saveJobList_(mJobIDList.values()));
+        if (!mLostJobList.isEmpty()) rJsonLocal.put("LostJobList", saveJobList_(mLostJobList.values()));
+        if (!mCommandList.isEmpty()) {
+            JSONArray rJsonCommandList = new JSONArray();
+            rJsonLocal.put("CommandList", rJsonCommandList);
+            // 按照 command, coreNumber, outputPath, beforeTask, afterTask 的顺序排列
+            for (Job tJob : mCommandList) {
+                rJsonCommandList.add(tJob.mCommand);
+                rJsonCommandList.add(tJob.mCoreNumber);
+                rJsonCommandList.add(tJob.mOutputPath);
+                rJsonCommandList.add(tJob.mBeforeTask==null?Task.Type.NULL.name():tJob.mBeforeTask.toString());
+                rJsonCommandList.add(tJob.mAfterTask==null?Task.Type.NULL.name():tJob.mAfterTask.toString());
+            }
+        }
+        // save 操作不自动解除暂停以防止重复提交
+    }
+    public static ServerLocal load(JSONObject aJson) throws Exception {
+        JSONObject tJsonLocal = (JSONObject) aJson.get("LOCAL");
+        int aCoreNumber = ((Number) tJsonLocal.get("CoreNumber")).intValue();
+        String aWorkingDir = (String) tJsonLocal.get("WorkingDir");
+        long aSleepTime = ((Number) tJsonLocal.get("SleepTime")).longValue();
+        String aJobName = (String) tJsonLocal.get("JobName");
+        int aTolerant = ((Number) tJsonLocal.get("Tolerant")).intValue();
+        
+        ServerLocal rServerLocal = new ServerLocal(aCoreNumber, aWorkingDir);
+        // 获取后先暂停防止加载过程中发生了提交
+        rServerLocal.pause();
+        
+        rServerLocal.setSleepTime(aSleepTime).setTolerant(aTolerant);
+        rServerLocal.mJobName = aJobName;
+        rServerLocal.mNextJobID = ((Number) tJsonLocal.get("NextJobID")).intValue();
+        
+        // 之前正在执行的任务的进程可能仍然在执行（例如 kill 之后再 load），因此不会自动重新执行，只是记录到 mLostJobList
+        if (tJsonLocal.containsKey("LostJobList")) rServerLocal.loadJobList_((JSONArray) tJsonLocal.get("LostJobList"));
+        if (tJsonLocal.containsKey("JobIDList")) rServerLocal.loadJobList_((JSONArray) tJsonLocal.get("JobIDList"));
+        if (!rServerLocal.mLostJobList.isEmpty()) System.out.printf("WARNING: %d job(s) were running when the local server was saved, they will NOT run again unless you call rerunLostJobs().\n", rServerLocal.mLostJobList.size());
+        if (tJsonLocal.containsKey("CommandList")) {
+            JSONArray tJsonCommandList = (JSONArray) tJsonLocal.get("CommandList");
+            for (int i = 4; i < tJsonCommandList.size(); i+=5)
+                rServerLocal.mCommandList.add(new Job((String) tJsonCommandList.get(i-4), ((Number) tJsonCommandList.get(i-3)).intValue(), (String) tJsonCommandList.get(i-2), rServerLocal.taskFromString_((String) tJsonCommandList.get(i-1)), rServerLocal.taskFromString_((String) tJsonCommandList.get(i))));
+        }
+        // 最后加载 MirrorPath，会自动进行存储一次
+        if (tJsonLocal.containsKey("MirrorPath")) {
+            String tMirrorKey = tJsonLocal.containsKey("MirrorKey") ? (String) tJsonLocal.get("MirrorKey") : null;
+            rServerLocal.setMirror((String) tJsonLocal.get("MirrorPath"), tMirrorKey);
+        }
+        
+        // 加载完成解除暂停
+        rServerLocal.unpause();
+        return rServerLocal;
+    }
+    // 按照 id，command, coreNumber, outputPath, afterTask 的顺序排列，beforeTask 已经执行过因此不再需要
+    @SuppressWarnings("unchecked")
+    static JSONArray saveJobList_(Collection<Job> aJobs) {
+        JSONArray rJsonJobList = new JSONArray();
+        for (Job tJob : aJobs) {
+            rJsonJobList.add(tJob.mJobID);
+            rJsonJobList.add(tJob.mCommand);
+            rJsonJobList.add(tJob.mCoreNumber);
+            rJsonJobList.add(tJob.mOutputPath);
+            rJsonJobList.add(tJob.mAfterTask==null?Task.Type.NULL.name():tJob.mAfterTask.toString());
+        }
+        return rJsonJobList;
+    }
+    void loadJobList_(JSONArray aJsonJobList) {
+        for (int i = 4; i < aJsonJobList.size(); i+=5) {
+            Job tJob = new Job((String) aJsonJobList.get(i-3), ((Number) aJsonJobList.get(i-2)).intValue(), (String) aJsonJobList.get(i-1), null, taskFromString_((String) aJsonJobList.get(i)));
+            tJob.mJobID = ((Number) aJsonJobList.get(i-4)).intValue();
+            mLostJobList.put(tJob.mJobID, tJob);
+        }
+    }
+    // ServerLocal 只能恢复本地的 task（LOCAL_*），其余的（例如 ServerSSH 的 task）会被 fromString 转为 null，这里直接报错而不是静默丢弃
+    Task taskFromString_(String aStr) {
+        Task rTask = Task.fromString(this, aStr);
+        if (rTask == null && !aStr.equals(Task.Type.NULL.name())) throw new RuntimeException("Can NOT load task in a Local: "+aStr);
+        return rTask;
+    }
+    // 设置了镜像时提交的 task 需要能够从镜像中恢复，否则直接报错；没有实现 toString 的 task（NULL）和 ServerSLURM 一致，加载时会被忽略
+    void checkTask_(Task aTask) {
+        if (mMirrorPath == null || aTask == null) return;
+        String tStr = aTask.toString();
+        if (tStr.equals(Task.Type.NULL.name())) return;
+        Task tTask;
+        try {tTask = Task.fromString(this, tStr);} catch (RuntimeException e) {tTask = null;}
+        if (tTask == null) throw new RuntimeException("Task NOT supported by the mirror of a Local: "+tStr);
+    }
+    
+    
+    /// 构造函数以及获取方式，默认使用所有的核，默认工作目录为当前的工作目录
+    private ServerLocal(int aCoreNumber, String aWorkingDir) {
+        mCoreNumber = Math.max(1, aCoreNumber);
+        mWorkingDir_ = aWorkingDir;
+        mWorkingDir = UT.toAbsolutePath(aWorkingDir);
+        mPool = UT.newSingleThreadExecutor("ServerLocal-submit", UT.Worker.IDLE);
+        mPool.execute(this::keepSubmitFromList_);
+    }
+    public static ServerLocal get() {return get(Runtime.getRuntime().availableProcessors());}
+    public static ServerLocal get(int aCoreNumber) {return get(aCoreNumber, "");}
+    public static ServerLocal get(int aCoreNumber, String aWorkingDir) {return new ServerLocal(aCoreNumber, aWorkingDir);}
+    
+    public void shutdown() {
+        mDead = true;
+        mPool.shutdown();
+        synchronized (this) {notifyAll();}
+    }
+    public void shutdownNow() {
+        cancelThis();
+        shutdown();
+    }
+    // 设置暂停，会挂起直到获得这个对象的锁，这样在外部调用后确实已经暂停
+    public synchronized void pause() {mPause = true;}
+    public synchronized void unpause() {mPause = false; notifyAll();}
+    // 直接杀死这个对象，会直接关闭提交任务并且放弃监管正在执行的进程而不是结束这些进程，从而使得 mirror 的内容冻结
+    public void kill() {kill(true);}
+    public void kill(boolean aWarning) {
+        pause();
+        if (aWarning && mMirrorPath == null) System.out.println("WARNING: you killed a local server without mirror, jobs submit from this may out of control!");
+        mKilled = true;
+        mDead = true;
+        mPool.shutdown();
+        synchronized (this) {notifyAll();}
+    }
+    // 一些参数设置
+    public ServerLocal setSleepTime(long aSleepTime) {
+        if (mDead) throw new RuntimeException("Can NOT setSleepTime from a Dead Local.");
+        mSleepTime = aSleepTime;
+        doMemberChange.run();
+        return this;
+    }
+    public ServerLocal setTolerant(int aTolerant) {
+        if (mDead) throw new RuntimeException("Can NOT setTolerant from a Dead Local.");
+        mTolerantCounter.setTolerant(aTolerant);
+        doMemberChange.run(); return this;
+    }
+    public ServerLocal setMirror(String aPath) {return setMirror(aPath, null);}
+    public ServerLocal setMirror(String aPath, String aKey) {
+        if (mDead) throw new RuntimeException("Can NOT setMirror from a Dead Local.");
+        if (aPath.isEmpty()) {mMirrorPath_ = null; mMirrorPath = null; mMirrorKey = null; return this;}
+        String oMirrorPath = mMirrorPath;
+        mMirrorPath = UT.toAbsolutePath(aPath);
+        // 已经在队列中的 task 也需要能够从镜像中恢复
+        synchronized (this) {
+            try {
+                for (Job tJob : mCommandList) {checkTask_(tJob.mBeforeTask); checkTask_(tJob.mAfterTask);}
+                for (Job tJob : mJobIDList.values()) checkTask_(tJob.mAfterTask);
+            } catch (RuntimeException e) {mMirrorPath = oMirrorPath; throw e;}
+        }
+        mMirrorPath_ = aPath;
+        mMirrorKey = aKey;
+        boolean oPause = mPause;
+        try {
+            save(aPath, aKey);
+            // 写入镜像的所有者，最后一行存 END 避免读取一半的情况
+            Files.write(Paths.get(mMirrorPath+".owner"), (this+"\nEND\n").getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            System.out.println("WARNING: set MirrorPath to "+aPath+" Fail, MirrorPath set to null.");
+            mMirrorPath_ = null; mMirrorPath = null; mMirrorKey = null;
+        } finally {mPause = oPause;}
+        return this;
+    }
+    
+    /// 内部实用类
+    // 内部的从队列中提交任务，和 ServerSLURM 不同，进程的状态可以直接获取，因此只需要定期检测是否已经结束
+    void keepSubmitFromList_() {
+        while (true) {
+            if (mKilled) break;
+            synchronized (this) {
+                // 提交任务以及解除暂停时会直接唤醒
+                try {wait(mSleepTime);} catch (InterruptedException e) {e.printStackTrace(); break;}
+                if (mKilled) break;
+                if (mPause) continue;
+                if (mCommandList.isEmpty() && mJobIDList.isEmpty()) {if (mDead) break; else continue;}
+                // 首先检测镜像是否合理
+                if (mMirrorPath != null && !checkMirror_()) {doMirrorInvalid_(); continue;}
+                // 更新正在执行的任务列表
+                if (!mJobIDList.isEmpty()) {
+                    final Iterator<Job> tIt = mJobIDList.values().iterator();
+                    final boolean[] tAlive = {true};
+                    while (tAlive[0] && tIt.hasNext()) {
+                        Job tJob = tIt.next();
+                        // 进程结束时直接释放占用的核，afterTask 失败重试期间不会继续占用
+                        if (tJob.mProcess != null) {
+                            if (tJob.mProcess.isAlive()) continue;
+                            tJob.mProcess = null;
+                            mUsedCore -= tJob.mCoreNumber;
+                        }
+                        Task tAfterSystem = tJob.mAfterTask;
+                        if (tAfterSystem != null) {
+                            boolean tSuc;
+                            try {tSuc = tAfterSystem.run();} catch (Exception e) {tSuc = false;}
+                            mTolerantCounter.call(tSuc, "running after task: "+tAfterSystem, () -> {tIt.remove(); doMemberChange.run();}, () -> tAlive[0] = false, () -> {tIt.remove(); doMemberChange.run();});
+                        } else {
+                            tIt.remove(); doMemberChange.run();
+                        }
+                    }
+                    notifyAll(); // 唤醒 waitUntilDone
+                    if (!tAlive[0]) continue;
+                }
+                // 按照顺序提交任务，直到剩余的核不够下一个任务使用
+                while (!mCommandList.isEmpty() && !mPause) {
+                    final Job tJob = mCommandList.peekFirst();
+                    if (mUsedCore > 0 && mUsedCore + tJob.mCoreNumber > mCoreNumber) break;
+                    if (tJob.mBeforeTask != null) {
+                        boolean tSuc;
+                        try {tSuc = tJob.mBeforeTask.run();} catch (Exception e) {tSuc = false;}
+                        mTolerantCounter.call(tSuc, "running before task: "+tJob.mBeforeTask, () -> {mCommandList.removeFirst(); doMemberChange.run();}, () -> {}, () -> {tJob.mBeforeTask = null; doMemberChange.run();});
+                        if (!tSuc) break; // 只要不成功都需要跳过后续并重试
+                    }
+                    int tJobID = mNextJobID;
+                    Process tProcess;
+                    try {tProcess = start_(tJob, tJobID);} catch (IOException e) {tProcess = null;}
+                    mTolerantCounter.call(tProcess != null, "start job("+tJobID+"): "+tJob.mCommand, () -> {mCommandList.removeFirst(); doMemberChange.run();});
+                    if (tProcess == null) break;
+                    // 成功开始，移出 mCommandList 并添加到 mJobIDList
+                    mCommandList.removeFirst();
+                    ++mNextJobID;
+                    tJob.mJobID = tJobID;
+                    tJob.mProcess = tProcess;
+                    mUsedCore += tJob.mCoreNumber;
+                    mJobIDList.put(tJobID, tJob);
+                    doMemberChange.run();
+                }
+            }
+        }
+    }
+    // 开始本地进程，输出和错误输出都写入输出文件，和 sbatch 一致设置 SLURM_JOB_ID 等环境变量
+    // 非 windows 下任务在单独的进程组中执行（外层 bash 开启 set -m 后后台任务会有自己的进程组），这样取消时可以结束整个进程树；外层 bash 会先输出进程组号
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    Process start_(Job aJob, int aJobID) throws IOException {
+        File tOutput = new File(mWorkingDir, outputPath_(aJob.mOutputPath, aJobID));
+        File tDir = tOutput.getParentFile();
+        if (tDir != null) tDir.mkdirs();
+        ProcessBuilder tBuilder = IS_WINDOWS ?
+            new ProcessBuilder(shell_(aJob.mCommand)).redirectErrorStream(true).redirectOutput(tOutput) :
+            new ProcessBuilder("bash", "-c", "set -m; bash -c \"$1\" > \"$2\" 2>&1 < /dev/null & echo $!; exec >&-; wait $!", "bash", aJob.mCommand, tOutput.getAbsolutePath()).redirectError(new File("/dev/null"));
+        tBuilder.directory(new File(mWorkingDir));
+        Map<String, String> tEnv = tBuilder.environment();
+        tEnv.put("SLURM_JOB_ID", String.valueOf(aJobID));
+        tEnv.put("SLURM_JOB_NAME", mJobName);
+        tEnv.put("SLURM_CPUS_ON_NODE", String.valueOf(aJob.mCoreNumber));
+        Process rProcess = tBuilder.start();
+        rProcess.getOutputStream().close(); // 没有输入
+        aJob.mProcessGroup = -1;
+        if (!IS_WINDOWS) {
+            try (BufferedReader tReader = new BufferedReader(new InputStreamReader(rProcess.getInputStream(), StandardCharsets.UTF_8))) {
+                String tLine = tReader.readLine();
+                if (tLine != null) aJob.mProcessGroup = Integer.parseInt(tLine.trim());
+            } catch (NumberFormatException ignored) {}
+        }
+        return rProcess;
+    }
+    // 结束任务的整个进程树，没有进程组号时（windows 或者获取失败）只能结束直接的子进程
+    static void destroy_(Job aJob) {
+        if (aJob.mProcessGroup > 0) {
+            try {new ProcessBuilder("kill", "-TERM", "--", "-"+aJob.mProcessGroup).redirectErrorStream(true).redirectOutput(new File("/dev/null")).start().waitFor();}
+            catch (IOException ignored) {}
+            catch (InterruptedException e) {Thread.currentThread().interrupt();}
+        }
+        aJob.mProcess.destroy();
+    }
+    String outputPath_(String aOutputPath, int aJobID) {
+        return aOutputPath.replace("%j", String.valueOf(aJobID)).replace("%x", mJobName);
+    }
+    static List<String> shell_(String aCommand) {
+        return IS_WINDOWS ? Arrays.asList("cmd", "/c", aCommand) : Arrays.asList("bash", "-c", aCommand);
+    }
+    // 内部使用的保存到镜像的方法
+    void saveToMirror_() {
+        if (mMirrorPath == null) return;
+        boolean oPause = mPause;
+        try {save(mMirrorPath, mMirrorKey);} catch (Exception ignored) {}
+        finally {mPause = oPause;}
+    }
+    // 内部使用的检测镜像是否合法的方法，所有者文件不完整时无法确定，认为是合法的
+    boolean checkMirror_() {
+        List<String> tLines;
+        try {tLines = Files.readAllLines(Paths.get(mMirrorPath+".owner"), StandardCharsets.UTF_8);} catch (IOException e) {return true;}
+        int tEnd = tLines.lastIndexOf("END");
+        if (tEnd < 1) return true;
+        return tLines.get(tEnd-1).equals(this.toString());
+    }
+    void doMirrorInvalid_() {
+        System.out.printf("WARNING: The mirror of this instance(%s) is invalid,\n", this);
+        System.out.println("  so this instance has been killed, which may caused by the redundant instance of the mirror.");
+        System.out.println("  All of the instance of this mirror will be killed, so you may get repeated messages.");
+        System.out.println("  You need to kill the old instance before load the mirror.");
+        System.out.flush();
+        try {Files.write(Paths.get(mMirrorPath+".owner"), "INVALID\nEND\n".getBytes(StandardCharsets.UTF_8));} catch (IOException ignored) {}
+        kill();
+    }
+    
+    /// 实用方法
+    // 直接在本地执行指令，输出到命令行，期间会挂起程序
+    public Task task_system(final String aCommand) {return new Task() {
+        @Override public boolean run() throws Exception {return system(aCommand) == 0;}
+        @Override public String toString() {return String.format("%s{%s}", Type.LOCAL_SYSTEM.name(), aCommand);}
+    };}
+    public int system(String aCommand) throws IOException, InterruptedException {
+        if (mDead) throw new RuntimeException("Can NOT system from a Dead Local.");
+        Process tProcess = new ProcessBuilder(shell_(aCommand)).directory(new File(mWorkingDir)).redirectErrorStream(true).start();
+        tProcess.getOutputStream().close();
+        try (InputStream tIn = tProcess.getInputStream()) {
+            byte[] tBuffer = new byte[8192];
+            int tRead;
+            while ((tRead = tIn.read(tBuffer)) > 0) System.out.write(tBuffer, 0, tRead);
+        } finally {
+            System.out.flush();
+        }
+        return tProcess.waitFor();
+    }
+    
+    /**
+     * 通用的提交任务接口，和 ServerSLURM 的 submitSystem 对应
+     * 指定任务需要的核数（超过 mCoreNumber 时会在没有其他任务时单独执行）以及输出文件，%j 会替换为任务号
+     * 可以指定指令开始之前的 task 以及指令执行完成后的 task
+     * 为了可以直接替换 ServerSLURM，同样提供带有分区的重载，本地执行时分区会被忽略，节点数作为核数
+     */
+    public void submitSystem(String aCommand                                                        ) {submitSystem(aCommand, 1);}
+    public void submitSystem(String aCommand,                    int aCoreNumber                    ) {submitSystem(aCommand, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitSystem(String aCommand,                    int aCoreNumber, String aOutputPath) {submitSystem((Task) null, aCommand, aCoreNumber, aOutputPath);}
+    public void submitSystem(String aCommand, String aPartition                                     ) {submitSystem(aCommand, aPartition, 1);}
+    public void submitSystem(String aCommand, String aPartition, int aNodeNumber                    ) {submitSystem(aCommand, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitSystem(String aCommand, String aPartition, int aNodeNumber, String aOutputPath) {submitSystem(aCommand, aNodeNumber, aOutputPath);}
+    
+    public void submitSystem(Task aBeforeSystem, String aCommand                                                        ) {submitSystem(aBeforeSystem, aCommand, 1);}
+    public void submitSystem(Task aBeforeSystem, String aCommand,                    int aCoreNumber                    ) {submitSystem(aBeforeSystem, aCommand, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitSystem(Task aBeforeSystem, String aCommand,                    int aCoreNumber, String aOutputPath) {submitSystem(aBeforeSystem, (Task) null, aCommand, aCoreNumber, aOutputPath);}
+    public void submitSystem(Task aBeforeSystem, String aCommand, String aPartition                                     ) {submitSystem(aBeforeSystem, aCommand, aPartition, 1);}
+    public void submitSystem(Task aBeforeSystem, String aCommand, String aPartition, int aNodeNumber                    ) {submitSystem(aBeforeSystem, aCommand, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitSystem(Task aBeforeSystem, String aCommand, String aPartition, int aNodeNumber, String aOutputPath) {submitSystem(aBeforeSystem, aCommand, aNodeNumber, aOutputPath);}
+    
+    public void submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand                                                        ) {submitSystem(aBeforeSystem, aAfterSystem, aCommand, 1);}
+    public void submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand,                    int aCoreNumber                    ) {submitSystem(aBeforeSystem, aAfterSystem, aCommand, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand, String aPartition                                     ) {submitSystem(aBeforeSystem, aAfterSystem, aCommand, aPartition, 1);}
+    public void submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand, String aPartition, int aNodeNumber                    ) {submitSystem(aBeforeSystem, aAfterSystem, aCommand, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand, String aPartition, int aNodeNumber, String aOutputPath) {submitSystem(aBeforeSystem, aAfterSystem, aCommand, aNodeNumber, aOutputPath);}
+    
+    
+    public Task task_submitSystem(String aCommand                                                        ) {return task_submitSystem(aCommand, 1);}
+    public Task task_submitSystem(String aCommand,                    int aCoreNumber                    ) {return task_submitSystem(aCommand, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitSystem(String aCommand,                    int aCoreNumber, String aOutputPath) {return task_submitSystem((Task) null, (Task) null, aCommand, aCoreNumber, aOutputPath);}
+    public Task task_submitSystem(String aCommand, String aPartition                                     ) {return task_submitSystem(aCommand, aPartition, 1);}
+    public Task task_submitSystem(String aCommand, String aPartition, int aNodeNumber                    ) {return task_submitSystem(aCommand, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitSystem(String aCommand, String aPartition, int aNodeNumber, String aOutputPath) {return task_submitSystem(aCommand, aNodeNumber, aOutputPath);}
+    
+    public Task task_submitSystem(Task aBeforeSystem, String aCommand                                                        ) {return task_submitSystem(aBeforeSystem, aCommand, 1);}
+    public Task task_submitSystem(Task aBeforeSystem, String aCommand,                    int aCoreNumber                    ) {return task_submitSystem(aBeforeSystem, aCommand, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitSystem(Task aBeforeSystem, String aCommand,                    int aCoreNumber, String aOutputPath) {return task_submitSystem(aBeforeSystem, (Task) null, aCommand, aCoreNumber, aOutputPath);}
+    public Task task_submitSystem(Task aBeforeSystem, String aCommand, String aPartition                                     ) {return task_submitSystem(aBeforeSystem, aCommand, aPartition, 1);}
+    public Task task_submitSystem(Task aBeforeSystem, String aCommand, String aPartition, int aNodeNumber                    ) {return task_submitSystem(aBeforeSystem, aCommand, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitSystem(Task aBeforeSystem, String aCommand, String aPartition, int aNodeNumber, String aOutputPath) {return task_submitSystem(aBeforeSystem, aCommand, aNodeNumber, aOutputPath);}
+    
+    public Task task_submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand                                                        ) {return task_submitSystem(aBeforeSystem, aAfterSystem, aCommand, 1);}
+    public Task task_submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand,                    int aCoreNumber                    ) {return task_submitSystem(aBeforeSystem, aAfterSystem, aCommand, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand, String aPartition                                     ) {return task_submitSystem(aBeforeSystem, aAfterSystem, aCommand, aPartition, 1);}
+    public Task task_submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand, String aPartition, int aNodeNumber                    ) {return task_submitSystem(aBeforeSystem, aAfterSystem, aCommand, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand, String aPartition, int aNodeNumber, String aOutputPath) {return task_submitSystem(aBeforeSystem, aAfterSystem, aCommand, aNodeNumber, aOutputPath);}
+    
+    
+    public Task task_submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand, int aCoreNumber, String aOutputPath) {return new Task() {
+        @Override public boolean run() {submitSystem(aBeforeSystem, aAfterSystem, aCommand, aCoreNumber, aOutputPath); return true;}
+        @Override public String toString() {return String.format("%s{%s:%s:%s:%d:%s}", Type.LOCAL_SUBMIT_SYSTEM.name(), aBeforeSystem==null?Type.NULL.name():aBeforeSystem.toString(), aAfterSystem==null?Type.NULL.name():aAfterSystem.toString(), aCommand, aCoreNumber, aOutputPath);}
+    };}
+    public synchronized void submitSystem(Task aBeforeSystem, Task aAfterSystem, String aCommand, int aCoreNumber, String aOutputPath) {
+        if (mDead) throw new RuntimeException("Can NOT submitSystem from a Dead Local.");
+        checkTask_(aBeforeSystem); checkTask_(aAfterSystem);
+        mCommandList.addLast(new Job(aCommand, Math.min(Math.max(1, aCoreNumber), mCoreNumber), aOutputPath, aBeforeSystem, aAfterSystem));
+        doMemberChange.run();
+        notifyAll();
+    }
+    // 直接执行本地的脚本，和 ServerSLURM 的 submitBash 对应，不需要上传；同样提供带有分区的重载，分区会被忽略
+    public void submitBash(String aBashPath                                                        ) {submitBash(aBashPath, 1);}
+    public void submitBash(String aBashPath,                    int aCoreNumber                    ) {submitBash(aBashPath, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitBash(String aBashPath,                    int aCoreNumber, String aOutputPath) {submitBash((Task) null, (Task) null, aBashPath, aCoreNumber, aOutputPath);}
+    public void submitBash(String aBashPath, String aPartition                                     ) {submitBash(aBashPath, aPartition, 1);}
+    public void submitBash(String aBashPath, String aPartition, int aNodeNumber                    ) {submitBash(aBashPath, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitBash(String aBashPath, String aPartition, int aNodeNumber, String aOutputPath) {submitBash(aBashPath, aNodeNumber, aOutputPath);}
+    
+    public void submitBash(Task aBeforeSystem, String aBashPath                                                        ) {submitBash(aBeforeSystem, aBashPath, 1);}
+    public void submitBash(Task aBeforeSystem, String aBashPath,                    int aCoreNumber                    ) {submitBash(aBeforeSystem, aBashPath, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitBash(Task aBeforeSystem, String aBashPath,                    int aCoreNumber, String aOutputPath) {submitBash(aBeforeSystem, (Task) null, aBashPath, aCoreNumber, aOutputPath);}
+    public void submitBash(Task aBeforeSystem, String aBashPath, String aPartition                                     ) {submitBash(aBeforeSystem, aBashPath, aPartition, 1);}
+    public void submitBash(Task aBeforeSystem, String aBashPath, String aPartition, int aNodeNumber                    ) {submitBash(aBeforeSystem, aBashPath, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitBash(Task aBeforeSystem, String aBashPath, String aPartition, int aNodeNumber, String aOutputPath) {submitBash(aBeforeSystem, aBashPath, aNodeNumber, aOutputPath);}
+    
+    public void submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath                                                        ) {submitBash(aBeforeSystem, aAfterSystem, aBashPath, 1);}
+    public void submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath,                    int aCoreNumber                    ) {submitBash(aBeforeSystem, aAfterSystem, aBashPath, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath, String aPartition                                     ) {submitBash(aBeforeSystem, aAfterSystem, aBashPath, aPartition, 1);}
+    public void submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath, String aPartition, int aNodeNumber                    ) {submitBash(aBeforeSystem, aAfterSystem, aBashPath, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public void submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath, String aPartition, int aNodeNumber, String aOutputPath) {submitBash(aBeforeSystem, aAfterSystem, aBashPath, aNodeNumber, aOutputPath);}
+    public void submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath, int aCoreNumber, String aOutputPath) {submitSystem(aBeforeSystem, aAfterSystem, String.format("bash %s", aBashPath), aCoreNumber, aOutputPath);}
+    
+    public Task task_submitBash(String aBashPath                                                        ) {return task_submitBash(aBashPath, 1);}
+    public Task task_submitBash(String aBashPath,                    int aCoreNumber                    ) {return task_submitBash(aBashPath, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitBash(String aBashPath,                    int aCoreNumber, String aOutputPath) {return task_submitBash((Task) null, (Task) null, aBashPath, aCoreNumber, aOutputPath);}
+    public Task task_submitBash(String aBashPath, String aPartition                                     ) {return task_submitBash(aBashPath, aPartition, 1);}
+    public Task task_submitBash(String aBashPath, String aPartition, int aNodeNumber                    ) {return task_submitBash(aBashPath, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitBash(String aBashPath, String aPartition, int aNodeNumber, String aOutputPath) {return task_submitBash(aBashPath, aNodeNumber, aOutputPath);}
+    
+    public Task task_submitBash(Task aBeforeSystem, String aBashPath                                                        ) {return task_submitBash(aBeforeSystem, aBashPath, 1);}
+    public Task task_submitBash(Task aBeforeSystem, String aBashPath,                    int aCoreNumber                    ) {return task_submitBash(aBeforeSystem, aBashPath, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitBash(Task aBeforeSystem, String aBashPath,                    int aCoreNumber, String aOutputPath) {return task_submitBash(aBeforeSystem, (Task) null, aBashPath, aCoreNumber, aOutputPath);}
+    public Task task_submitBash(Task aBeforeSystem, String aBashPath, String aPartition                                     ) {return task_submitBash(aBeforeSystem, aBashPath, aPartition, 1);}
+    public Task task_submitBash(Task aBeforeSystem, String aBashPath, String aPartition, int aNodeNumber                    ) {return task_submitBash(aBeforeSystem, aBashPath, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitBash(Task aBeforeSystem, String aBashPath, String aPartition, int aNodeNumber, String aOutputPath) {return task_submitBash(aBeforeSystem, aBashPath, aNodeNumber, aOutputPath);}
+    
+    public Task task_submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath                                                        ) {return task_submitBash(aBeforeSystem, aAfterSystem, aBashPath, 1);}
+    public Task task_submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath,                    int aCoreNumber                    ) {return task_submitBash(aBeforeSystem, aAfterSystem, aBashPath, aCoreNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath, String aPartition                                     ) {return task_submitBash(aBeforeSystem, aAfterSystem, aBashPath, aPartition, 1);}
+    public Task task_submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath, String aPartition, int aNodeNumber                    ) {return task_submitBash(aBeforeSystem, aAfterSystem, aBashPath, aPartition, aNodeNumber, DEFAULT_OUTPUT_PATH);}
+    public Task task_submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath, String aPartition, int aNodeNumber, String aOutputPath) {return task_submitBash(aBeforeSystem, aAfterSystem, aBashPath, aNodeNumber, aOutputPath);}
+    // 本地的脚本不需要上传，因此直接序列化为对应的 submitSystem
+    public Task task_submitBash(Task aBeforeSystem, Task aAfterSystem, String aBashPath, int aCoreNumber, String aOutputPath) {return task_submitSystem(aBeforeSystem, aAfterSystem, String.format("bash %s", aBashPath), aCoreNumber, aOutputPath);}
+    
+    // 取消这个对象一共提交的所有任务，正在执行的进程会被结束
+    public Task task_cancelThis() {return new Task() {
+        @Override public boolean run() {cancelThis(); return true;}
+        @Override public String toString() {return Type.LOCAL_CANCEL_THIS.name();}
+    };}
+    public synchronized void cancelThis() {
+        if (mDead) throw new RuntimeException("Can NOT cancelThis from a Dead Local.");
+        mCommandList.clear(); mLostJobList.clear(); doMemberChange.run();
+        for (Job tJob : mJobIDList.values()) if (tJob.mProcess != null) destroy_(tJob);
+        mJobIDList.clear(); mUsedCore = 0; doMemberChange.run();
+        notifyAll();
+    }
+    // 和 ServerSLURM 的 cancelAll 对应，本地没有其他实例提交的任务，因此和 cancelThis 相同
+    public Task task_cancelAll() {return task_cancelThis();}
+    public void cancelAll() {cancelThis();}
+    
+    // 将加载前正在执行的任务重新放回队列的最前面执行（需要确认之前的进程已经结束并且指令可以重复执行），返回重新执行的任务数目
+    public synchronized int rerunLostJobs() {
+        if (mDead) throw new RuntimeException("Can NOT rerunLostJobs from a Dead Local.");
+        int rSize = mLostJobList.size();
+        ListIterator<Job> tIt = mCommandList.listIterator();
+        for (Job tJob : mLostJobList.values()) tIt.add(new Job(tJob.mCommand, tJob.mCoreNumber, tJob.mOutputPath, null, tJob.mAfterTask));
+        mLostJobList.clear(); doMemberChange.run();
+        notifyAll();
+        return rSize;
+    }
+    // 直接放弃加载前正在执行的任务，不会再执行它们的 afterTask
+    public synchronized void clearLostJobs() {
+        if (mDead) throw new RuntimeException("Can NOT clearLostJobs from a Dead Local.");
+        mLostJobList.clear(); doMemberChange.run();
+    }
+    
+    // 撤销上一步提交的任务（如果已经开始执行则会失败），返回撤销的指令
+    public synchronized String undo() {
+        Job tJob = mCommandList.pollLast(); doMemberChange.run();
+        return tJob==null ? null : tJob.mCommand;
+    }
+    
+    /// 提供 SystemThreadPool 的相关接口
+    public synchronized int getActiveCount() {return mJobIDList.size();}
+    public synchronized int getQueueSize() {return mCommandList.size();}
+    public synchronized int getUsedCoreNumber() {return mUsedCore;}
+    public int getCoreNumber() {return mCoreNumber;}
+    // 任务完成时会直接唤醒，不需要轮询
+    public synchronized void waitUntilDone() throws InterruptedException {while (!mJobIDList.isEmpty() || !mCommandList.isEmpty()) wait();}
+    public int getTaskNumber() {return getActiveCount() + getQueueSize();}
+    
+    public boolean awaitTermination() throws InterruptedException {return mPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);}
+    public synchronized int[] getActiveJobIDs() {
+        int[] tJobIDs = new int[mJobIDList.size()];
+        int i = 0;
+        for (int tJobID : mJobIDList.keySet()) {tJobIDs[i] = tJobID; ++i;}
+        return tJobIDs;
+    }
+    public synchronized int[] getLostJobIDs() {
+        int[] tJobIDs = new int[mLostJobList.size()];
+        int i = 0;
+        for (int tJobID : mLostJobList.keySet()) {tJobIDs[i] = tJobID; ++i;}
+        return tJobIDs;
+    }
+    public synchronized String[] getQueueCommands() {
+        String[] tCommands = new String[mCommandList.size()];
+        int i = 0;
+        for (Job tJob : mCommandList) {tCommands[i] = tJob.mCommand; ++i;}
+        return tCommands;
+    }
+    
+    
+    /// 提供一些基本内部类
+    // 队列中以及正在执行的任务，开始执行后才有任务号以及进程
+    static final class Job {
+        final String mCommand;
+        final int mCoreNumber;
+        final String mOutputPath;
+        Task mBeforeTask;
+        final Task mAfterTask;
+        int mJobID = -1;
+        Process mProcess = null;
+        int mProcessGroup = -1; // 任务所在的进程组号，用于结束整个进程树，不会保存到镜像
+        
+        Job(String aCommand, int aCoreNumber, String aOutputPath, Task aBeforeTask, Task aAfterTask) {
+            mCommand = aCommand; mCoreNumber = aCoreNumber; mOutputPath = aOutputPath; mBeforeTask = aBeforeTask; mAfterTask = aAfterTask;
+        }
+    }
+    
+    // 手动加载 UT，保证路径的正确性
+    static {UT.init();}
+}
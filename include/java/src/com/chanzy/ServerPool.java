@@ -0,0 +1,153 @@
+package com.chanzy;
+
+import com.chanzy.code.UT;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.chanzy.code.UT.Pair;
+
+/**
+ * @author CHanzy
+ * 将指令分发到多个 ssh 服务器上并发执行的线程池
+ * 每个服务器有各自的并发上限，新的指令会分配到负载（正在执行的数目 / 上限）最小的服务器，连接处于重连退避的服务器只在没有其他选择时使用
+ * 返回的 Future 包含执行的服务器以及执行的结果，可以通过 cancel(true) 取消
+ */
+public final class ServerPool {
+    private final static class Host {
+        final ServerSSH mSSH;
+        final int mLimit;
+        int mRunning = 0;
+        Host(ServerSSH aSSH, int aLimit) {mSSH = aSSH; mLimit = aLimit;}
+    }
+    private final static class Job implements Callable<Pair<ServerSSH, ServerSSH.ExecResult>> {
+        final String mCommand;
+        final long mTimeout;
+        volatile Host mHost = null; // 分配时才确定
+        Job(String aCommand, long aTimeout) {mCommand = aCommand; mTimeout = aTimeout;}
+        @Override public Pair<ServerSSH, ServerSSH.ExecResult> call() throws Exception {return new Pair<>(mHost.mSSH, mHost.mSSH.exec(mCommand, mTimeout));}
+    }
+    
+    private final List<Host> mHosts = new ArrayList<>();
+    private final LinkedList<Pair<Job, FutureTask<Pair<ServerSSH, ServerSSH.ExecResult>>>> mPending = new LinkedList<>();
+    private final ExecutorService mPool = UT.newCachedThreadPool("ServerPool", UT.Worker.IO);
+    private int mUnfinished = 0; // 还没有完成的指令数目，包括排队中的
+    private boolean mDead = false;
+    
+    public ServerPool() {}
+    public ServerPool(Collection<ServerSSH> aHosts, int aLimitPerHost) {for (ServerSSH tSSH : aHosts) addHost(tSSH, aLimitPerHost);}
+    
+    // 添加服务器以及此服务器同时执行的指令上限
+    public synchronized ServerPool addHost(ServerSSH aSSH, int aLimit) {
+        if (mDead) throw new RuntimeException("Can NOT addHost to a Dead ServerPool.");
+        mHosts.add(new Host(aSSH, Math.max(aLimit, 1)));
+        dispatch_();
+        return this;
+    }
+    
+    // 提交指令，aTimeout（ms）小于等于 0 表示不超时
+    public Future<Pair<ServerSSH, ServerSSH.ExecResult>> submit(String aCommand) {return submit(aCommand, 0);}
+    public synchronized Future<Pair<ServerSSH, ServerSSH.ExecResult>> submit(String aCommand, long aTimeout) {
+        if (mDead) throw new RejectedExecutionException("Can NOT submit to a Dead ServerPool.");
+        Job tJob = new Job(aCommand, aTimeout);
+        FutureTask<Pair<ServerSSH, ServerSSH.ExecResult>> tFuture = new FutureTask<>(tJob);
+        mPending.addLast(new Pair<>(tJob, tFuture));
+        ++mUnfinished;
+        dispatch_();
+        return tFuture;
+    }
+    public List<Future<Pair<ServerSSH, ServerSSH.ExecResult>>> submitAll(Collection<String> aCommands) {return submitAll(aCommands, 0);}
+    public synchronized List<Future<Pair<ServerSSH, ServerSSH.ExecResult>>> submitAll(Collection<String> aCommands, long aTimeout) {
+        List<Future<Pair<ServerSSH, ServerSSH.ExecResult>>> rFutures = new ArrayList<>(aCommands.size());
+        for (String tCommand : aCommands) rFutures.add(submit(tCommand, aTimeout));
+        return rFutures;
+    }
+    
+    // 获取还没有完成的指令数目（包括排队中的），以及每个服务器正在执行的指令数目
+    public synchronized int getTaskNumber() {return mUnfinished;}
+    public synchronized Map<ServerSSH, Integer> getRunningNumbers() {
+        Map<ServerSSH, Integer> rRunning = new LinkedHashMap<>();
+        for (Host tHost : mHosts) rRunning.put(tHost.mSSH, tHost.mRunning);
+        return rRunning;
+    }
+    
+    // 等待所有已经提交的指令完成，不需要轮询
+    public synchronized void waitUntilDone() throws InterruptedException {
+        while (mUnfinished > 0) wait();
+    }
+    // 关闭后不再接受新的指令，已经提交的指令依旧会执行完
+    public synchronized void shutdown() {
+        mDead = true;
+        if (mUnfinished == 0) mPool.shutdown();
+    }
+    // 取消排队中的指令并且中断正在执行的指令，返回没有执行的指令
+    public List<String> shutdownNow() {
+        List<String> rCommands = new ArrayList<>();
+        synchronized (this) {
+            mDead = true;
+            for (Pair<Job, FutureTask<Pair<ServerSSH, ServerSSH.ExecResult>>> tPair : mPending) {
+                tPair.second.cancel(false);
+                rCommands.add(tPair.first.mCommand);
+            }
+            mUnfinished -= mPending.size();
+            mPending.clear();
+            notifyAll();
+        }
+        mPool.shutdownNow();
+        return rCommands;
+    }
+    // 需要在 shutdown 之后调用，等待所有指令完成，超时返回 false
+    public boolean awaitTermination(long aTimeout, TimeUnit aUnit) throws InterruptedException {
+        long tDeadline = System.nanoTime() + aUnit.toNanos(aTimeout);
+        synchronized (this) {
+            while (mUnfinished > 0) {
+                long tRemain = tDeadline - System.nanoTime();
+                if (tRemain <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(this, tRemain);
+            }
+        }
+        mPool.shutdown();
+        return mPool.awaitTermination(Math.max(tDeadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+    }
+    
+    // 将排队中的指令分配到空闲的服务器上，需要在 synchronized 中调用
+    private void dispatch_() {
+        while (!mPending.isEmpty()) {
+            Pair<Job, FutureTask<Pair<ServerSSH, ServerSSH.ExecResult>>> tPair = mPending.peekFirst();
+            // 排队期间被取消的直接移除
+            if (tPair.second.isCancelled()) {mPending.pollFirst(); --mUnfinished; notifyAll(); continue;}
+            final Host tHost = leastLoaded_();
+            if (tHost == null) return;
+            mPending.pollFirst();
+            ++tHost.mRunning;
+            tPair.first.mHost = tHost;
+            final FutureTask<Pair<ServerSSH, ServerSSH.ExecResult>> tFuture = tPair.second;
+            try {
+                mPool.execute(() -> {try {tFuture.run();} finally {finish_(tHost);}});
+            } catch (RejectedExecutionException e) {
+                // shutdownNow 之后不会再执行
+                --tHost.mRunning; --mUnfinished; tFuture.cancel(false); notifyAll();
+            }
+        }
+        if (mDead && mUnfinished == 0) mPool.shutdown();
+    }
+    private synchronized void finish_(Host aHost) {
+        --aHost.mRunning;
+        --mUnfinished;
+        notifyAll();
+        dispatch_();
+    }
+    // 选择负载最小的服务器，没有空闲的服务器时返回 null
+    private Host leastLoaded_() {
+        Host rHost = null;
+        boolean rDown = true;
+        double rLoad = Double.MAX_VALUE;
+        for (Host tHost : mHosts) {
+            if (tHost.mRunning >= tHost.mLimit) continue;
+            boolean tDown = tHost.mSSH.isLinkDown();
+            double tLoad = tHost.mRunning / (double) tHost.mLimit;
+            if (rHost == null || (rDown && !tDown) || (rDown == tDown && tLoad < rLoad)) {rHost = tHost; rDown = tDown; rLoad = tLoad;}
+        }
+        return rHost;
+    }
+}
@@ -3,19 +3,21 @@ package com.chanzy;
 import com.chanzy.code.Decryptor;
 import com.chanzy.code.Encryptor;
 import com.chanzy.code.UT;
-import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.chanzy.code.UT.Pair;
@@ -30,11 +32,15 @@ import static com.chanzy.code.UT.Task;
 @SuppressWarnings({"UnusedReturnValue", "BusyWait"})
 public final class ServerSLURM {
     static final int DEFAULT_TOLERANT = 3;
+    static final String DEFAULT_OUTPUT_PATH = ".temp/slurm/out-%j";
+    public static final String REDUCE_LOGIN_NODE = "@login"; // 序列化 task_reduce 时表示在登录节点上执行的分区标记，不是合法的分区名称
+    static final int FOLLOW_BUFFER_SIZE = 65536; // 每次跟踪读取的最大字节数，同时也是单行缓存的上限
     
     private final ServerSSH mSSH;
     private final int mMaxJobNumber;
     private final int mMaxThisJobNumber; // 可能会存在共用的现象，可以单限制此对象同时运行的任务数目
     private final String mSqueueName; // 有些 SLURM 系统 squeue 的用户名和登录用户名不同
+    private final SqueueCache mSqueueCache; // 相同主机以及 squeue 用户名的实例共用的任务列表缓存
     
     private final Map<Integer, Pair<Task, Integer>> mJobIDList = new LinkedHashMap<>(); // <JobID, <afterTask, tolerant>>
     private final LinkedList<Pair<Pair<Task, Task>, String>> mCommandList = new LinkedList<>(); // <<beforeTask, afterTask>, command>
@@ -44,6 +50,11 @@ public final class ServerSLURM {
     private boolean mKilled = false; // 直接强制杀死提交进程
     
     private long mSleepTime = 500; // ms 设置更高的值可以降低检测的频率
+    // 任务输出文件的跟踪，所有跟踪共用一个线程和一个 sftp 通道
+    private final Map<Integer, String> mJobOutputPath = Collections.synchronizedMap(new HashMap<>()); // <JobID, outputPath>，只记录此次运行中提交的任务，不会保存
+    private final Map<Integer, OutputFollower> mFollowers = new LinkedHashMap<>(); // <JobID, follower>
+    private final ExecutorService mFollowPool = UT.newSingleThreadExecutor("ServerSLURM-follow", UT.Worker.IDLE);
+    private boolean mFollowing = false;
     // 各种提交任务的尝试次数类
     private final TolerantCounter mTolerantCounter = new TolerantCounter();
     // 保存提交的任务名称，不一定和真实的类名匹配（如果是 load 得到的）
@@ -114,7 +125,7 @@ public final class ServerSLURM {
         rJsonSLURM.put("MaxJobNumber", mMaxJobNumber);
         rJsonSLURM.put("SleepTime", mSleepTime);
         rJsonSLURM.put("JobName", mJobName);
-        rJsonSLURM.put("Tolerant", mTolerantCounter.mTolerant);
+        rJsonSLURM.put("Tolerant", mTolerantCounter.tolerant());
         
         if (mMaxThisJobNumber < mMaxJobNumber)
             rJsonSLURM.put("MaxThisJobNumber", mMaxThisJobNumber);
@@ -153,10 +164,9 @@ public final class ServerSLURM {
         
         // save 操作不自动解除暂停以防止重复提交
     }
-    public static ServerSLURM load(JSONObject aJson) throws Exception {
-        // 先加载 ssh
-        ServerSSH aSSH = ServerSSH.load((JSONObject) aJson.get("SSH"));
-        // 再加载 slurm
+    public static ServerSLURM load(JSONObject aJson) throws Exception {return load_(ServerSSH.load((JSONObject) aJson.get("SSH")), aJson);} // 先加载 ssh
+    // 使用已有的 ssh 加载 slurm，传入没有连接的 ssh 时可以用于不需要服务器的测试
+    static ServerSLURM load_(ServerSSH aSSH, JSONObject aJson) throws Exception {
         JSONObject tJsonSLURM = (JSONObject) aJson.get("SLURM");
         int aMaxJobNumber = ((Number) tJsonSLURM.get("MaxJobNumber")).intValue();
         long aSleepTime = ((Number) tJsonSLURM.get("SleepTime")).longValue();
@@ -206,8 +216,9 @@ public final class ServerSLURM {
         mMaxJobNumber = aMaxJobNumber;
         mMaxThisJobNumber = aMaxThisJobNumber;
         mSqueueName = aSqueueName;
-        // 初始化线程池
-        mPool = Executors.newSingleThreadExecutor();
+        mSqueueCache = SqueueCache.of(String.format("%s:%d|%s", mSSH.session().getHost(), mSSH.session().getPort(), mSqueueName));
+        // 初始化线程池，提交线程大部分时间都在休眠，开启虚拟线程时会使用虚拟线程
+        mPool = UT.newSingleThreadExecutor("ServerSLURM-submit", UT.Worker.IDLE);
         // 提交长期任务，不断从 mCmdList 获取指令并执行
         mPool.execute(this::keepSubmitFromList_);
     }
@@ -321,11 +332,13 @@ public final class ServerSLURM {
     public void shutdown() {
         mDead = true;
         mPool.shutdown();
+        mFollowPool.shutdown(); // 正在跟踪的输出会在任务完成后自动结束
     }
     public void shutdownNow() throws JSchException, IOException {
         cancelThis();
         mDead = true;
         mPool.shutdown();
+        mFollowPool.shutdown();
     }
     // 设置暂停，会挂起直到获得这个对象的锁，这样在外部调用后确实已经暂停，而在内部使用时不容易出现死锁
     public synchronized void pause() {mPause = true;}
@@ -340,6 +353,8 @@ public final class ServerSLURM {
         mKilled = true;
         mDead = true;
         mPool.shutdown();
+        unfollowAll();
+        mFollowPool.shutdown();
     }
     // 一些参数设置
     public ServerSLURM setSleepTime(long aSleepTime) {
@@ -350,8 +365,7 @@ public final class ServerSLURM {
     }
     public ServerSLURM setTolerant(int aTolerant) {
         if (mDead) throw new RuntimeException("Can NOT setTolerant from a Dead SLURM.");
-        mTolerantCounter.mTolerant = aTolerant;
-        mTolerantCounter.mUsedTolerant = Math.min(mTolerantCounter.mUsedTolerant, mTolerantCounter.mTolerant);
+        mTolerantCounter.setTolerant(aTolerant);
         doMemberChange.run(); return this;
     }
     public ServerSLURM setMirrorRemote(String aPath, String aRemotePath) {return setMirror(aPath, null, aRemotePath);}
@@ -393,6 +407,8 @@ public final class ServerSLURM {
             try {Thread.sleep(mSleepTime);} catch (InterruptedException e) {e.printStackTrace(); break;}
             // 如果已经暂停则直接跳过
             if (mPause) continue;
+            // 连接处于重连退避期间也直接跳过，避免在锁内等待一个已经断开的连接
+            if (mSSH.isLinkDown()) continue;
             // 开始提交任务相关事项，现在统一使用一个 this 锁来简化逻辑
             synchronized(this) {
                 // 如果已经暂停则直接跳过，并行特有的两次检测
@@ -414,33 +430,8 @@ public final class ServerSLURM {
                 // 获取正在执行的任务队列
                 Set<Integer> tJobIDs;
                 try {tJobIDs = jobIDs_();} catch (JSchException | IOException e) {continue;} // 获取失败则直接跳过重试
-                // 更新正在执行的任务列表
-                if (!mJobIDList.isEmpty()) {
-                    // 将不存在 JobIDs 中的计数减一，因为可能因为网络问题导致 jobIDs_ 获取的结果不一定正确
-                    for (Map.Entry<Integer, Pair<Task, Integer>> tEntry : mJobIDList.entrySet()) {
-                        if (!tJobIDs.contains(tEntry.getKey())) --(tEntry.getValue().second);
-                        else tEntry.getValue().second = DEFAULT_TOLERANT;
-                    }
-                    // 将计数小于 1 的移除
-                    final Iterator<Pair<Task, Integer>> tIt = mJobIDList.values().iterator();
-                    final boolean[] tAlive = {true};
-                    while (tAlive[0] && tIt.hasNext()) {
-                        Pair<Task, Integer> tPair = tIt.next();
-                        if (tPair.second < 0) {
-                            // 移除前先执行完成后的 task
-                            Task tAfterSystem = tPair.first;
-                            if (tAfterSystem != null) {
-                                boolean tSuc;
-                                try {tSuc = tAfterSystem.run();} catch (Exception e) {tSuc = false;}
-                                mTolerantCounter.call(tSuc, "running after task: "+tAfterSystem, () -> {tIt.remove(); doMemberChange.run();}, () -> tAlive[0] = false, () -> {tIt.remove(); doMemberChange.run();});
-                            } else {
-                                tIt.remove(); doMemberChange.run();
-                            }
-                        }
-                    }
-                    // 如果期间发生了不成功的现象，则 tAlive 为 false，不再进行后续操作并重试
-                    if (!tAlive[0]) continue;
-                }
+                // 更新正在执行的任务列表，如果期间发生了不成功的现象则不再进行后续操作并重试
+                if (!updateJobIDList_(tJobIDs)) continue;
                 // 准备提交任务，如果没有任务则跳过
                 if (mCommandList.isEmpty()) continue;
                 // 如果正在执行的任务列表超过限制，则不会提交
@@ -458,18 +449,16 @@ public final class ServerSLURM {
                     mTolerantCounter.call(tSuc, "running before task: "+tTasks.first, () -> {mCommandList.removeFirst(); doMemberChange.run();}, () -> {}, () -> {tTasks.first = null; doMemberChange.run();});
                     if (!tSuc) continue; // 只要不成功都需要跳过后续并重试
                 }
-                // 获取执行命令的通道
-                ChannelExec tChannelExec = null;
-                try {tChannelExec = mSSH.systemChannel(tCommand);} catch (JSchException ignored) {}
-                mTolerantCounter.call(tChannelExec != null, "get ChannelExec: "+tCommand, () -> {mCommandList.removeFirst(); doMemberChange.run();});
-                if (tChannelExec == null) continue; // 只要不成功都需要跳过后续并重试
-                // 提交命令并且获取任务号
-                int tJobID = getJobIDFromChannel_(tChannelExec);
+                // 提交命令并且获取任务号，开启持久 shell 时会直接在 shell 中提交
+                int tJobID;
+                try {tJobID = getJobID_(mSSH.exec(tCommand));} catch (JSchException | IOException e) {tJobID = -1;}
                 mTolerantCounter.call(tJobID > 0, "get JobID("+tJobID+"): "+tCommand, () -> {mCommandList.removeFirst(); doMemberChange.run();});
                 if (tJobID <= 0) continue; // 只要不成功都需要跳过后续并重试
                 // 成功获取，移出 mCommandList 并添加到 mJobIDList
                 mCommandList.removeFirst();
                 mJobIDList.put(tJobID, new Pair<>(tTasks.second, DEFAULT_TOLERANT));
+                mSqueueCache.add(tJobID); // 同步到共用的缓存，避免其他实例使用旧的结果而超过 mMaxJobNumber
+                mJobOutputPath.put(tJobID, outputPath_(tCommand, tJobID));
                 doMemberChange.run();
             }
         }
@@ -477,21 +466,66 @@ public final class ServerSLURM {
         mSSH.shutdown();
     }
     
-    // 从 aChannelExec 中获取任务号，返回小于零的值表示获取失败。会在内部开启通道来获得输出，因此获取完成后会直接关闭通道
-    static int getJobIDFromChannel_(ChannelExec aChannelExec) {
-        InputStream tIn;
-        try {tIn = aChannelExec.getInputStream();} catch (IOException e) {return -1;}
-        // 开启通道获取输出
-        try {aChannelExec.connect();} catch (JSchException e) {return -2;}
-        BufferedReader tReader = new BufferedReader(new InputStreamReader(tIn));
-        String tLine;
-        try {tLine = tReader.readLine();} catch (IOException e) {return -3;} // 只需要读取一行
-        try {tReader.close();} catch (IOException e) {return -4;}
-        // 会在内部关闭通道
-        aChannelExec.disconnect();
-        // 返回任务号
-        if (tLine != null && tLine.startsWith("Submitted batch job ")) return Integer.parseInt(tLine.substring(20));
-        return -5;
+    // 根据 squeue 的结果更新正在执行的任务列表，并执行已经完成的任务的 afterTask，需要在 this 锁内调用；afterTask 不成功时返回 false
+    boolean updateJobIDList_(Set<Integer> aJobIDs) {
+        if (mJobIDList.isEmpty()) return true;
+        // 将不存在 JobIDs 中的计数减一，因为可能因为网络问题导致 jobIDs_ 获取的结果不一定正确
+        for (Map.Entry<Integer, Pair<Task, Integer>> tEntry : mJobIDList.entrySet()) {
+            if (!aJobIDs.contains(tEntry.getKey())) --(tEntry.getValue().second);
+            else tEntry.getValue().second = DEFAULT_TOLERANT;
+        }
+        // 将计数小于 1 的移除
+        final Iterator<Pair<Task, Integer>> tIt = mJobIDList.values().iterator();
+        final boolean[] tAlive = {true};
+        while (tAlive[0] && tIt.hasNext()) {
+            Pair<Task, Integer> tPair = tIt.next();
+            if (tPair.second < 0) {
+                // 移除前先执行完成后的 task
+                Task tAfterSystem = tPair.first;
+                if (tAfterSystem != null) {
+                    boolean tSuc;
+                    try {tSuc = tAfterSystem.run();} catch (Exception e) {tSuc = false;}
+                    mTolerantCounter.call(tSuc, "running after task: "+tAfterSystem, () -> {tIt.remove(); doMemberChange.run();}, () -> tAlive[0] = false, () -> {tIt.remove(); doMemberChange.run();});
+                } else {
+                    tIt.remove(); doMemberChange.run();
+                }
+            }
+        }
+        // 已经结束的任务不再需要记录输出文件路径
+        mJobOutputPath.keySet().retainAll(mJobIDList.keySet());
+        return tAlive[0];
+    }
+    
+    // 从提交的指令中获取输出文件的路径（sbatch 的 --output 参数），并替换其中的 %j 和 %x，获取失败则使用默认路径
+    String outputPath_(String aCommand, int aJobID) {
+        String rPath = DEFAULT_OUTPUT_PATH;
+        // 用户的指令在 sbatch 之前，因此取最后一个 --output
+        int tIdx = aCommand.lastIndexOf(" --output ");
+        if (tIdx >= 0) {
+            tIdx += 10;
+            int tEnd = aCommand.indexOf(' ', tIdx);
+            rPath = tEnd < 0 ? aCommand.substring(tIdx) : aCommand.substring(tIdx, tEnd);
+        }
+        return rPath.replace("%j", String.valueOf(aJobID)).replace("%x", mJobName);
+    }
+    
+    // 从 sbatch 的结果中获取任务号，返回小于零的值表示获取失败（-2 为 sbatch 失败，-3 为无法解析输出）
+    // 现在提交时使用 --parsable，输出为 "jobid[;cluster]"，旧的镜像中保存的指令没有 --parsable，依旧支持 "Submitted batch job jobid" 的格式
+    // mBeforeCommand 可能也有输出，因此从最后一行开始查找
+    static int getJobID_(ServerSSH.ExecResult aResult) {
+        // 错误输出依旧输出到命令行（例如 sbatch 的警告）
+        if (aResult.stderrBytes().length > 0) System.err.print(aResult.stderr());
+        if (!aResult.isSuccess()) return -2;
+        List<String> tLines = aResult.stdoutLines();
+        for (int i = tLines.size()-1; i >= 0; --i) {
+            String tLine = tLines.get(i).trim();
+            if (tLine.startsWith("Submitted batch job ")) tLine = tLine.substring(20).trim();
+            int tEnd = tLine.indexOf(';');
+            if (tEnd >= 0) tLine = tLine.substring(0, tEnd);
+            if (tLine.isEmpty()) continue;
+            try {return Integer.parseInt(tLine);} catch (NumberFormatException ignored) {}
+        }
+        return -3;
     }
     // 获取创建输出文件所需要创建文件夹的 task，这里只用于减少重复代码
     Task task_validPath_(final String aPath) {
@@ -513,17 +547,9 @@ public final class ServerSLURM {
     boolean checkMirror_() throws JSchException, IOException, RuntimeException {
         // 直接通过在远程服务器上执行 cat 指令来读取镜像
         if (mMirrorPath == null || mRemoteMirrorPath == null) return true;
-        // systemChannel 内部已经尝试了重连
-        ChannelExec tChannelExec = mSSH.systemChannel(String.format("cat '%s'", mRemoteMirrorPath));
-        // 获取输出得到对应的镜像 owner
-        InputStream tIn = tChannelExec.getInputStream();
-        tChannelExec.connect();
-        BufferedReader tReader = new BufferedReader(new InputStreamReader(tIn));
-        LinkedList<String> tLines = new LinkedList<>();
-        String tLine;
-        while ((tLine = tReader.readLine()) != null) tLines.addLast(tLine);
-        // 读取完成关闭通道
-        tChannelExec.disconnect();
+        // 获取输出得到对应的镜像 owner，systemLines_ 内部已经尝试了重连
+        LinkedList<String> tLines = new LinkedList<>(mSSH.systemLines_(String.format("cat '%s'", mRemoteMirrorPath)));
+        String tLine = null;
         // 如果最后一行不是 END 说明输出流被打断或者不是标准镜像文件，不能确定是否合理，抛出异常
         while (!tLines.isEmpty()) {
             tLine = tLines.pollLast();
@@ -604,7 +630,7 @@ public final class ServerSLURM {
         // 需要创建输出目录的文件夹
         aBeforeSystem = UT.mergeTask(aBeforeSystem, task_validPath_(aOutputPath));
         // 组装指令
-        aCommand = String.format("echo -e '#!/bin/bash\\n%s' | sbatch --nodes %d --output %s --job-name %s", aCommand, aNodeNumber, aOutputPath, mJobName);
+        aCommand = String.format("echo -e '#!/bin/bash\\n%s' | sbatch --parsable --nodes %d --output %s --job-name %s", aCommand, aNodeNumber, aOutputPath, mJobName);
         if (aPartition != null && !aPartition.isEmpty()) aCommand += String.format(" --partition %s", aPartition);
         // 添加指令到队列
         mCommandList.addLast(new Pair<>(new Pair<>(aBeforeSystem, aAfterSystem), aCommand));
@@ -670,7 +696,7 @@ public final class ServerSLURM {
         // 并且需要上传脚本
         aBeforeSystem = UT.mergeTask(aBeforeSystem, mSSH.task_putFile(aBashPath));
         // 组装指令
-        String tCommand = String.format("sbatch --output %s --job-name %s", aOutputPath, mJobName);
+        String tCommand = String.format("sbatch --parsable --output %s --job-name %s", aOutputPath, mJobName);
         if (aPartition != null && !aPartition.isEmpty()) tCommand += String.format(" --partition %s", aPartition);
         if (aNodeNumber > 0) tCommand += String.format(" --nodes %d", aNodeNumber);
         tCommand += String.format(" %s", aBashPath);
@@ -824,21 +850,15 @@ public final class ServerSLURM {
     // 获取这个用户正在执行的任务，和这个类本身无关
     public int jobNumber() throws JSchException, IOException {if (mDead) throw new RuntimeException("Can NOT get jobNumber from a Dead SLURM."); return jobIDs().size();}
     // 获取这个用户正在执行的任务 ID 的列表
-    public Set<Integer> jobIDs() throws JSchException, IOException {if (mDead) throw new RuntimeException("Can NOT get jobIDs from a Dead SLURM."); return jobIDs_();}
-    Set<Integer> jobIDs_() throws JSchException, IOException {
+    public Set<Integer> jobIDs() throws JSchException, IOException {if (mDead) throw new RuntimeException("Can NOT get jobIDs from a Dead SLURM."); return new LinkedHashSet<>(jobIDs_());}
+    // 通过共用的缓存获取，结果的有效时间为 mSleepTime，过期时同一时刻只会有一个实例执行 squeue，返回的结果不可修改
+    Set<Integer> jobIDs_() throws JSchException, IOException {return mSqueueCache.get(mSleepTime, this::squeue_);}
+    Set<Integer> squeue_() throws JSchException, IOException {
         // 组装指令
         String tCommand = String.format("squeue --noheader --user %s --format %%i", mSqueueName);
-        // systemChannel 内部已经尝试了重连
-        ChannelExec tChannelExec = mSSH.systemChannel(tCommand);
-        // 获取输出得到任务数目
-        InputStream tIn = tChannelExec.getInputStream();
-        tChannelExec.connect();
-        BufferedReader tReader = new BufferedReader(new InputStreamReader(tIn));
+        // 获取输出得到任务数目，systemLines_ 内部已经尝试了重连
         Set<Integer> rJobIDs = new LinkedHashSet<>();
-        String tLine;
-        while ((tLine = tReader.readLine()) != null) rJobIDs.add(Integer.parseInt(tLine));
-        // 最后关闭通道
-        tChannelExec.disconnect();
+        for (String tLine : mSSH.systemLines_(tCommand)) rJobIDs.add(Integer.parseInt(tLine));
         return rJobIDs;
     }
     
@@ -851,7 +871,8 @@ public final class ServerSLURM {
         if (mDead) throw new RuntimeException("Can NOT cancelAll from a Dead SLURM.");
         mCommandList.clear(); doMemberChange.run();
         mSSH.system(String.format("scancel --user %s --full", mSqueueName));
-        mJobIDList.clear(); doMemberChange.run();
+        mSqueueCache.invalidate();
+        mJobIDList.clear(); mJobOutputPath.clear(); doMemberChange.run();
     }
     
     // 取消这个对象一共提交的所有任务
@@ -863,7 +884,41 @@ public final class ServerSLURM {
         if (mDead) throw new RuntimeException("Can NOT cancelThis from a Dead SLURM.");
         mCommandList.clear(); doMemberChange.run();
         mSSH.system(String.format("scancel --name %s", mJobName));
-        mJobIDList.clear(); doMemberChange.run();
+        mSqueueCache.invalidate();
+        mJobIDList.clear(); mJobOutputPath.clear(); doMemberChange.run();
+    }
+    
+    /**
+     * 在远程服务器上对已经完成的任务输出进行归约，只下载归约的结果而不是全部的输出
+     * 一般作为最后一个任务的 afterTask 使用（或者使用 mergeTask 和其他 task 合并），指令在 mRemoteWorkingDir 中执行
+     * 不指定分区时直接在登录节点上执行，指令执行失败（退出码非零）时会抛出错误
+     * 指定分区时（空字符串表示默认分区）会作为一个单节点的 sbatch 任务加入队列，不会等待资源分配，结果在任务完成后通过 afterTask 下载
+     * 因此分区版本的失败和其他任务一样只会按照 Tolerant 重试下载，aResultPath 为 null 时只执行指令不下载
+     */
+    public Task task_reduce(String aCommand, String aResultPath) {return task_reduce(aCommand, aResultPath, null);}
+    public Task task_reduce(final String aCommand, final String aResultPath, final String aPartition) {return new Task() {
+        @Override public boolean run() throws Exception {reduce(aCommand, aResultPath, aPartition); return true;}
+        // 指令中可能含有 : 以及括号，因此使用 base64 编码；分区是最后一项，getKeyValue_ 不会把最后一项的 "null" 转为 null，因此登录节点使用单独的标记
+        @Override public String toString() {return String.format("%s{%s:%s:%s}", Type.SLURM_REDUCE.name(), DatatypeConverter.printBase64Binary(aCommand.getBytes(StandardCharsets.UTF_8)), aResultPath, aPartition==null ? REDUCE_LOGIN_NODE : aPartition);}
+    };}
+    public void reduce(String aCommand, String aResultPath) throws JSchException, IOException, SftpException {reduce(aCommand, aResultPath, null);}
+    public void reduce(String aCommand, String aResultPath, String aPartition) throws JSchException, IOException, SftpException {
+        if (mDead) throw new RuntimeException("Can NOT reduce from a Dead SLURM.");
+        // 作为 afterTask 执行时持有 this 锁，srun 等待资源分配期间会阻塞整个队列，因此分区版本直接加入队列
+        if (aPartition != null) {submitReduce_(aCommand, aResultPath, aPartition); return;}
+        int tStatus = mSSH.systemStatus_(aCommand);
+        if (tStatus != 0) throw new RuntimeException(String.format("Reduce command fail(exit %d): %s", tStatus, aCommand));
+        // 只下载结果文件
+        if (aResultPath != null) mSSH.getFile(aResultPath);
+    }
+    
+    // 使用 --wrap 提交避免指令中的引号问题，--output 放在最后保证 outputPath_ 可以正确获取
+    synchronized void submitReduce_(String aCommand, String aResultPath, String aPartition) {
+        String tCommand = String.format("sbatch --parsable --nodes 1 --ntasks 1 --job-name %s", mJobName);
+        if (!aPartition.isEmpty()) tCommand += String.format(" --partition %s", aPartition);
+        tCommand += String.format(" --wrap %s --output %s", ServerSSH.quote_(aCommand), DEFAULT_OUTPUT_PATH);
+        mCommandList.addLast(new Pair<>(new Pair<>(task_validPath_(DEFAULT_OUTPUT_PATH), aResultPath==null ? null : mSSH.task_getFile(aResultPath)), tCommand));
+        doMemberChange.run();
     }
     
     // 撤销上一步提交的任务（如果已经交上去则会失败）
@@ -892,14 +947,225 @@ public final class ServerSLURM {
         for (Pair<Pair<Task, Task>, String> tPair : mCommandList) {tCommands[i] = tPair.second; ++i;}
         return tCommands;
     }
+
+    
+    /**
+     * 跟踪任务的输出文件，在任务运行期间增量地读取新的输出并传给回调
+     * 所有的跟踪共用一个线程和一个 sftp 通道，每隔 mSleepTime 检测一次文件大小，只读取新增的部分
+     * 每次每个任务最多读取 FOLLOW_BUFFER_SIZE 字节，回调直接在跟踪线程中执行，因此回调较慢时会自然地降低读取速度
+     * 任务结束（不在此对象的任务列表中）后会再读取一次剩余的输出然后自动停止跟踪
+     * 不指定输出路径时会使用提交时 --output 的路径，如果不是此次运行中提交的任务则使用默认的 .temp/slurm/out-%j
+     */
+    public interface IOutputListener {void onOutput(int aJobID, byte[] aData, int aLength);}
+    public interface ILineListener {void onLine(int aJobID, String aLine);}
+    public void followOutput(int aJobID,                     IOutputListener aListener) {followOutput(aJobID, null, aListener);}
+    public void followOutput(int aJobID, String aOutputPath, IOutputListener aListener) {follow_(aJobID, aOutputPath, aListener, null);}
+    public void followLines (int aJobID,                     ILineListener   aListener) {followLines(aJobID, null, aListener);}
+    public void followLines (int aJobID, String aOutputPath, ILineListener   aListener) {follow_(aJobID, aOutputPath, null, aListener);}
+    // 停止跟踪，不会再调用回调
+    public void unfollow(int aJobID) {synchronized (mFollowers) {mFollowers.remove(aJobID);}}
+    public void unfollowAll() {synchronized (mFollowers) {mFollowers.clear();}}
+    public boolean isFollowing(int aJobID) {synchronized (mFollowers) {return mFollowers.containsKey(aJobID);}}
+    
+    void follow_(int aJobID, String aOutputPath, IOutputListener aOutputListener, ILineListener aLineListener) {
+        if (mDead) throw new RuntimeException("Can NOT followOutput from a Dead SLURM.");
+        if (aOutputPath == null) {
+            aOutputPath = mJobOutputPath.get(aJobID);
+            if (aOutputPath == null) aOutputPath = DEFAULT_OUTPUT_PATH;
+        }
+        aOutputPath = aOutputPath.replace("%j", String.valueOf(aJobID)).replace("%x", mJobName);
+        // 和 ServerSSH 一致，相对路径是相对 mRemoteWorkingDir 的，JSch 不支持 ~
+        if (aOutputPath.startsWith("~/")) aOutputPath = aOutputPath.substring(2);
+        else if (!aOutputPath.startsWith("/")) aOutputPath = mSSH.mRemoteWorkingDir + aOutputPath;
+        synchronized (mFollowers) {
+            mFollowers.put(aJobID, new OutputFollower(aJobID, aOutputPath, aOutputListener, aLineListener));
+            if (!mFollowing) {mFollowing = true; mFollowPool.execute(this::keepFollowOutput_);}
+        }
+    }
+    // 内部的跟踪输出文件的循环，没有需要跟踪的任务时会结束，再次跟踪时重新开始
+    void keepFollowOutput_() {
+        ChannelSftp tChannelSftp = null;
+        byte[] tBuffer = new byte[FOLLOW_BUFFER_SIZE];
+        try {
+            while (true) {
+                List<OutputFollower> tFollowers;
+                synchronized (mFollowers) {
+                    if (mFollowers.isEmpty()) {mFollowing = false; break;}
+                    tFollowers = new ArrayList<>(mFollowers.values());
+                }
+                // 连接处于重连退避期间直接跳过，此时获取不到正在执行的任务，不能据此结束跟踪
+                if (mSSH.isLinkDown()) {
+                    try {Thread.sleep(mSleepTime);} catch (InterruptedException e) {e.printStackTrace(); synchronized (mFollowers) {mFollowing = false;} break;}
+                    continue;
+                }
+                // 先获取正在执行的任务，不在其中的任务在本次读取后结束跟踪
+                Set<Integer> tActiveJobIDs = new HashSet<>();
+                for (int tJobID : getActiveJobIDs()) tActiveJobIDs.add(tJobID);
+                // 需要时才开启通道，断开后下次循环会重新开启
+                if (tChannelSftp == null || !tChannelSftp.isConnected()) {
+                    try {
+                        if (!mSSH.isConnecting()) mSSH.connect();
+                        tChannelSftp = (ChannelSftp) mSSH.session().openChannel("sftp");
+                        tChannelSftp.connect(mSSH.mChannelTimeout);
+                    } catch (JSchException e) {
+                        tChannelSftp = null;
+                    }
+                }
+                for (OutputFollower tFollower : tFollowers) {
+                    boolean tFinal = !tActiveJobIDs.contains(tFollower.mJobID);
+                    if (tChannelSftp != null) {
+                        try {
+                            tFollower.read(tChannelSftp, tBuffer, tFinal);
+                        } catch (SftpException e) {
+                            // 文件还不存在（例如任务还在排队）时直接跳过
+                            if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {tChannelSftp.disconnect(); tChannelSftp = null;}
+                        } catch (IOException e) {
+                            tChannelSftp.disconnect(); tChannelSftp = null;
+                        }
+                    }
+                    // 结束的任务在读取完成后移除，读取失败也会移除，避免一直跟踪不存在的文件
+                    if (tFinal) {
+                        tFollower.flushLine();
+                        synchronized (mFollowers) {mFollowers.remove(tFollower.mJobID, tFollower);}
+                    }
+                }
+                try {Thread.sleep(mSleepTime);} catch (InterruptedException e) {e.printStackTrace(); synchronized (mFollowers) {mFollowing = false;} break;}
+            }
+        } finally {
+            if (tChannelSftp != null) tChannelSftp.disconnect();
+        }
+    }
     
     
     /// 提供一些基本内部类
+    // 相同主机以及 squeue 用户名共用的任务列表缓存，所有实例得到的 squeue 结果相同，因此在有效时间内直接共用；
+    // 过期后同一时刻只会有一个调用者执行 squeue，其余调用者等待并共用这次的结果，各个实例的任务数目限制依旧各自判断
+    static final class SqueueCache {
+        interface IFetcher {Set<Integer> fetch() throws JSchException, IOException;}
+        private final static Map<String, SqueueCache> CACHES = new HashMap<>();
+        static SqueueCache of(String aKey) {synchronized (CACHES) {return CACHES.computeIfAbsent(aKey, key -> new SqueueCache());}}
+        
+        private Set<Integer> mJobIDs = null;
+        private long mTime = 0; // 获取结果的 squeue 开始执行的时间
+        private boolean mFetching = false;
+        private long mFetchCount = 0; // 用于等待者判断自己等待的那次获取是否已经完成
+        private Exception mFetchError = null;
+        private final Set<Integer> mAddedWhileFetching = new HashSet<>(); // 获取期间提交的任务，squeue 的结果中可能还没有
+        
+        Set<Integer> get(long aMaxAge, IFetcher aFetcher) throws JSchException, IOException {
+            synchronized (this) {
+                if (mJobIDs != null && System.currentTimeMillis()-mTime < aMaxAge) return mJobIDs;
+                if (mFetching) {
+                    long tFetchCount = mFetchCount;
+                    while (mFetching && mFetchCount == tFetchCount) {
+                        try {wait();} catch (InterruptedException e) {Thread.currentThread().interrupt(); throw new InterruptedIOException("Interrupted while waiting for squeue");}
+                    }
+                    if (mFetchError != null) throw new IOException("Shared squeue failed", mFetchError);
+                    return mJobIDs;
+                }
+                mFetching = true;
+            }
+            long tStart = System.currentTimeMillis();
+            Set<Integer> tJobIDs = null;
+            Exception tError = null;
+            try {
+                tJobIDs = Collections.unmodifiableSet(aFetcher.fetch());
+            } catch (JSchException | IOException | RuntimeException e) {
+                tError = e;
+                throw e;
+            } finally {
+                synchronized (this) {
+                    if (tJobIDs != null) {
+                        if (!mAddedWhileFetching.isEmpty() && !tJobIDs.containsAll(mAddedWhileFetching)) {
+                            Set<Integer> tMerged = new LinkedHashSet<>(tJobIDs);
+                            tMerged.addAll(mAddedWhileFetching);
+                            tJobIDs = Collections.unmodifiableSet(tMerged);
+                        }
+                        mJobIDs = tJobIDs; mTime = tStart;
+                    }
+                    mAddedWhileFetching.clear();
+                    mFetchError = tError;
+                    mFetching = false;
+                    ++mFetchCount;
+                    notifyAll();
+                }
+            }
+            return tJobIDs;
+        }
+        // 提交成功后添加到缓存的结果中，取消任务后直接让缓存失效
+        synchronized void add(int aJobID) {
+            if (mFetching) mAddedWhileFetching.add(aJobID);
+            if (mJobIDs == null || mJobIDs.contains(aJobID)) return;
+            Set<Integer> tJobIDs = new LinkedHashSet<>(mJobIDs);
+            tJobIDs.add(aJobID);
+            mJobIDs = Collections.unmodifiableSet(tJobIDs);
+        }
+        synchronized void invalidate() {mJobIDs = null;}
+    }
+    // 单个任务输出文件的跟踪器，记录已经读取的位置以及还未结束的行
+    static class OutputFollower {
+        final int mJobID;
+        final String mRemotePath;
+        private final IOutputListener mOutputListener;
+        private final ILineListener mLineListener;
+        private long mOffset = 0;
+        private final ByteArrayOutputStream mLine = new ByteArrayOutputStream();
+        
+        OutputFollower(int aJobID, String aRemotePath, IOutputListener aOutputListener, ILineListener aLineListener) {
+            mJobID = aJobID; mRemotePath = aRemotePath; mOutputListener = aOutputListener; mLineListener = aLineListener;
+        }
+        
+        // 读取新增的输出，aFinal 时会一直读取到文件末尾，否则单次最多读取 aBuffer.length 字节
+        void read(ChannelSftp aChannelSftp, byte[] aBuffer, boolean aFinal) throws SftpException, IOException {
+            long tSize = aChannelSftp.stat(mRemotePath).getSize();
+            if (tSize < mOffset) mOffset = 0; // 文件被截断或者重写，从头开始读取
+            if (tSize == mOffset) return;
+            try (InputStream tIn = aChannelSftp.get(mRemotePath, null, mOffset)) {
+                int tRead;
+                do {
+                    int tPos = 0;
+                    while (tPos < aBuffer.length && (tRead = tIn.read(aBuffer, tPos, aBuffer.length-tPos)) > 0) tPos += tRead;
+                    if (tPos == 0) break;
+                    mOffset += tPos;
+                    deliver_(aBuffer, tPos);
+                    if (tPos < aBuffer.length) break;
+                } while (aFinal);
+            }
+        }
+        // 直接输出剩下没有换行的部分
+        void flushLine() {
+            if (mLine.size() > 0) onLine_();
+        }
+        
+        private void deliver_(byte[] aData, int aLength) {
+            if (mOutputListener != null) {
+                try {mOutputListener.onOutput(mJobID, aData, aLength);} catch (Exception e) {e.printStackTrace();}
+            }
+            if (mLineListener != null) {
+                int tStart = 0;
+                for (int i = 0; i < aLength; ++i) if (aData[i] == '\n') {
+                    mLine.write(aData, tStart, i-tStart); tStart = i+1;
+                    onLine_();
+                }
+                mLine.write(aData, tStart, aLength-tStart);
+                // 限制单行缓存的大小，过长的行直接分段输出
+                if (mLine.size() >= aData.length) onLine_();
+            }
+        }
+        private void onLine_() {
+            String tLine = new String(mLine.toByteArray(), StandardCharsets.UTF_8);
+            mLine.reset();
+            if (tLine.endsWith("\r")) tLine = tLine.substring(0, tLine.length()-1);
+            try {mLineListener.onLine(mJobID, tLine);} catch (Exception e) {e.printStackTrace();}
+        }
+    }
     // 容忍次数计数器，可以通过重写输入的 Runnable 来实现具体的操作
     static class TolerantCounter {
         private int mTolerant = DEFAULT_TOLERANT;
         private int mUsedTolerant = 0;
         
+        public int tolerant() {return mTolerant;}
+        public void setTolerant(int aTolerant) {mTolerant = aTolerant; mUsedTolerant = Math.min(mUsedTolerant, mTolerant);}
         public void call(boolean aSuc, String aPrint, Runnable doOverTolerant) {call(aSuc, aPrint, doOverTolerant, () -> {}, () -> {});}
         public void call(boolean aSuc, String aPrint, Runnable doOverTolerant, Runnable doUnsuccess, Runnable doSuccess) {
             if (!aSuc) {
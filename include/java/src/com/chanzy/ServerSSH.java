@@ -2,20 +2,33 @@ package com.chanzy;
 
 import com.chanzy.code.Decryptor;
 import com.chanzy.code.Encryptor;
+import com.chanzy.code.TarReader;
+import com.chanzy.code.TarWriter;
 import com.chanzy.code.UT;
 import com.jcraft.jsch.*;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Vector;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import static com.chanzy.code.UT.Pair;
 import static com.chanzy.code.UT.Task;
 
 /**
@@ -36,7 +49,7 @@ public final class ServerSSH {
     String mRemoteWorkingDir;
     // jsch stuffs
     final JSch mJsch;
-    private Session mSession;
+    private Link mLink;
     // 为了实现断开重连需要暂存密码
     private String mPassword = null;
     // 暂存密钥路径以供保存和加载
@@ -45,6 +58,68 @@ public final class ServerSSH {
     private String mBeforeCommand = null;
     // 记录是否已经被关闭
     private boolean mDead = false;
+    // 传输文件时是否开启断点续传，以及续传前需要校验的尾部字节数（小于等于 0 表示只比较文件大小）
+    private boolean mResume = false;
+    private int mResumeCheckSize = 0;
+    // 尾部校验的最大长度，校验需要额外下载这部分数据，过大没有意义；比较时分块读取，因此内存占用只有 RESUME_CHECK_BUFFER_SIZE
+    private final static int MAX_RESUME_CHECK_SIZE = 16*1024*1024, RESUME_CHECK_BUFFER_SIZE = 64*1024;
+    // 传输文件时是否先写入临时文件，完成后再重命名，保证读取者不会看到写了一半的文件
+    private boolean mTempRename = false;
+    // 增量同步时对于大小相同但是修改时间不同的文件是否进一步比较 sha256 来判断是否需要传输
+    private boolean mSyncHash = false;
+    // 增量上传时缓存上次同步结果的本地目录，为 null 表示不缓存（每次都需要遍历远程目录）
+    private String mSyncCacheDir_ = null;
+    private String mSyncCacheDir = null;
+    // tar 流传输是否使用 gzip 压缩，以及自动使用 tar 流传输的平均文件大小阈值（小于等于 0 表示不自动使用）
+    private boolean mTarCompress = false;
+    private long mTarThreshold = 0;
+    // 远程路径状态的缓存，减少重复的 stat，缓存的有效时间为 mAttrCacheTTL（ms），小于等于 0 表示不使用缓存
+    private final static long DEFAULT_ATTR_CACHE_TTL = 10000;
+    private long mAttrCacheTTL = DEFAULT_ATTR_CACHE_TTL;
+    private final AttrCache mAttrCache = new AttrCache();
+    // 上传时是否使用远程的内容寻址缓存（存储在 CAS_DIR 中，以 sha256 命名），以及是否使用硬链接而不是复制来生成目标文件
+    private final static String CAS_DIR = ".temp/cas/";
+    private boolean mContentCache = false;
+    private boolean mContentCacheHardLink = false;
+    // 自动压缩，并行传输前估计数据的可压缩性和链路速度，值得压缩时使用单独的压缩 session 传输，这样主 session 不需要 rekey
+    private final static int AUTO_COMPRESSION_LEVEL = 6;
+    private boolean mAutoCompression = false;
+    private Session mZipSession = null;
+    private final AtomicLong mTransferBytes = new AtomicLong(0); // 统计开启自动压缩后传输的数据量，用于测量链路速度
+    private volatile double mLinkSpeed = -1; // byte/ms，不压缩传输时测量到的链路速度，小于 0 表示还没有测量
+    private final static long LINK_SPEED_PROBE_SIZE = 2*1024*1024; // 还没有测量链路速度时使用主 session 探测一次的数据量
+    // 加密算法，MAC 以及密钥交换算法的优先列表（逗号分隔），null 表示使用 jsch 的默认值
+    private String mCiphers = null;
+    private String mMacs = null;
+    private String mKex = null;
+    // 保活探测的间隔（ms）以及最大无应答次数，超过后认为连接已经断开（jsch 也会用这个间隔作为 socket 的读取超时）；小于等于 0 表示不探测
+    private final static int DEFAULT_SERVER_ALIVE_INTERVAL = 15000, DEFAULT_SERVER_ALIVE_COUNT_MAX = 3;
+    private int mServerAliveInterval = DEFAULT_SERVER_ALIVE_INTERVAL;
+    private int mServerAliveCountMax = DEFAULT_SERVER_ALIVE_COUNT_MAX;
+    // session 连接以及 channel 打开的超时（ms），小于等于 0 表示不超时
+    private final static int DEFAULT_CONNECT_TIMEOUT = 30000, DEFAULT_CHANNEL_TIMEOUT = 30000;
+    private int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    int mChannelTimeout = DEFAULT_CHANNEL_TIMEOUT;
+    // 重连失败后的指数退避，退避期间 connect 会直接失败而不会再次尝试连接
+    private final static long MAX_RECONNECT_DELAY = 60000;
+    // 是否和其他用户，主机，端口，认证以及连接设置都相同的实例共享连接，工作目录等其余设置依旧是每个实例独立的
+    private boolean mShareSession = false;
+    // 共享连接的注册表，相同的键最多建立 SHARE_POOL_SIZE 个连接（避免超过服务器单个连接的 MaxSessions），之后的实例会加入引用最少的连接
+    private final static Map<String, List<Link>> SHARED_LINKS = new HashMap<>();
+    private static boolean SHARE_SESSION = false;
+    private static int SHARE_POOL_SIZE = 1;
+    // 执行控制指令使用的持久 shell 的最大数目，小于等于 0 表示不使用（每个指令单独开启 exec 通道）
+    private int mShellNumber = 0;
+    private final LinkedBlockingQueue<ControlShell> mIdleShells = new LinkedBlockingQueue<>();
+    private int mShellCount = 0; // 已经创建的 shell 数目，包括正在使用的
+    private long mShellGeneration = 0; // 设置改变后增加，旧的 shell 归还时会直接关闭
+    private volatile String mLoginShell = null; // 远程用户的登录 shell，null 表示还没有检测，空字符串表示不兼容 POSIX sh 的语法（例如 csh，fish），此时不使用持久 shell
+    private final static String[] POSIX_SHELLS = {"sh", "bash", "zsh", "ksh", "mksh", "dash", "ash", "yash"};
+    private final static long SHELL_WAIT_TIME = 200;
+    // exec 获取结果时标准输出和错误输出各自最多保存的字节数，超过的部分会被丢弃并标记为截断
+    private final static int DEFAULT_EXEC_BUFFER_SIZE = 4*1024*1024;
+    private ExecutorService mExecPool = null; // execAsync 使用的线程池，需要时才创建
+    private final static ScheduledExecutorService EXEC_WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {Thread t = new Thread(r, "ServerSSH-exec-watchdog"); t.setDaemon(true); return t;});
     
     /// hooks, 修改这个来实现重写，我也不知道这个方法是不是合理
     // 发生内部参数改变都需要调用一下这个函数
@@ -102,8 +177,51 @@ public final class ServerSSH {
         if (!session().getConfig("compression.c2s").equals("none")) tCompressLevel = Integer.parseInt(session().getConfig("compression_level"));
         if (tCompressLevel > 0)
             rJson.put("CompressLevel", tCompressLevel);
+        
+        if (mResume)
+            rJson.put("Resume", true);
+        if (mResume && mResumeCheckSize > 0)
+            rJson.put("ResumeCheckSize", mResumeCheckSize);
+        if (mTempRename)
+            rJson.put("TempRename", true);
+        if (mSyncHash)
+            rJson.put("SyncHash", true);
+        if (mSyncCacheDir_ != null)
+            rJson.put("SyncCacheDir", mSyncCacheDir_);
+        if (mTarCompress)
+            rJson.put("TarCompress", true);
+        if (mTarThreshold > 0)
+            rJson.put("TarThreshold", mTarThreshold);
+        if (mAttrCacheTTL != DEFAULT_ATTR_CACHE_TTL)
+            rJson.put("AttrCacheTTL", mAttrCacheTTL);
+        if (mContentCache)
+            rJson.put("ContentCache", true);
+        if (mContentCacheHardLink)
+            rJson.put("ContentCacheHardLink", true);
+        if (mAutoCompression)
+            rJson.put("AutoCompression", true);
+        if (mCiphers != null)
+            rJson.put("Ciphers", mCiphers);
+        if (mMacs != null)
+            rJson.put("Macs", mMacs);
+        if (mKex != null)
+            rJson.put("Kex", mKex);
+        if (mServerAliveInterval != DEFAULT_SERVER_ALIVE_INTERVAL)
+            rJson.put("ServerAliveInterval", mServerAliveInterval);
+        if (mServerAliveCountMax != DEFAULT_SERVER_ALIVE_COUNT_MAX)
+            rJson.put("ServerAliveCountMax", mServerAliveCountMax);
+        if (mConnectTimeout != DEFAULT_CONNECT_TIMEOUT)
+            rJson.put("ConnectTimeout", mConnectTimeout);
+        if (mChannelTimeout != DEFAULT_CHANNEL_TIMEOUT)
+            rJson.put("ChannelTimeout", mChannelTimeout);
+        if (mShareSession)
+            rJson.put("ShareSession", true);
+        if (mShellNumber > 0)
+            rJson.put("PersistentShell", mShellNumber);
     }
-    public static ServerSSH load(JSONObject aJson) throws Exception {
+    public static ServerSSH load(JSONObject aJson) throws Exception {return load_(aJson).init_(aJson.containsKey("ShareSession") ? (Boolean) aJson.get("ShareSession") : SHARE_SESSION);}
+    // 只读取设置而不进行连接，主要用于不需要服务器的测试
+    static ServerSSH load_(JSONObject aJson) throws Exception {
         String aUsername = (String) aJson.get("Username");
         String aHostname = (String) aJson.get("Hostname");
         int aPort = ((Number) aJson.get("Port")).intValue();
@@ -117,13 +235,26 @@ public final class ServerSSH {
         if (aJson.containsKey("Password"))         aPassword         = (String) aJson.get("Password");
         if (aJson.containsKey("KeyPath"))          aKeyPath          = (String) aJson.get("KeyPath");
         
+        // 先创建不连接的实例，设置完成后再连接，这样共享连接时可以直接根据最终的设置加入已有的连接
         ServerSSH rServerSSH;
-        if (aPassword!=null) rServerSSH = getPassword(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, aPort, aPassword);
-        else if (aKeyPath!=null) rServerSSH = getKey(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, aPort, aKeyPath);
-        else rServerSSH = get(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, aPort);
+        if (aPassword!=null) rServerSSH = createPassword_(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, aPort, aPassword);
+        else rServerSSH = createKey_(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, aPort, aKeyPath!=null ? aKeyPath : System.getProperty("user.home")+"/.ssh/id_rsa");
         
         if (aJson.containsKey("CompressLevel")) rServerSSH.setCompressionLevel(((Number) aJson.get("CompressLevel")).intValue());
         if (aJson.containsKey("BeforeCommand")) rServerSSH.setBeforeSystem((String) aJson.get("BeforeCommand"));
+        if (aJson.containsKey("Resume")) rServerSSH.setResume((Boolean) aJson.get("Resume"), aJson.containsKey("ResumeCheckSize") ? ((Number) aJson.get("ResumeCheckSize")).intValue() : 0);
+        if (aJson.containsKey("TempRename")) rServerSSH.setTempRename((Boolean) aJson.get("TempRename"));
+        if (aJson.containsKey("SyncHash")) rServerSSH.setSyncHash((Boolean) aJson.get("SyncHash"));
+        if (aJson.containsKey("SyncCacheDir")) rServerSSH.setSyncCacheDir((String) aJson.get("SyncCacheDir"));
+        if (aJson.containsKey("TarCompress")) rServerSSH.setTarCompress((Boolean) aJson.get("TarCompress"));
+        if (aJson.containsKey("TarThreshold")) rServerSSH.setTarThreshold(((Number) aJson.get("TarThreshold")).longValue());
+        if (aJson.containsKey("AttrCacheTTL")) rServerSSH.setAttrCacheTTL(((Number) aJson.get("AttrCacheTTL")).longValue());
+        if (aJson.containsKey("ContentCache")) rServerSSH.setContentCache((Boolean) aJson.get("ContentCache"), aJson.containsKey("ContentCacheHardLink") && (Boolean) aJson.get("ContentCacheHardLink"));
+        if (aJson.containsKey("AutoCompression")) rServerSSH.setAutoCompression((Boolean) aJson.get("AutoCompression"));
+        if (aJson.containsKey("Ciphers") || aJson.containsKey("Macs") || aJson.containsKey("Kex")) rServerSSH.setAlgorithms((String) aJson.get("Ciphers"), (String) aJson.get("Macs"), (String) aJson.get("Kex"));
+        if (aJson.containsKey("ServerAliveInterval") || aJson.containsKey("ServerAliveCountMax")) rServerSSH.setServerAlive(aJson.containsKey("ServerAliveInterval") ? ((Number) aJson.get("ServerAliveInterval")).intValue() : DEFAULT_SERVER_ALIVE_INTERVAL, aJson.containsKey("ServerAliveCountMax") ? ((Number) aJson.get("ServerAliveCountMax")).intValue() : DEFAULT_SERVER_ALIVE_COUNT_MAX);
+        if (aJson.containsKey("ConnectTimeout") || aJson.containsKey("ChannelTimeout")) rServerSSH.setTimeout(aJson.containsKey("ConnectTimeout") ? ((Number) aJson.get("ConnectTimeout")).intValue() : DEFAULT_CONNECT_TIMEOUT, aJson.containsKey("ChannelTimeout") ? ((Number) aJson.get("ChannelTimeout")).intValue() : DEFAULT_CHANNEL_TIMEOUT);
+        if (aJson.containsKey("PersistentShell")) rServerSSH.setPersistentShell(((Number) aJson.get("PersistentShell")).intValue());
         
         return rServerSSH;
     }
@@ -131,8 +262,9 @@ public final class ServerSSH {
     /// 构造函数以及获取方式（用来区分私钥登录以及密码登录）
     private ServerSSH(String aUsername, String aHostname, int aPort) {
         mJsch = new JSch();
-        try {mSession = mJsch.getSession(aUsername, aHostname, aPort);} catch (JSchException e) {throw new RuntimeException(e);}
+        try {mLink = new Link(mJsch.getSession(aUsername, aHostname, aPort));} catch (JSchException e) {throw new RuntimeException(e);}
         session().setConfig("StrictHostKeyChecking", "no");
+        applyServerAlive_(session());
     }
     // 不提供密码则认为是私钥登录，提供密码则认为是密码登录，可能存在歧义的情况则会有 getPassword 方法专门指明
     public static ServerSSH get        (String aUsername, String aHostname                             ) {return get        (aUsername, aHostname, 22);}
@@ -156,23 +288,30 @@ public final class ServerSSH {
     public static ServerSSH get        (String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname,            String aPassword) {return getPassword(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, aPassword);}
     public static ServerSSH get        (String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname, int aPort, String aPassword) {return getPassword(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, aPort, aPassword);}
     public static ServerSSH getPassword(String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname,            String aPassword) {return getPassword(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, 22, aPassword);}
-    public static ServerSSH getPassword(String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname, int aPort, String aPassword) {
+    public static ServerSSH getPassword(String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname, int aPort, String aPassword) {return createPassword_(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, aPort, aPassword).init_(SHARE_SESSION);}
+    public static ServerSSH getKey     (String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname,            String aKeyPath) {return getKey(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, 22, aKeyPath);}
+    public static ServerSSH getKey     (String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname, int aPort, String aKeyPath) {return createKey_(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, aPort, aKeyPath).init_(SHARE_SESSION);}
+    // 创建还没有连接的实例
+    private static ServerSSH createPassword_(String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname, int aPort, String aPassword) {
         ServerSSH rServerSSH = new ServerSSH(aUsername, aHostname, aPort).setLocalWorkingDir(aLocalWorkingDir).setRemoteWorkingDir(aRemoteWorkingDir);
-        rServerSSH.mSession.setPassword(aPassword);
+        rServerSSH.session().setPassword(aPassword);
         rServerSSH.mPassword = aPassword;
-        rServerSSH.mSession.setConfig("PreferredAuthentications", "password");
-        try {rServerSSH.mSession.connect();} catch (JSchException e) {e.printStackTrace();}
+        rServerSSH.session().setConfig("PreferredAuthentications", "password");
         return rServerSSH;
     }
-    public static ServerSSH getKey     (String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname,            String aKeyPath) {return getKey(aLocalWorkingDir, aRemoteWorkingDir, aUsername, aHostname, 22, aKeyPath);}
-    public static ServerSSH getKey     (String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname, int aPort, String aKeyPath) {
+    private static ServerSSH createKey_(String aLocalWorkingDir, String aRemoteWorkingDir, String aUsername, String aHostname, int aPort, String aKeyPath) {
         ServerSSH rServerSSH = new ServerSSH(aUsername, aHostname, aPort).setLocalWorkingDir(aLocalWorkingDir).setRemoteWorkingDir(aRemoteWorkingDir);
         try {rServerSSH.mJsch.addIdentity(aKeyPath);} catch (JSchException e) {e.printStackTrace();}
         rServerSSH.mKeyPath = aKeyPath;
-        rServerSSH.mSession.setConfig("PreferredAuthentications", "publickey");
-        try {rServerSSH.mSession.connect();} catch (JSchException e) {e.printStackTrace();}
+        rServerSSH.session().setConfig("PreferredAuthentications", "publickey");
         return rServerSSH;
     }
+    // 根据需要加入共享的连接，然后尝试连接（共享的连接已经连接时不会重复连接）
+    private ServerSSH init_(boolean aShare) {
+        if (aShare) {mShareSession = true; share_();}
+        try {connect();} catch (JSchException e) {e.printStackTrace();}
+        return this;
+    }
     // 修改本地路径和远程路径
     public ServerSSH setLocalWorkingDir(String aLocalWorkingDir) {
         if (mDead) throw new RuntimeException("Can NOT setLocalWorkingDir from a Dead SSH.");
@@ -191,14 +330,15 @@ public final class ServerSSH {
         if (!aRemoteWorkingDir.isEmpty() && !aRemoteWorkingDir.endsWith("/") && !aRemoteWorkingDir.endsWith("\\")) aRemoteWorkingDir += "/";
         if (aRemoteWorkingDir.startsWith("~/")) aRemoteWorkingDir = aRemoteWorkingDir.substring(2); // JSch 不支持 ~
         mRemoteWorkingDir = aRemoteWorkingDir;
+        closeShells_(); // 持久 shell 启动时所在的目录已经改变
         doMemberChange.run();
         return this;
     }
     // 设置数据传输的压缩等级
     public ServerSSH setCompressionLevel(int aCompressionLevel) throws Exception {
         if (mDead) throw new RuntimeException("Can NOT setCompressionLevel from a Dead SSH.");
-        // 会尝试一次重新连接
-        if (!isConnecting()) connect();
+        // 压缩属于连接的设置，共享连接时需要先离开，设置完成后再根据新的设置重新加入
+        unshare_();
         // 根据输入设置压缩等级
         if (aCompressionLevel > 0) {
             session().setConfig("compression.s2c", "zlib@openssh.com,zlib,none");
@@ -209,66 +349,385 @@ public final class ServerSSH {
             session().setConfig("compression.c2s", "none");
         }
         doMemberChange.run();
-        session().rekey();
+        // 只有已经连接时才需要 rekey，没有连接时会在下次连接时使用新的设置
+        if (isConnecting()) session().rekey();
+        if (mShareSession) share_();
+        return this;
+    }
+    // 设置自动压缩，开启后并行的 putDir，getDir，putWorkingDir，getWorkingDir 会根据抽样的可压缩性以及测得的链路速度决定是否压缩传输
+    // 压缩的传输使用单独的 session，不会修改主 session 的设置；已经通过 setCompressionLevel 开启压缩时不起作用
+    public ServerSSH setAutoCompression(boolean aAutoCompression) {
+        if (mDead) throw new RuntimeException("Can NOT setAutoCompression from a Dead SSH.");
+        mAutoCompression = aAutoCompression;
+        if (!aAutoCompression) closeZipSession_();
+        doMemberChange.run();
+        return this;
+    }
+    // 设置加密算法，MAC 以及密钥交换算法的优先列表（逗号分隔，例如 "aes128-ctr,aes256-ctr"），输入 null 或者空字符串则恢复默认
+    // 只能使用 jsch 支持的算法（jsch 0.1.55 不支持 aes*-gcm@openssh.com 以及 chacha20-poly1305@openssh.com），不支持的名称会直接报错
+    // 可以通过 benchmarkCiphers 测试不同加密算法在此服务器上的传输速度
+    public ServerSSH setCiphers(String aCiphers) throws Exception {return setAlgorithms(aCiphers, mMacs, mKex);}
+    public ServerSSH setMacs(String aMacs) throws Exception {return setAlgorithms(mCiphers, aMacs, mKex);}
+    public ServerSSH setKex(String aKex) throws Exception {return setAlgorithms(mCiphers, mMacs, aKex);}
+    public ServerSSH setAlgorithms(String aCiphers, String aMacs, String aKex) throws Exception {
+        if (mDead) throw new RuntimeException("Can NOT setAlgorithms from a Dead SSH.");
+        checkAlgorithms_(aCiphers); checkAlgorithms_(aMacs); checkAlgorithms_(aKex);
+        unshare_();
+        mCiphers = (aCiphers == null || aCiphers.isEmpty()) ? null : aCiphers;
+        mMacs    = (aMacs    == null || aMacs.isEmpty()   ) ? null : aMacs;
+        mKex     = (aKex     == null || aKex.isEmpty()    ) ? null : aKex;
+        applyAlgorithms_(session());
+        doMemberChange.run();
+        // 已经连接时需要 rekey 来使用新的算法，压缩 session 直接关闭，下次使用时会重新创建
+        if (isConnecting()) session().rekey();
+        closeZipSession_();
+        if (mShareSession) share_();
+        return this;
+    }
+    // 设置保活探测的间隔（ms）以及最大无应答次数，半断开的连接会在 aInterval*aCountMax 后被检测到而不是一直卡住；aInterval 小于等于 0 表示不探测
+    public ServerSSH setServerAlive(int aInterval, int aCountMax) throws Exception {
+        if (mDead) throw new RuntimeException("Can NOT setServerAlive from a Dead SSH.");
+        unshare_();
+        mServerAliveInterval = Math.max(aInterval, 0);
+        mServerAliveCountMax = Math.max(aCountMax, 1);
+        applyServerAlive_(session());
+        doMemberChange.run();
+        if (mShareSession) share_();
+        return this;
+    }
+    // 设置 session 连接以及 channel 打开的超时（ms），小于等于 0 表示不超时
+    public ServerSSH setTimeout(int aConnectTimeout, int aChannelTimeout) {
+        if (mDead) throw new RuntimeException("Can NOT setTimeout from a Dead SSH.");
+        mConnectTimeout = Math.max(aConnectTimeout, 0);
+        mChannelTimeout = Math.max(aChannelTimeout, 0);
+        doMemberChange.run();
+        return this;
+    }
+    // 设置是否和其他用户，主机，端口，认证以及连接设置（压缩，算法，保活）都相同的实例共享连接，共享的连接使用引用计数，最后一个使用者关闭时才会断开
+    // 工作目录，BeforeSystem 等其余设置依旧是每个实例独立的
+    public ServerSSH setShareSession(boolean aShareSession) throws JSchException {
+        if (mDead) throw new RuntimeException("Can NOT setShareSession from a Dead SSH.");
+        if (aShareSession == mShareSession) return this;
+        mShareSession = aShareSession;
+        if (aShareSession) share_(); else unshare_();
+        doMemberChange.run();
+        return this;
+    }
+    // 设置之后通过 get 或者 load 获取的实例是否默认共享连接（json 中保存的设置优先），以及相同的键最多建立的连接数目
+    public static void setDefaultShareSession(boolean aShareSession) {synchronized (SHARED_LINKS) {SHARE_SESSION = aShareSession;}}
+    public static void setSharePoolSize(int aPoolSize) {synchronized (SHARED_LINKS) {SHARE_POOL_SIZE = Math.max(aPoolSize, 1);}}
+    // 设置传输文件时的断点续传，开启后会比较已经写入的目标文件大小并从断点处继续传输，设置 aCheckTailSize 会额外比较尾部的数据是否一致（最多 MAX_RESUME_CHECK_SIZE 字节）
+    // 开启 mTempRename 时只会续传临时文件 .{name}.part，否则只有设置了 aCheckTailSize 才会续传目标文件，避免把已有的旧文件当作传输完成或者在其后追加
+    // 注意续传仍然只通过大小（以及尾部数据）判断，源文件在中断后被修改时（尤其是尾部不变的情况）可能得到错误的结果
+    public ServerSSH setResume(boolean aResume) {return setResume(aResume, 0);}
+    public ServerSSH setResume(boolean aResume, int aCheckTailSize) {
+        if (mDead) throw new RuntimeException("Can NOT setResume from a Dead SSH.");
+        mResume = aResume;
+        mResumeCheckSize = Math.min(Math.max(aCheckTailSize, 0), MAX_RESUME_CHECK_SIZE);
+        doMemberChange.run();
+        return this;
+    }
+    // 设置传输文件时先写入临时文件（同目录下的 .{name}.part），完成后再重命名为目标文件
+    public ServerSSH setTempRename(boolean aTempRename) {
+        if (mDead) throw new RuntimeException("Can NOT setTempRename from a Dead SSH.");
+        mTempRename = aTempRename;
+        doMemberChange.run();
+        return this;
+    }
+    // 设置增量同步时是否对大小相同但是修改时间不同的文件进一步比较 sha256，需要远程服务器支持 sha256sum 指令
+    public ServerSSH setSyncHash(boolean aSyncHash) {
+        if (mDead) throw new RuntimeException("Can NOT setSyncHash from a Dead SSH.");
+        mSyncHash = aSyncHash;
+        doMemberChange.run();
+        return this;
+    }
+    // 设置增量上传的本地缓存目录，设置后重复的增量上传不再需要遍历远程目录，输入 null 或者空字符串则关闭缓存
+    // 通过此对象执行指令或者删除，移动远程文件都会清除这个服务器的缓存；其他途径（其他连接，正在执行的任务）的修改需要手动 clearSyncCache
+    public ServerSSH setSyncCacheDir(String aSyncCacheDir) {
+        if (mDead) throw new RuntimeException("Can NOT setSyncCacheDir from a Dead SSH.");
+        if (aSyncCacheDir == null || aSyncCacheDir.isEmpty()) {mSyncCacheDir_ = null; mSyncCacheDir = null;}
+        else {
+            mSyncCacheDir_ = aSyncCacheDir;
+            aSyncCacheDir = UT.toAbsolutePath(aSyncCacheDir);
+            if (!aSyncCacheDir.endsWith("/") && !aSyncCacheDir.endsWith("\\")) aSyncCacheDir += "/";
+            mSyncCacheDir = aSyncCacheDir;
+        }
+        doMemberChange.run();
+        return this;
+    }
+    // 设置 tar 流传输时是否使用 gzip 压缩，需要远程服务器的 tar 支持 -z
+    public ServerSSH setTarCompress(boolean aTarCompress) {
+        if (mDead) throw new RuntimeException("Can NOT setTarCompress from a Dead SSH.");
+        mTarCompress = aTarCompress;
+        doMemberChange.run();
+        return this;
+    }
+    // 设置自动使用 tar 流传输的平均文件大小阈值（byte），并行的 putDir，getDir，putWorkingDir，getWorkingDir 在平均文件大小小于此值时会自动改为 tar 流传输，小于等于 0 则关闭
+    public ServerSSH setTarThreshold(long aAverageSize) {
+        if (mDead) throw new RuntimeException("Can NOT setTarThreshold from a Dead SSH.");
+        mTarThreshold = aAverageSize;
+        doMemberChange.run();
+        return this;
+    }
+    // 设置上传时是否使用远程的内容寻址缓存，内容相同的文件只会上传一次，之后直接在服务器上从缓存中复制；aHardLink 为 true 时改为使用硬链接（注意此时在服务器上直接修改目标文件会同时修改缓存）
+    public ServerSSH setContentCache(boolean aContentCache) {return setContentCache(aContentCache, false);}
+    public ServerSSH setContentCache(boolean aContentCache, boolean aHardLink) {
+        if (mDead) throw new RuntimeException("Can NOT setContentCache from a Dead SSH.");
+        mContentCache = aContentCache;
+        mContentCacheHardLink = aHardLink;
+        doMemberChange.run();
+        return this;
+    }
+    // 设置远程路径状态缓存的有效时间（ms），期间重复判断同一个远程文件夹是否存在不会再访问服务器，小于等于 0 则关闭缓存
+    public ServerSSH setAttrCacheTTL(long aTTL) {
+        if (mDead) throw new RuntimeException("Can NOT setAttrCacheTTL from a Dead SSH.");
+        mAttrCacheTTL = aTTL;
+        mAttrCache.clear();
+        doMemberChange.run();
         return this;
     }
     // 设置执行 system 之前的附加指令
     public ServerSSH setBeforeSystem(String aCommand) {
         if (mDead) throw new RuntimeException("Can NOT setBeforeSystem from a Dead SSH.");
         mBeforeCommand = aCommand;
+        closeShells_(); // 持久 shell 启动时执行的 mBeforeCommand 已经改变
+        doMemberChange.run();
+        return this;
+    }
+    // 设置执行控制指令（system，squeue，sbatch 等只需要获取输出的小指令）使用的持久 shell 的数目，小于等于 0 表示不使用
+    // 持久 shell 启动时执行一次 mBeforeCommand，之后的指令不再需要重新开启通道和执行 mBeforeCommand；多个线程同时执行指令时最多会开启 aShellNumber 个 shell
+    // 持久 shell 使用用户的登录 shell，登录 shell 不兼容 POSIX sh 的语法时（例如 csh，fish）依旧每个指令单独开启通道
+    public ServerSSH setPersistentShell(int aShellNumber) {
+        if (mDead) throw new RuntimeException("Can NOT setPersistentShell from a Dead SSH.");
+        synchronized (mIdleShells) {mShellNumber = Math.max(aShellNumber, 0);}
+        closeShells_();
         doMemberChange.run();
         return this;
     }
     // 设置密码
     public ServerSSH setPassword(String aPassword) throws Exception {
         if (mDead) throw new RuntimeException("Can NOT setPassword from a Dead SSH.");
+        unshare_(); // 认证改变后不能继续使用共享的连接
         mJsch.removeAllIdentity(); // 移除旧的认证
         session().setPassword(aPassword);
         mPassword = aPassword;
         mKeyPath = null;
         session().setConfig("PreferredAuthentications", "password");
         doMemberChange.run();
-        session().rekey();
+        if (isConnecting()) session().rekey();
+        if (mShareSession) share_();
         return this;
     }
     // 设置密钥路径
     public ServerSSH setKey(String aKeyPath) throws Exception {
         if (mDead) throw new RuntimeException("Can NOT setKey from a Dead SSH.");
+        unshare_(); // 认证改变后不能继续使用共享的连接
         mJsch.removeAllIdentity(); // 移除旧的认证
         mJsch.addIdentity(aKeyPath);
         mPassword = null;
         mKeyPath = aKeyPath;
         session().setConfig("PreferredAuthentications", "publickey");
         doMemberChange.run();
-        session().rekey();
+        if (isConnecting()) session().rekey();
+        if (mShareSession) share_();
         return this;
     }
     
     /// 基本方法
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public boolean isConnecting() {return session().isConnected();}
+    // 连接的状态，BACKOFF 表示上次重连失败，正在等待下次重连，调用者可以据此直接跳过需要连接的操作
+    public enum LinkState {CONNECTED, DISCONNECTED, BACKOFF}
+    public LinkState linkState() {
+        Link tLink = link_();
+        synchronized (tLink) {
+            if (tLink.mSession.isConnected()) return LinkState.CONNECTED;
+            if (tLink.mConnectFailures > 0 && System.currentTimeMillis() < tLink.mNextConnectTime) return LinkState.BACKOFF;
+            return LinkState.DISCONNECTED;
+        }
+    }
+    public boolean isLinkDown() {return linkState() == LinkState.BACKOFF;}
     // 整个 connect 过程都需要同步，避免连接到一半其他线程获取到非法的 session
-    public synchronized void connect() throws JSchException {
+    // 连接失败后使用带随机抖动的指数退避，退避期间直接抛出异常，不会每次调用都去尝试连接；共享连接时同步和退避状态都是所有使用者共用的
+    public void connect() throws JSchException {
         if (mDead) throw new RuntimeException("Can NOT reconnect a Dead SSH.");
-        if (!mSession.isConnected()) {
-            Session oSession = mSession;
-            mSession = mJsch.getSession(oSession.getUserName(), oSession.getHost(), oSession.getPort());
-            mSession.setPassword(mPassword);
-            mSession.setConfig("PreferredAuthentications", oSession.getConfig("PreferredAuthentications"));
-            mSession.setConfig("StrictHostKeyChecking", oSession.getConfig("StrictHostKeyChecking"));
-            mSession.setConfig("compression.s2c", oSession.getConfig("compression.s2c"));
-            mSession.setConfig("compression.c2s", oSession.getConfig("compression.c2s"));
-            mSession.setConfig("compression_level", oSession.getConfig("compression_level"));
-            mSession.connect();
-        }
-    }
-    public void disconnect() {session().disconnect();}
+        Link tLink = link_();
+        synchronized (tLink) {
+            if (tLink.mSession.isConnected()) return;
+            long tRemain = tLink.mNextConnectTime - System.currentTimeMillis();
+            if (tLink.mConnectFailures > 0 && tRemain > 0) throw new JSchException("Link is down, next reconnect in "+tRemain+" ms");
+            tLink.mSession = newSession_(tLink.mSession);
+            try {
+                tLink.mSession.connect(mConnectTimeout);
+            } catch (JSchException e) {
+                long tDelay = Math.min(MAX_RECONNECT_DELAY, 1000L << Math.min(tLink.mConnectFailures, 16));
+                tDelay = (long)(tDelay * (0.5 + 0.5*Math.random()));
+                ++tLink.mConnectFailures;
+                tLink.mNextConnectTime = System.currentTimeMillis() + tDelay;
+                throw e;
+            }
+            tLink.mConnectFailures = 0;
+            tLink.mNextConnectTime = 0;
+        }
+    }
+    // 清除重连的退避状态，下次 connect 会立刻尝试连接
+    public void resetBackoff() {Link tLink = link_(); synchronized (tLink) {tLink.mConnectFailures = 0; tLink.mNextConnectTime = 0;}}
+    // 共享连接时只有没有其他使用者才会真正断开
+    public void disconnect() {
+        closeShells_();
+        Link tLink = link_();
+        synchronized (tLink) {if (tLink.mRefCount <= 1) tLink.mSession.disconnect();}
+        closeZipSession_();
+    }
     public void shutdown() {
         mDead = true;
-        session().disconnect();
+        synchronized (this) {if (mExecPool != null) mExecPool.shutdownNow();}
+        closeShells_();
+        release_();
+        closeZipSession_();
+    }
+    // 根据已有的 session 创建一个设置相同的新 session（未连接）
+    Session newSession_(Session aSession) throws JSchException {
+        Session rSession = mJsch.getSession(aSession.getUserName(), aSession.getHost(), aSession.getPort());
+        rSession.setPassword(mPassword);
+        rSession.setConfig("PreferredAuthentications", aSession.getConfig("PreferredAuthentications"));
+        rSession.setConfig("StrictHostKeyChecking", aSession.getConfig("StrictHostKeyChecking"));
+        rSession.setConfig("compression.s2c", aSession.getConfig("compression.s2c"));
+        rSession.setConfig("compression.c2s", aSession.getConfig("compression.c2s"));
+        rSession.setConfig("compression_level", aSession.getConfig("compression_level"));
+        applyAlgorithms_(rSession);
+        applyServerAlive_(rSession);
+        return rSession;
+    }
+    // 将设置的算法列表应用到 session，没有设置的使用 jsch 的默认值
+    void applyAlgorithms_(Session aSession) {
+        String tCiphers = mCiphers != null ? mCiphers : JSch.getConfig("cipher.c2s");
+        String tMacs = mMacs != null ? mMacs : JSch.getConfig("mac.c2s");
+        aSession.setConfig("cipher.s2c", tCiphers);
+        aSession.setConfig("cipher.c2s", tCiphers);
+        aSession.setConfig("mac.s2c", tMacs);
+        aSession.setConfig("mac.c2s", tMacs);
+        aSession.setConfig("kex", mKex != null ? mKex : JSch.getConfig("kex"));
+    }
+    // 检测算法列表中的名称是否都是 jsch 支持的，jsch 对不认识的名称会在协商时直接跳过，这里提前报错避免设置不生效
+    static void checkAlgorithms_(String aAlgorithms) {
+        if (aAlgorithms == null || aAlgorithms.isEmpty()) return;
+        for (String tName : aAlgorithms.split(",")) {
+            tName = tName.trim();
+            if (!tName.isEmpty() && JSch.getConfig(tName) == null) throw new IllegalArgumentException("Algorithm NOT supported by jsch: "+tName);
+        }
+    }
+    // 将保活探测的设置应用到 session，已经连接的 session 也会立刻生效
+    void applyServerAlive_(Session aSession) {
+        try {
+            aSession.setServerAliveInterval(mServerAliveInterval);
+            aSession.setServerAliveCountMax(mServerAliveCountMax);
+        } catch (JSchException e) {throw new RuntimeException(e);}
+    }
+    // 获取自动压缩使用的压缩 session，断开时会自动重连
+    synchronized Session zipSession_() throws JSchException {
+        if (mZipSession == null || !mZipSession.isConnected()) {
+            mZipSession = newSession_(session());
+            mZipSession.setConfig("compression.s2c", "zlib@openssh.com,zlib,none");
+            mZipSession.setConfig("compression.c2s", "zlib@openssh.com,zlib,none");
+            mZipSession.setConfig("compression_level", String.valueOf(AUTO_COMPRESSION_LEVEL));
+            mZipSession.connect(mConnectTimeout);
+        }
+        return mZipSession;
+    }
+    // 获取传输使用的 session，压缩 session 连接失败时退回主 session（返回 null 表示使用主 session）
+    Session transferSession_(boolean aCompress) {
+        if (!aCompress) return null;
+        try {return zipSession_();} catch (JSchException e) {return null;}
+    }
+    synchronized void closeZipSession_() {
+        if (mZipSession != null) {mZipSession.disconnect(); mZipSession = null;}
     }
     // 获取和修改 mSession，需要增加同步来保证每个线程获得的 mSession 都是合适的
-    public synchronized Session session() {return mSession;}
+    public Session session() {Link tLink = link_(); synchronized (tLink) {return tLink.mSession;}}
+    private synchronized Link link_() {return mLink;}
+    
+    /// 共享连接部分
+    // 连接，包含 session 以及重连的退避状态；不共享时每个实例独立拥有一个，共享时相同键的实例共用，使用引用计数管理
+    static final class Link {
+        Session mSession;
+        int mConnectFailures = 0;
+        long mNextConnectTime = 0;
+        int mRefCount = 1;
+        String mKey = null; // 在注册表中的键，null 表示没有共享
+        Link(Session aSession) {mSession = aSession;}
+    }
+    // 共享连接的键，包含用户，主机，端口，认证（密码只保存 sha256）以及会影响连接本身的设置
+    private String shareKey_() {
+        Session tSession = session();
+        String tAuth;
+        if (mPassword != null) {
+            MessageDigest tDigest;
+            try {tDigest = MessageDigest.getInstance("SHA-256");} catch (NoSuchAlgorithmException e) {throw new RuntimeException(e);}
+            tAuth = "password:"+toHex_(tDigest.digest(mPassword.getBytes(StandardCharsets.UTF_8)));
+        } else {
+            tAuth = "key:"+mKeyPath;
+        }
+        return String.format("%s@%s:%d|%s|%s/%s|%s|%s|%s|%d/%d", tSession.getUserName(), tSession.getHost(), tSession.getPort(), tAuth,
+                             tSession.getConfig("compression.c2s"), tSession.getConfig("compression_level"), mCiphers, mMacs, mKex, mServerAliveInterval, mServerAliveCountMax);
+    }
+    // 加入共享的连接，连接数目没有达到上限时会将自身的连接注册进去，否则加入引用最少的连接并断开自身的连接
+    private void share_() {
+        String tKey = shareKey_();
+        Link tOld = link_();
+        synchronized (SHARED_LINKS) {
+            if (tOld.mKey != null) return;
+            List<Link> tLinks = SHARED_LINKS.computeIfAbsent(tKey, key -> new ArrayList<>());
+            if (tLinks.size() < SHARE_POOL_SIZE) {
+                synchronized (tOld) {tOld.mKey = tKey;}
+                tLinks.add(tOld);
+                return;
+            }
+            Link tLink = tLinks.get(0);
+            for (Link tOther : tLinks) if (tOther.mRefCount < tLink.mRefCount) tLink = tOther;
+            synchronized (tLink) {++tLink.mRefCount;}
+            synchronized (this) {mLink = tLink;}
+        }
+        tOld.mSession.disconnect();
+    }
+    // 离开共享的连接，还有其他使用者时会创建一个设置相同的独立连接（未连接），否则直接取回这个连接
+    private void unshare_() throws JSchException {
+        synchronized (SHARED_LINKS) {
+            Link tLink = link_();
+            Link tOwn = null;
+            synchronized (tLink) {
+                if (tLink.mKey == null) return;
+                if (tLink.mRefCount > 1) {
+                    --tLink.mRefCount;
+                    tOwn = new Link(newSession_(tLink.mSession));
+                } else {
+                    removeShared_(tLink);
+                }
+            }
+            if (tOwn != null) synchronized (this) {mLink = tOwn;}
+        }
+    }
+    // 释放连接，引用计数为零时才会真正断开
+    private void release_() {
+        synchronized (SHARED_LINKS) {
+            Link tLink = link_();
+            synchronized (tLink) {
+                if (tLink.mKey != null) {
+                    if (--tLink.mRefCount > 0) return;
+                    removeShared_(tLink);
+                }
+                tLink.mSession.disconnect();
+            }
+        }
+    }
+    private static void removeShared_(Link aLink) {
+        List<Link> tLinks = SHARED_LINKS.get(aLink.mKey);
+        if (tLinks != null) {
+            tLinks.remove(aLink);
+            if (tLinks.isEmpty()) SHARED_LINKS.remove(aLink.mKey);
+        }
+        aLink.mKey = null;
+    }
     
     /// 实用方法
     // 提交命令
@@ -278,17 +737,79 @@ public final class ServerSSH {
     };}
     public void system(String aCommand) throws JSchException, IOException {
         if (mDead) throw new RuntimeException("Can NOT system from a Dead SSH.");
+        systemStatus_(aCommand);
+    }
+    // 执行指令并输出到命令行，返回指令的退出码（无法获取时为 -1），主要是内部使用
+    int systemStatus_(String aCommand) throws JSchException, IOException {
+        // 任意的指令都可能修改远程文件，因此需要清空远程路径状态的缓存以及增量上传的缓存
+        mAttrCache.clear(); invalidateSyncCache_();
+        // 输出直接写到命令行，期间会挂起程序
+        return exec_(aCommand, System.out, System.err, 0);
+    }
+    // 执行指令并获取退出码，标准输出以及错误输出（各自最多保存 DEFAULT_EXEC_BUFFER_SIZE 字节），aTimeout（ms）小于等于 0 表示不超时
+    // 超时或者被中断时会关闭通道并抛出 InterruptedIOException
+    public ExecResult exec(String aCommand) throws JSchException, IOException {return exec(aCommand, 0);}
+    public ExecResult exec(String aCommand, long aTimeout) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT exec from a Dead SSH.");
+        mAttrCache.clear(); invalidateSyncCache_();
+        BoundedBuffer tOut = new BoundedBuffer(DEFAULT_EXEC_BUFFER_SIZE), tErr = new BoundedBuffer(DEFAULT_EXEC_BUFFER_SIZE);
+        int tStatus = exec_(aCommand, tOut, tErr, aTimeout);
+        return new ExecResult(tStatus, tOut.toByteArray(), tErr.toByteArray(), tOut.isTruncated() || tErr.isTruncated());
+    }
+    // 流式获取输出，监听器在读取的线程中调用，监听器阻塞时会停止读取，远程的指令也会因为通道窗口满了而暂停（背压），返回退出码
+    public int exec(String aCommand, IStreamListener aOut, IStreamListener aErr, long aTimeout) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT exec from a Dead SSH.");
+        mAttrCache.clear(); invalidateSyncCache_();
+        return exec_(aCommand, new ListenerStream(aOut), new ListenerStream(aErr), aTimeout);
+    }
+    // 异步执行，可以通过返回的 Future 来取消（cancel(true) 会关闭通道）
+    public Future<ExecResult> execAsync(final String aCommand, final long aTimeout) {
+        if (mDead) throw new RuntimeException("Can NOT execAsync from a Dead SSH.");
+        synchronized (this) {
+            if (mExecPool == null) mExecPool = UT.newCachedThreadPool("ServerSSH-exec", UT.Worker.IO);
+            return mExecPool.submit(() -> exec(aCommand, aTimeout));
+        }
+    }
+    // 执行指令并将输出写入 aOut 和 aErr，返回退出码（无法获取时为 -1），开启持久 shell 时会在 shell 中执行
+    int exec_(String aCommand, OutputStream aOut, OutputStream aErr, long aTimeout) throws JSchException, IOException {
+        if (mShellNumber > 0 && !loginShell_().isEmpty()) {
+            int rStatus = shellExec_(aCommand, aOut, aErr, aTimeout);
+            aOut.flush(); aErr.flush();
+            return rStatus;
+        }
         // systemChannel 内部已经尝试了重连
         ChannelExec tChannelExec = systemChannel(aCommand);
-        // 获取输入流并且输出到命令行，期间会挂起程序
-        InputStream tIn = tChannelExec.getInputStream();
-        tChannelExec.connect();
-        BufferedReader tReader = new BufferedReader(new InputStreamReader(tIn));
-        String tLine;
-        while ((tLine = tReader.readLine()) != null) System.out.println(tLine);
-        // 最后关闭通道
-        tChannelExec.disconnect();
+        InputStream tOut = tChannelExec.getInputStream();
+        InputStream tErr = tChannelExec.getExtInputStream();
+        tChannelExec.connect(mChannelTimeout);
+        // 在同一个线程中轮流读取两个输出，不会互相阻塞；没有数据时逐渐增加等待的时间
+        long tDeadline = aTimeout > 0 ? System.currentTimeMillis()+aTimeout : Long.MAX_VALUE;
+        byte[] tBuffer = new byte[8192];
+        long tSleep = 1;
+        try {
+            while (true) {
+                boolean tRead = false;
+                int tLen;
+                while (tOut.available() > 0 && (tLen = tOut.read(tBuffer)) > 0) {aOut.write(tBuffer, 0, tLen); tRead = true;}
+                while (tErr.available() > 0 && (tLen = tErr.read(tBuffer)) > 0) {aErr.write(tBuffer, 0, tLen); tRead = true;}
+                // 超时和中断需要每次都检测，否则持续输出的指令永远不会超时，也无法取消
+                if (System.currentTimeMillis() > tDeadline) throw new InterruptedIOException("Command timed out after "+aTimeout+" ms: "+aCommand);
+                if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Command cancelled: "+aCommand);
+                // 管道写满时写入端会 wait(1000)，只有读取端阻塞等待数据时才会唤醒它，这里不会阻塞读取，因此需要手动唤醒，否则大输出时每 32KB 就会卡住 1s
+                if (tRead) {wakeWriter_(tOut); wakeWriter_(tErr); tSleep = 1; continue;}
+                // 关闭后才能得到退出码，关闭前可能还有没有读取的数据
+                if (tChannelExec.isClosed()) {if (tOut.available() > 0 || tErr.available() > 0) continue; break;}
+                try {Thread.sleep(tSleep);} catch (InterruptedException e) {Thread.currentThread().interrupt(); throw new InterruptedIOException("Command cancelled: "+aCommand);}
+                tSleep = Math.min(tSleep*2, 20);
+            }
+            aOut.flush(); aErr.flush();
+            return tChannelExec.getExitStatus();
+        } finally {
+            // 最后关闭通道，超时或者中断时也会直接关闭
+            tChannelExec.disconnect();
+        }
     }
+    private static void wakeWriter_(InputStream aPipe) {synchronized (aPipe) {aPipe.notifyAll();}}
     // 提交命令的获取指令频道的结构，主要是内部使用，需要手动连接和关闭
     public ChannelExec systemChannel(String aCommand) throws JSchException {
         if (mDead) throw new RuntimeException("Can NOT get systemChannel from a Dead SSH.");
@@ -314,14 +835,11 @@ public final class ServerSSH {
         if (!isConnecting()) connect();
         // 获取文件传输通道
         final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
+        tChannelSftp.connect(mChannelTimeout);
         if (aDir.equals(".")) aDir = "";
         if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
-        // 递归子文件夹传输文件
-        (new RecurseLocalDir(this, aDir) {
-            @Override public boolean initRemoteDir(String aRemoteDir) {return makeDir_(tChannelSftp, aRemoteDir);}
-            @Override public void doFile(File aLocalFile, String aRemoteDir) {try {tChannelSftp.put(aLocalFile.getPath(), aRemoteDir);} catch (SftpException ignored) {}}
-        }).run();
+        // 统一创建文件夹后再传输文件，开启内容寻址缓存时只需要传输缓存中没有的文件
+        for (Pair<File, String> tPair : putByContent_(tChannelSftp, prepareUpload_(tChannelSftp, aDir, false), 1)) {try {putFile_(tChannelSftp, tPair.first, tPair.second);} catch (SftpException ignored) {}}
         // 最后关闭通道
         tChannelSftp.disconnect();
     }
@@ -336,13 +854,13 @@ public final class ServerSSH {
         if (!isConnecting()) connect();
         // 获取文件传输通道
         final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
+        tChannelSftp.connect(mChannelTimeout);
         if (aDir.equals(".")) aDir = "";
         if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
         // 递归子文件夹传输文件
         (new RecurseRemoteDir(this, aDir, tChannelSftp){
             @Override public boolean initLocalDir(String aLocalDir) {File tFile = new File(aLocalDir); return tFile.isDirectory() || tFile.mkdirs();}
-            @Override public void doFile(String aRemoteFile, String aLocalDir) {try {tChannelSftp.get(aRemoteFile, aLocalDir);} catch (SftpException ignored) {}}
+            @Override public void doFile(String aRemoteFile, String aLocalDir) {try {getFile_(tChannelSftp, aRemoteFile, aLocalDir);} catch (SftpException ignored) {}}
         }).run();
         // 最后关闭通道
         tChannelSftp.disconnect();
@@ -354,17 +872,21 @@ public final class ServerSSH {
     };}
     public void clearDir(String aDir) throws JSchException {
         if (mDead) throw new RuntimeException("Can NOT clearDir from a Dead SSH.");
+        if (aDir.equals(".")) aDir = "";
+        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        // 优先直接在服务器上删除
+        if (removeRemote_("clearDir", mRemoteWorkingDir+aDir, true)) return;
         // 会尝试一次重新连接
         if (!isConnecting()) connect();
         // 获取文件传输通道
         final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
-        if (aDir.equals(".")) aDir = "";
-        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        tChannelSftp.connect(mChannelTimeout);
         // 递归子文件夹删除文件
         (new RecurseRemoteDir(this, aDir, tChannelSftp, false){
             @Override public void doFile(String aRemoteFile, String aLocalDir) {try {tChannelSftp.rm(aRemoteFile);} catch (SftpException ignored) {}}
         }).run();
+        // 删除后需要让对应的缓存失效
+        mAttrCache.invalidate(mRemoteWorkingDir+aDir); invalidateSyncCache_();
         // 最后关闭通道
         tChannelSftp.disconnect();
     }
@@ -377,18 +899,22 @@ public final class ServerSSH {
     public void rmdir(String aDir) throws JSchException {removeDir(aDir);}
     public void removeDir(String aDir) throws JSchException {
         if (mDead) throw new RuntimeException("Can NOT rmdir from a Dead SSH.");
+        if (aDir.equals(".")) aDir = "";
+        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        // 优先直接在服务器上删除
+        if (removeRemote_("rmdir", mRemoteWorkingDir+aDir, false)) return;
         // 会尝试一次重新连接
         if (!isConnecting()) connect();
         // 获取文件传输通道
         final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
-        if (aDir.equals(".")) aDir = "";
-        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        tChannelSftp.connect(mChannelTimeout);
         // 递归子文件夹来删除
         (new RecurseRemoteDir(this, aDir, tChannelSftp, false){
             @Override public void doFile(String aRemoteFile, String aLocalDir) {try {tChannelSftp.rm(aRemoteFile);} catch (SftpException ignored) {}}
             @Override public void doDirFinal(String aRemoteDir, String aLocalDir) {try {tChannelSftp.rmdir(aRemoteDir);} catch (SftpException ignored) {}}
         }).run();
+        // 删除后需要让对应的缓存失效
+        mAttrCache.invalidate(mRemoteWorkingDir+aDir); invalidateSyncCache_();
         // 最后关闭通道
         tChannelSftp.disconnect();
     }
@@ -401,14 +927,16 @@ public final class ServerSSH {
     public boolean mkdir(String aDir) throws JSchException {return makeDir(aDir);}
     public boolean makeDir(String aDir) throws JSchException {
         if (mDead) throw new RuntimeException("Can NOT mkdir from a Dead SSH.");
+        if (aDir.equals(".")) aDir = "";
+        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        String tRemoteDir = mRemoteWorkingDir+aDir;
+        // 缓存中已经存在此文件夹则不需要再访问服务器
+        if (mAttrCache.isDir(tRemoteDir, mAttrCacheTTL) == Boolean.TRUE) return true;
         // 会尝试一次重新连接
         if (!isConnecting()) connect();
         // 获取文件传输通道
         ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
-        if (aDir.equals(".")) aDir = "";
-        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
-        String tRemoteDir = mRemoteWorkingDir+aDir;
+        tChannelSftp.connect(mChannelTimeout);
         // 创建文件夹
         boolean tSuc = makeDir_(tChannelSftp, tRemoteDir);
         // 最后关闭通道
@@ -418,14 +946,17 @@ public final class ServerSSH {
     // 判断输入是否是远程服务器的文件夹
     public boolean isDir(String aDir) throws JSchException {
         if (mDead) throw new RuntimeException("Can NOT use isDir from a Dead SSH.");
+        if (aDir.equals(".")) aDir = "";
+        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        String tRemoteDir = mRemoteWorkingDir+aDir;
+        // 优先使用缓存的结果
+        Boolean tCached = mAttrCache.isDir(tRemoteDir, mAttrCacheTTL);
+        if (tCached != null) return tCached;
         // 会尝试一次重新连接
         if (!isConnecting()) connect();
         // 获取文件传输通道
         ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
-        if (aDir.equals(".")) aDir = "";
-        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
-        String tRemoteDir = mRemoteWorkingDir+aDir;
+        tChannelSftp.connect(mChannelTimeout);
         // 获取结果
         boolean tOut = isDir_(tChannelSftp, tRemoteDir);
         // 最后关闭通道
@@ -442,7 +973,7 @@ public final class ServerSSH {
         if (!isConnecting()) connect();
         // 获取文件传输通道
         ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
+        tChannelSftp.connect(mChannelTimeout);
         // 检测文件路径是否合法
         File tLocalFile = new File(mLocalWorkingDir+aFilePath);
         if (!tLocalFile.isFile()) throw new RuntimeException("Invalid File Path: "+aFilePath);
@@ -451,10 +982,10 @@ public final class ServerSSH {
         int tEndIdx = aFilePath.lastIndexOf("/");
         if (tEndIdx > 0) { // 否则不用创建，认为 mRemoteWorkingDir 已经存在
             tRemoteDir += aFilePath.substring(0, tEndIdx+1);
-            if (!ServerSSH.makeDir_(tChannelSftp, tRemoteDir)) throw new RuntimeException("Fail when create remote dir: " + tRemoteDir);
+            if (!makeDir_(tChannelSftp, tRemoteDir)) throw new RuntimeException("Fail when create remote dir: " + tRemoteDir);
         }
-        // 上传脚本
-        tChannelSftp.put(tLocalFile.getPath(), tRemoteDir);
+        // 上传脚本，开启内容寻址缓存时缓存中已经存在则不需要上传
+        if (!putByContent_(tChannelSftp, Collections.singletonList(new Pair<>(tLocalFile, tRemoteDir)), 1).isEmpty()) putFile_(tChannelSftp, tLocalFile, tRemoteDir);
         // 最后关闭通道
         tChannelSftp.disconnect();
     }
@@ -468,7 +999,7 @@ public final class ServerSSH {
         if (!isConnecting()) connect();
         // 获取文件传输通道
         ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
+        tChannelSftp.connect(mChannelTimeout);
         // 检测文件路径是否合法
         String tRemoteDir = mRemoteWorkingDir+aFilePath;
         if (!isFile_(tChannelSftp, tRemoteDir)) throw new RuntimeException("Invalid File Path: "+aFilePath);
@@ -481,7 +1012,7 @@ public final class ServerSSH {
             if (!tFile.isDirectory() && !tFile.mkdirs()) throw new RuntimeException("Fail when create local dir: "+tLocalDir);
         }
         // 上传脚本
-        tChannelSftp.get(tRemoteDir, tLocalDir);
+        getFile_(tChannelSftp, tRemoteDir, tLocalDir);
         // 最后关闭通道
         tChannelSftp.disconnect();
     }
@@ -489,12 +1020,15 @@ public final class ServerSSH {
     // 判断输入是否是远程服务器的文件
     public boolean isFile(String aPath) throws JSchException {
         if (mDead) throw new RuntimeException("Can NOT use isFile from a Dead SSH.");
+        String tRemotePath = mRemoteWorkingDir+aPath;
+        // 优先使用缓存的结果
+        Boolean tCached = mAttrCache.isDir(tRemotePath, mAttrCacheTTL);
+        if (tCached != null) return !tCached;
         // 会尝试一次重新连接
         if (!isConnecting()) connect();
         // 获取文件传输通道
         ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
-        String tRemotePath = mRemoteWorkingDir+aPath;
+        tChannelSftp.connect(mChannelTimeout);
         // 获取结果
         boolean tOut = isFile_(tChannelSftp, tRemotePath);
         // 最后关闭通道
@@ -502,6 +1036,154 @@ public final class ServerSSH {
         return tOut;
     }
     
+    // 在远程服务器上直接复制、移动、链接文件或文件夹，只需要一次指令而不用经过网络传输，会自动创建目标的上级文件夹，成功返回 true
+    public Task task_copy(final String aSrc, final String aDst) {return new Task() {
+        @Override public boolean run() throws Exception {return copy(aSrc, aDst);}
+        @Override public String toString() {return String.format("%s{%s:%s}", Type.COPY.name(), aSrc, aDst);}
+    };}
+    public Task task_move(final String aSrc, final String aDst) {return new Task() {
+        @Override public boolean run() throws Exception {return move(aSrc, aDst);}
+        @Override public String toString() {return String.format("%s{%s:%s}", Type.MOVE.name(), aSrc, aDst);}
+    };}
+    public Task task_symlink(final String aTarget, final String aLink) {return new Task() {
+        @Override public boolean run() throws Exception {return symlink(aTarget, aLink);}
+        @Override public String toString() {return String.format("%s{%s:%s}", Type.SYMLINK.name(), aTarget, aLink);}
+    };}
+    public Task task_hardlink(final String aSrc, final String aDst) {return new Task() {
+        @Override public boolean run() throws Exception {return hardlink(aSrc, aDst);}
+        @Override public String toString() {return String.format("%s{%s:%s}", Type.HARDLINK.name(), aSrc, aDst);}
+    };}
+    // 复制文件或整个文件夹，aDst 就是复制得到的路径：aDst 是已经存在的文件夹时会将 aSrc 的内容合并到其中，而不是和 cp 一样复制到 aDst/aSrc
+    // 文件复制到已经存在的文件夹会失败；使用 "src/." 的形式而不是 GNU 的 cp -T，因此 BSD 的 cp 同样支持
+    public boolean copy(String aSrc, String aDst) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT copy from a Dead SSH.");
+        return remoteOp_("if [ -d %1$s ]; then mkdir -p -- %2$s && cp -R -- %1$s/. %2$s; else [ ! -d %2$s ] && cp -- %1$s %2$s; fi", aSrc, aDst, true);
+    }
+    // 移动文件或文件夹，和 mv 一致，aDst 是已经存在的文件夹时会移动到其中
+    public boolean move(String aSrc, String aDst) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT move from a Dead SSH.");
+        return remoteOp_("mv -f -- %1$s %2$s", aSrc, aDst, true);
+    }
+    // 创建软链接，aTarget 不会添加工作目录，因此相对路径是相对于链接所在的文件夹（和 ln -s 一致）
+    public boolean symlink(String aTarget, String aLink) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT symlink from a Dead SSH.");
+        return remoteOp_("ln -sfn -- %1$s %2$s", aTarget, aLink, false);
+    }
+    // 创建硬链接，和 copy 一样 aDst 就是得到的路径；对于文件夹会创建一个所有文件都是硬链接的文件夹树，适合复制只读的模板
+    // 文件使用 POSIX 的 ln；文件夹需要 GNU coreutils 的 cp -l（BSD 以及 macOS 的 cp 不支持，此时会失败并返回 false）
+    public boolean hardlink(String aSrc, String aDst) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT hardlink from a Dead SSH.");
+        return remoteOp_("if [ -d %1$s ]; then mkdir -p -- %2$s && cp -R -l -f -- %1$s/. %2$s; else [ ! -d %2$s ] && ln -f -- %1$s %2$s; fi", aSrc, aDst, true);
+    }
+    
+    // 直接从内存上传数据到服务器的文件，不经过本地文件；byte[] 和 ByteBuffer 的 task 会将数据以 Base64 的形式序列化
+    public Task task_putBytes(final String aFilePath, final byte[] aData) {return new Task() {
+        @Override public boolean run() throws Exception {putBytes(aFilePath, aData); return true;}
+        @Override public String toString() {return String.format("%s{%s:%s}", Type.PUT_BYTES.name(), aFilePath, DatatypeConverter.printBase64Binary(aData));}
+    };}
+    public Task task_putBuffer(final String aFilePath, final ByteBuffer aData) {return new Task() {
+        @Override public boolean run() throws Exception {putBuffer(aFilePath, aData); return true;}
+        @Override public String toString() {byte[] tData = new byte[aData.remaining()]; aData.duplicate().get(tData); return String.format("%s{%s:%s}", Type.PUT_BYTES.name(), aFilePath, DatatypeConverter.printBase64Binary(tData));}
+    };}
+    // 输入流只能读取一次，因此此 task 不支持序列化
+    public Task task_putStream(final String aFilePath, final InputStream aIn) {return new Task() {
+        @Override public boolean run() throws Exception {putStream(aFilePath, aIn); return true;}
+    };}
+    public void putBytes(String aFilePath, final byte[] aData) throws JSchException, SftpException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT putBytes from a Dead SSH.");
+        putData_(aFilePath, aOut -> aOut.write(aData));
+    }
+    // 不会修改输入 ByteBuffer 的 position
+    public void putBuffer(String aFilePath, final ByteBuffer aData) throws JSchException, SftpException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT putBuffer from a Dead SSH.");
+        putData_(aFilePath, aOut -> {
+            ByteBuffer tData = aData.duplicate();
+            if (tData.hasArray()) {aOut.write(tData.array(), tData.arrayOffset()+tData.position(), tData.remaining()); return;}
+            byte[] tBuffer = new byte[Math.min(32768, Math.max(1, tData.remaining()))];
+            while (tData.hasRemaining()) {int tLen = Math.min(tBuffer.length, tData.remaining()); tData.get(tBuffer, 0, tLen); aOut.write(tBuffer, 0, tLen);}
+        });
+    }
+    // 会读取输入流直到结束，但是不会关闭输入流
+    public void putStream(String aFilePath, final InputStream aIn) throws JSchException, SftpException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT putStream from a Dead SSH.");
+        putData_(aFilePath, aOut -> {
+            byte[] tBuffer = new byte[32768];
+            int tRead;
+            while ((tRead = aIn.read(tBuffer)) > 0) aOut.write(tBuffer, 0, tRead);
+        });
+    }
+    // 直接从服务器的文件下载数据到内存，不经过本地文件；task 版本会写入到输入的 OutputStream 或者 ByteBuffer 中，因此不支持序列化
+    public Task task_getStream(final String aFilePath, final OutputStream aOut) {return new Task() {
+        @Override public boolean run() throws Exception {getStream(aFilePath, aOut); return true;}
+    };}
+    public Task task_getBuffer(final String aFilePath, final ByteBuffer rBuffer) {return new Task() {
+        @Override public boolean run() throws Exception {getBuffer(aFilePath, rBuffer); return true;}
+    };}
+    public byte[] getBytes(String aFilePath) throws JSchException, SftpException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT getBytes from a Dead SSH.");
+        ChannelSftp tChannelSftp = openSftp_();
+        try {
+            String tRemotePath = mRemoteWorkingDir+aFilePath;
+            SftpATTRS tAttrs = tChannelSftp.stat(tRemotePath);
+            if (tAttrs.isDir() || tAttrs.getSize() > Integer.MAX_VALUE-8) throw new RuntimeException("Invalid File Path: "+aFilePath);
+            // 直接按照文件大小分配内存，避免额外的复制
+            byte[] rData = new byte[(int)tAttrs.getSize()];
+            try (InputStream tIn = tChannelSftp.get(tRemotePath)) {
+                int tPos = 0, tRead;
+                while (tPos < rData.length && (tRead = tIn.read(rData, tPos, rData.length-tPos)) > 0) tPos += tRead;
+                if (tPos < rData.length) return Arrays.copyOf(rData, tPos);
+                // 读取期间文件变长的情况
+                int tByte = tIn.read();
+                if (tByte < 0) return rData;
+                ByteArrayOutputStream tRest = new ByteArrayOutputStream();
+                tRest.write(rData); tRest.write(tByte);
+                byte[] tBuffer = new byte[32768];
+                while ((tRead = tIn.read(tBuffer)) > 0) tRest.write(tBuffer, 0, tRead);
+                return tRest.toByteArray();
+            }
+        } finally {
+            tChannelSftp.disconnect();
+        }
+    }
+    public ByteBuffer getBuffer(String aFilePath) throws JSchException, SftpException, IOException {return ByteBuffer.wrap(getBytes(aFilePath));}
+    // 写入到输入的 ByteBuffer 中（例如 direct buffer），返回写入的字节数，超过剩余容量的部分会被忽略
+    public int getBuffer(String aFilePath, ByteBuffer rBuffer) throws JSchException, SftpException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT getBuffer from a Dead SSH.");
+        ChannelSftp tChannelSftp = openSftp_();
+        try (ReadableByteChannel tIn = Channels.newChannel(tChannelSftp.get(mRemoteWorkingDir+aFilePath))) {
+            int rSize = 0, tRead;
+            while (rBuffer.hasRemaining() && (tRead = tIn.read(rBuffer)) >= 0) rSize += tRead;
+            return rSize;
+        } finally {
+            tChannelSftp.disconnect();
+        }
+    }
+    // 写入到输入的输出流中，不会关闭输出流
+    public void getStream(String aFilePath, OutputStream aOut) throws JSchException, SftpException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT getStream from a Dead SSH.");
+        ChannelSftp tChannelSftp = openSftp_();
+        try (InputStream tIn = tChannelSftp.get(mRemoteWorkingDir+aFilePath)) {
+            byte[] tBuffer = new byte[32768];
+            int tRead;
+            while ((tRead = tIn.read(tBuffer)) > 0) aOut.write(tBuffer, 0, tRead);
+        } finally {
+            tChannelSftp.disconnect();
+        }
+    }
+    // 获取流式读取的输入流，需要手动关闭，关闭时会同时关闭对应的通道
+    public InputStream getStream(String aFilePath) throws JSchException, SftpException {
+        if (mDead) throw new RuntimeException("Can NOT getStream from a Dead SSH.");
+        final ChannelSftp tChannelSftp = openSftp_();
+        try {
+            return new FilterInputStream(tChannelSftp.get(mRemoteWorkingDir+aFilePath)) {
+                @Override public void close() throws IOException {try {super.close();} finally {tChannelSftp.disconnect();}}
+            };
+        } catch (SftpException e) {
+            tChannelSftp.disconnect();
+            throw e;
+        }
+    }
+    
     // 上传目录到服务器的并发版本，理论会更快
     public Task task_putDir(final String aDir, final int aThreadNumber) {return new Task() {
         @Override public boolean run() throws Exception {putDir(aDir, aThreadNumber); return true;}
@@ -509,22 +1191,35 @@ public final class ServerSSH {
     };}
     public void putDir(String aDir, int aThreadNumber) throws JSchException, InterruptedException {
         if (mDead) throw new RuntimeException("Can NOT putDir from a Dead SSH.");
-        // 创建并发线程池，会自动尝试重新连接
-        final SftpPool tSftpPool = new SftpPool(this, aThreadNumber);
+        // 平均文件大小较小时自动改为 tar 流传输
+        if (useTar_(aDirNormalize_(aDir), true, false)) {try {putTar_(aDirNormalize_(aDir), false);} catch (IOException e) {throw new RuntimeException(e);} return;}
+        // 开启自动压缩时根据抽样的结果决定是否使用压缩 session 传输
+        final boolean tCompress = useCompression_(aDirNormalize_(aDir), true, false);
+        final long tStartBytes = mTransferBytes.get(), tStartTime = System.currentTimeMillis();
+        // 会尝试一次重新连接
+        if (!isConnecting()) connect();
         // 获取文件传输通道，还是需要一个专门的频道来串行执行创建文件夹
         final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
+        tChannelSftp.connect(mChannelTimeout);
         if (aDir.equals(".")) aDir = "";
         if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
-        // 递归子文件夹传输文件
-        (new RecurseLocalDir(this, aDir) {
-            @Override public boolean initRemoteDir(String aRemoteDir) {return makeDir_(tChannelSftp, aRemoteDir);}
-            @Override public void doFile(File aLocalFile, String aRemoteDir) {tSftpPool.submit(aChannelSftp -> {try {aChannelSftp.put(aLocalFile.getPath(), aRemoteDir);} catch (SftpException ignored) {}});}
-        }).run();
+        final SftpPool tSftpPool;
+        if (mContentCache) {
+            // 统一创建文件夹，开启内容寻址缓存时只需要传输缓存中没有的文件
+            List<Pair<File, String>> tFiles = putByContent_(tChannelSftp, prepareUpload_(tChannelSftp, aDir, false), aThreadNumber);
+            // 创建并发线程池后再提交传输文件
+            tSftpPool = new SftpPool(this, aThreadNumber, transferSession_(tCompress));
+            for (Pair<File, String> tPair : tFiles) tSftpPool.submit(aChannelSftp -> {try {putFile_(aChannelSftp, tPair.first, tPair.second);} catch (SftpException ignored) {}});
+        } else {
+            // 否则边遍历边上传
+            tSftpPool = new SftpPool(this, aThreadNumber, transferSession_(tCompress));
+            putStreaming_(tChannelSftp, tSftpPool, aDir, false);
+        }
         // 最后关闭通道
         tChannelSftp.disconnect();
         tSftpPool.shutdown();
         tSftpPool.awaitTermination();
+        recordLinkSpeed_(tCompress, tStartBytes, tStartTime);
     }
     // 从服务器下载目录的并发版本，理论会更快
     public Task task_getDir(final String aDir, final int aThreadNumber) {return new Task() {
@@ -533,22 +1228,28 @@ public final class ServerSSH {
     };}
     public void getDir(String aDir, int aThreadNumber) throws JSchException, InterruptedException {
         if (mDead) throw new RuntimeException("Can NOT getDir from a Dead SSH.");
+        // 平均文件大小较小时自动改为 tar 流传输
+        if (useTar_(aDirNormalize_(aDir), false, false)) {try {getTar_(aDirNormalize_(aDir), false);} catch (IOException e) {throw new RuntimeException(e);} return;}
+        // 开启自动压缩时根据抽样的结果决定是否使用压缩 session 传输
+        final boolean tCompress = useCompression_(aDirNormalize_(aDir), false, false);
+        final long tStartBytes = mTransferBytes.get(), tStartTime = System.currentTimeMillis();
         // 创建并发线程池，会自动尝试重新连接
-        final SftpPool tSftpPool = new SftpPool(this, aThreadNumber);
+        final SftpPool tSftpPool = new SftpPool(this, aThreadNumber, transferSession_(tCompress));
         // 获取文件传输通道，需要一个专门的频道来串行执行获取目录等操作
         final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
+        tChannelSftp.connect(mChannelTimeout);
         if (aDir.equals(".")) aDir = "";
         if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
         // 递归子文件夹传输文件
         (new RecurseRemoteDir(this, aDir, tChannelSftp){
             @Override public boolean initLocalDir(String aLocalDir) {File tFile = new File(aLocalDir); return tFile.isDirectory() || tFile.mkdirs();}
-            @Override public void doFile(String aRemoteFile, String aLocalDir) {tSftpPool.submit(aChannelSftp -> {try {aChannelSftp.get(aRemoteFile, aLocalDir);} catch (SftpException ignored) {}});}
+            @Override public void doFile(String aRemoteFile, String aLocalDir) {tSftpPool.submit(aChannelSftp -> {try {getFile_(aChannelSftp, aRemoteFile, aLocalDir);} catch (SftpException ignored) {}});}
         }).run();
         // 最后关闭通道
         tChannelSftp.disconnect();
         tSftpPool.shutdown();
         tSftpPool.awaitTermination();
+        recordLinkSpeed_(tCompress, tStartBytes, tStartTime);
     }
     // 清空服务器的文件夹内容的并发版本，理论会更快
     public Task task_clearDir(final String aDir, final int aThreadNumber) {return new Task() {
@@ -557,13 +1258,15 @@ public final class ServerSSH {
     };}
     public void clearDir(String aDir, int aThreadNumber) throws JSchException, InterruptedException {
         if (mDead) throw new RuntimeException("Can NOT clearDir from a Dead SSH.");
+        if (aDir.equals(".")) aDir = "";
+        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        // 优先直接在服务器上删除
+        if (removeRemote_("clearDir", mRemoteWorkingDir+aDir, true)) return;
         // 创建并发线程池，会自动尝试重新连接
         final SftpPool tSftpPool = new SftpPool(this, aThreadNumber);
         // 获取文件传输通道，需要一个专门的频道来串行执行获取目录等操作
         final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
-        if (aDir.equals(".")) aDir = "";
-        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        tChannelSftp.connect(mChannelTimeout);
         // 递归子文件夹删除文件
         (new RecurseRemoteDir(this, aDir, tChannelSftp, false){
             @Override public void doFile(String aRemoteFile, String aLocalDir) {tSftpPool.submit(aChannelSftp -> {try {aChannelSftp.rm(aRemoteFile);} catch (SftpException ignored) {}});}
@@ -572,6 +1275,8 @@ public final class ServerSSH {
         tChannelSftp.disconnect();
         tSftpPool.shutdown();
         tSftpPool.awaitTermination();
+        // 删除后需要让对应的缓存失效
+        mAttrCache.invalidate(mRemoteWorkingDir+aDir); invalidateSyncCache_();
     }
     // 上传整个工作目录到服务器，过滤掉 '.'，'_' 开头的文件和文件夹，只提供并行版本
     public Task task_putWorkingDir() {return new Task() {
@@ -587,22 +1292,33 @@ public final class ServerSSH {
         if (mDead) throw new RuntimeException("Can NOT putWorkingDir from a Dead SSH.");
         // 如果本地目录是用户目录（获取工作目录失败）则禁止此操作
         if (UT.samePath(mLocalWorkingDir, System.getProperty("user.home")) || mLocalWorkingDir.equals("/")) throw new RuntimeException("Can NOT putWorkingDir when LocalWorkingDir is: \""+mLocalWorkingDir+"\"");
-        // 创建并发线程池，会自动尝试重新连接
-        final SftpPool tSftpPool = new SftpPool(this, aThreadNumber);
+        // 平均文件大小较小时自动改为 tar 流传输
+        if (useTar_("", true, true)) {try {putTar_("", true);} catch (IOException e) {throw new RuntimeException(e);} return;}
+        // 开启自动压缩时根据抽样的结果决定是否使用压缩 session 传输
+        final boolean tCompress = useCompression_("", true, true);
+        final long tStartBytes = mTransferBytes.get(), tStartTime = System.currentTimeMillis();
+        // 会尝试一次重新连接
+        if (!isConnecting()) connect();
         // 获取文件传输通道，还是需要一个专门的频道来串行执行创建文件夹
         final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
-        // 递归子文件夹传输文件
-        (new RecurseLocalDir(this, "") {
-            @Override public boolean initRemoteDir(String aRemoteDir) {return makeDir_(tChannelSftp, aRemoteDir);}
-            @Override public void doFile(File aLocalFile, String aRemoteDir) {tSftpPool.submit(aChannelSftp -> {try {aChannelSftp.put(aLocalFile.getPath(), aRemoteDir);} catch (SftpException ignored) {}});}
-            @Override public boolean dirFilter(String aLocalDirName) {return !aLocalDirName.startsWith(".") && !aLocalDirName.startsWith("_");}
-            @Override public boolean fileFilter(String aLocalFileName) {return !aLocalFileName.startsWith(".") && !aLocalFileName.startsWith("_");}
-        }).run();
+        tChannelSftp.connect(mChannelTimeout);
+        final SftpPool tSftpPool;
+        if (mContentCache) {
+            // 统一创建文件夹，开启内容寻址缓存时只需要传输缓存中没有的文件
+            List<Pair<File, String>> tFiles = putByContent_(tChannelSftp, prepareUpload_(tChannelSftp, "", true), aThreadNumber);
+            // 创建并发线程池后再提交传输文件
+            tSftpPool = new SftpPool(this, aThreadNumber, transferSession_(tCompress));
+            for (Pair<File, String> tPair : tFiles) tSftpPool.submit(aChannelSftp -> {try {putFile_(aChannelSftp, tPair.first, tPair.second);} catch (SftpException ignored) {}});
+        } else {
+            // 否则边遍历边上传
+            tSftpPool = new SftpPool(this, aThreadNumber, transferSession_(tCompress));
+            putStreaming_(tChannelSftp, tSftpPool, "", true);
+        }
         // 最后关闭通道
         tChannelSftp.disconnect();
         tSftpPool.shutdown();
         tSftpPool.awaitTermination();
+        recordLinkSpeed_(tCompress, tStartBytes, tStartTime);
     }
     // 从服务器下载整个工作目录到本地，过滤掉 '.'，'_' 开头的文件和文件夹，只提供并行版本
     public Task task_getWorkingDir() {return new Task() {
@@ -618,15 +1334,20 @@ public final class ServerSSH {
         if (mDead) throw new RuntimeException("Can NOT getWorkingDir from a Dead SSH.");
         // 如果远程目录是默认值则不允许此操作
         if (mRemoteWorkingDir.isEmpty() || mRemoteWorkingDir.equals("/")) throw new RuntimeException("Can NOT getWorkingDir when RemoteWorkingDir is: \""+mRemoteWorkingDir+"\"");
+        // 平均文件大小较小时自动改为 tar 流传输
+        if (useTar_("", false, true)) {try {getTar_("", true);} catch (IOException e) {throw new RuntimeException(e);} return;}
+        // 开启自动压缩时根据抽样的结果决定是否使用压缩 session 传输
+        final boolean tCompress = useCompression_("", false, true);
+        final long tStartBytes = mTransferBytes.get(), tStartTime = System.currentTimeMillis();
         // 创建并发线程池，会自动尝试重新连接
-        final SftpPool tSftpPool = new SftpPool(this, aThreadNumber);
+        final SftpPool tSftpPool = new SftpPool(this, aThreadNumber, transferSession_(tCompress));
         // 获取文件传输通道，需要一个专门的频道来串行执行获取目录等操作
         final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
+        tChannelSftp.connect(mChannelTimeout);
         // 递归子文件夹传输文件
         (new RecurseRemoteDir(this, "", tChannelSftp) {
             @Override public boolean initLocalDir(String aLocalDir) {File tFile = new File(aLocalDir); return tFile.isDirectory() || tFile.mkdirs();}
-            @Override public void doFile(String aRemoteFile, String aLocalDir) {tSftpPool.submit(aChannelSftp -> {try {aChannelSftp.get(aRemoteFile, aLocalDir);} catch (SftpException ignored) {}});}
+            @Override public void doFile(String aRemoteFile, String aLocalDir) {tSftpPool.submit(aChannelSftp -> {try {getFile_(aChannelSftp, aRemoteFile, aLocalDir);} catch (SftpException ignored) {}});}
             @Override public boolean dirFilter(String aRemoteDirName) {return !aRemoteDirName.startsWith(".") && !aRemoteDirName.startsWith("_");}
             @Override public boolean fileFilter(String aRemoteFileName) {return !aRemoteFileName.startsWith(".") && !aRemoteFileName.startsWith("_");}
         }).run();
@@ -634,6 +1355,7 @@ public final class ServerSSH {
         tChannelSftp.disconnect();
         tSftpPool.shutdown();
         tSftpPool.awaitTermination();
+        recordLinkSpeed_(tCompress, tStartBytes, tStartTime);
     }
     // 清空整个远程服务器的工作区，注意会删除文件夹，等价于 rmdir(".");
     public Task task_clearWorkingDir() {return new Task() {
@@ -649,11 +1371,13 @@ public final class ServerSSH {
         if (mDead) throw new RuntimeException("Can NOT clearWorkingDir from a Dead SSH.");
         // 如果远程目录是默认值则不允许此操作
         if (mRemoteWorkingDir.isEmpty() || mRemoteWorkingDir.equals("/")) throw new RuntimeException("Can NOT clearWorkingDir when RemoteWorkingDir is: \""+mRemoteWorkingDir+"\"");
+        // 优先直接在服务器上删除
+        if (removeRemote_("clearWorkingDir", mRemoteWorkingDir, false)) return;
         // 创建并发线程池，会自动尝试重新连接
         final SftpPool tSftpPool = new SftpPool(this, aThreadNumber);
         // 获取文件传输通道，需要一个专门的频道来串行执行获取目录等操作
         final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
-        tChannelSftp.connect();
+        tChannelSftp.connect(mChannelTimeout);
         // 需要删除的文件夹列表，由于是并发操作的，文件夹需要最后串行删除一次
         final List<String> tDirList = new ArrayList<>();
         // 递归子文件夹来删除
@@ -666,26 +1390,258 @@ public final class ServerSSH {
         tSftpPool.awaitTermination();
         // 再遍历删除所有文件夹
         for (String tRemoteDir : tDirList) {try {tChannelSftp.rmdir(tRemoteDir);} catch (SftpException ignored) {}}
+        // 删除后需要让对应的缓存失效
+        mAttrCache.invalidate(mRemoteWorkingDir); invalidateSyncCache_();
         // 最后关闭通道
         tChannelSftp.disconnect();
     }
+    // 增量上传目录到服务器，只上传大小或者修改时间不同的文件，开启 aDelete 会同时删除远程中本地已经不存在的文件
+    public Task task_syncPutDir(final String aDir, final int aThreadNumber, final boolean aDelete) {return new Task() {
+        @Override public boolean run() throws Exception {syncPutDir(aDir, aThreadNumber, aDelete); return true;}
+        @Override public String toString() {return String.format("%s{%s:%d:%b}", Type.SYNC_PUT_DIR.name(), aDir, aThreadNumber, aDelete);}
+    };}
+    public Task task_syncPutDir(String aDir, int aThreadNumber) {return task_syncPutDir(aDir, aThreadNumber, false);}
+    public Task task_syncPutDir(String aDir) {return task_syncPutDir(aDir, 4);}
+    public void syncPutDir(String aDir) throws JSchException, InterruptedException, IOException {syncPutDir(aDir, 4);}
+    public void syncPutDir(String aDir, int aThreadNumber) throws JSchException, InterruptedException, IOException {syncPutDir(aDir, aThreadNumber, false);}
+    public void syncPutDir(String aDir, int aThreadNumber, boolean aDelete) throws JSchException, InterruptedException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT syncPutDir from a Dead SSH.");
+        if (aDir.equals(".")) aDir = "";
+        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        syncPut_(aDir, aThreadNumber, aDelete, false);
+    }
+    // 增量从服务器下载目录，只下载大小或者修改时间不同的文件，开启 aDelete 会同时删除本地中远程已经不存在的文件
+    public Task task_syncGetDir(final String aDir, final int aThreadNumber, final boolean aDelete) {return new Task() {
+        @Override public boolean run() throws Exception {syncGetDir(aDir, aThreadNumber, aDelete); return true;}
+        @Override public String toString() {return String.format("%s{%s:%d:%b}", Type.SYNC_GET_DIR.name(), aDir, aThreadNumber, aDelete);}
+    };}
+    public Task task_syncGetDir(String aDir, int aThreadNumber) {return task_syncGetDir(aDir, aThreadNumber, false);}
+    public Task task_syncGetDir(String aDir) {return task_syncGetDir(aDir, 4);}
+    public void syncGetDir(String aDir) throws JSchException, InterruptedException, IOException {syncGetDir(aDir, 4);}
+    public void syncGetDir(String aDir, int aThreadNumber) throws JSchException, InterruptedException, IOException {syncGetDir(aDir, aThreadNumber, false);}
+    public void syncGetDir(String aDir, int aThreadNumber, boolean aDelete) throws JSchException, InterruptedException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT syncGetDir from a Dead SSH.");
+        if (aDir.equals(".")) aDir = "";
+        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        syncGet_(aDir, aThreadNumber, aDelete, false);
+    }
+    // 增量上传整个工作目录到服务器，过滤掉 '.'，'_' 开头的文件和文件夹
+    public Task task_syncPutWorkingDir(final int aThreadNumber, final boolean aDelete) {return new Task() {
+        @Override public boolean run() throws Exception {syncPutWorkingDir(aThreadNumber, aDelete); return true;}
+        @Override public String toString() {return String.format("%s{%d:%b}", Type.SYNC_PUT_WORKING_DIR.name(), aThreadNumber, aDelete);}
+    };}
+    public Task task_syncPutWorkingDir(int aThreadNumber) {return task_syncPutWorkingDir(aThreadNumber, false);}
+    public Task task_syncPutWorkingDir() {return task_syncPutWorkingDir(4);}
+    public void syncPutWorkingDir() throws JSchException, InterruptedException, IOException {syncPutWorkingDir(4);}
+    public void syncPutWorkingDir(int aThreadNumber) throws JSchException, InterruptedException, IOException {syncPutWorkingDir(aThreadNumber, false);}
+    public void syncPutWorkingDir(int aThreadNumber, boolean aDelete) throws JSchException, InterruptedException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT syncPutWorkingDir from a Dead SSH.");
+        // 如果本地目录是用户目录（获取工作目录失败）则禁止此操作
+        if (UT.samePath(mLocalWorkingDir, System.getProperty("user.home")) || mLocalWorkingDir.equals("/")) throw new RuntimeException("Can NOT syncPutWorkingDir when LocalWorkingDir is: \""+mLocalWorkingDir+"\"");
+        syncPut_("", aThreadNumber, aDelete, true);
+    }
+    // 增量从服务器下载整个工作目录到本地，过滤掉 '.'，'_' 开头的文件和文件夹
+    public Task task_syncGetWorkingDir(final int aThreadNumber, final boolean aDelete) {return new Task() {
+        @Override public boolean run() throws Exception {syncGetWorkingDir(aThreadNumber, aDelete); return true;}
+        @Override public String toString() {return String.format("%s{%d:%b}", Type.SYNC_GET_WORKING_DIR.name(), aThreadNumber, aDelete);}
+    };}
+    public Task task_syncGetWorkingDir(int aThreadNumber) {return task_syncGetWorkingDir(aThreadNumber, false);}
+    public Task task_syncGetWorkingDir() {return task_syncGetWorkingDir(4);}
+    public void syncGetWorkingDir() throws JSchException, InterruptedException, IOException {syncGetWorkingDir(4);}
+    public void syncGetWorkingDir(int aThreadNumber) throws JSchException, InterruptedException, IOException {syncGetWorkingDir(aThreadNumber, false);}
+    public void syncGetWorkingDir(int aThreadNumber, boolean aDelete) throws JSchException, InterruptedException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT syncGetWorkingDir from a Dead SSH.");
+        // 如果远程目录是默认值则不允许此操作
+        if (mRemoteWorkingDir.isEmpty() || mRemoteWorkingDir.equals("/")) throw new RuntimeException("Can NOT syncGetWorkingDir when RemoteWorkingDir is: \""+mRemoteWorkingDir+"\"");
+        syncGet_("", aThreadNumber, aDelete, true);
+    }
+    // 通过单个 exec 通道以 tar 流的形式上传目录到服务器，适合大量小文件的情况
+    public Task task_putDirTar(final String aDir) {return new Task() {
+        @Override public boolean run() throws Exception {putDirTar(aDir); return true;}
+        @Override public String toString() {return String.format("%s{%s}", Type.PUT_DIR_TAR.name(), aDir);}
+    };}
+    public void putDirTar(String aDir) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT putDirTar from a Dead SSH.");
+        if (aDir.equals(".")) aDir = "";
+        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        putTar_(aDir, false);
+    }
+    // 通过单个 exec 通道以 tar 流的形式从服务器下载目录，适合大量小文件的情况
+    public Task task_getDirTar(final String aDir) {return new Task() {
+        @Override public boolean run() throws Exception {getDirTar(aDir); return true;}
+        @Override public String toString() {return String.format("%s{%s}", Type.GET_DIR_TAR.name(), aDir);}
+    };}
+    public void getDirTar(String aDir) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT getDirTar from a Dead SSH.");
+        if (aDir.equals(".")) aDir = "";
+        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        getTar_(aDir, false);
+    }
+    // 以 tar 流的形式上传整个工作目录到服务器，过滤掉 '.'，'_' 开头的文件和文件夹
+    public Task task_putWorkingDirTar() {return new Task() {
+        @Override public boolean run() throws Exception {putWorkingDirTar(); return true;}
+        @Override public String toString() {return Type.PUT_WORKING_DIR_TAR.name();}
+    };}
+    public void putWorkingDirTar() throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT putWorkingDirTar from a Dead SSH.");
+        // 如果本地目录是用户目录（获取工作目录失败）则禁止此操作
+        if (UT.samePath(mLocalWorkingDir, System.getProperty("user.home")) || mLocalWorkingDir.equals("/")) throw new RuntimeException("Can NOT putWorkingDirTar when LocalWorkingDir is: \""+mLocalWorkingDir+"\"");
+        putTar_("", true);
+    }
+    // 以 tar 流的形式从服务器下载整个工作目录到本地，过滤掉 '.'，'_' 开头的文件和文件夹
+    public Task task_getWorkingDirTar() {return new Task() {
+        @Override public boolean run() throws Exception {getWorkingDirTar(); return true;}
+        @Override public String toString() {return Type.GET_WORKING_DIR_TAR.name();}
+    };}
+    public void getWorkingDirTar() throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT getWorkingDirTar from a Dead SSH.");
+        // 如果远程目录是默认值则不允许此操作
+        if (mRemoteWorkingDir.isEmpty() || mRemoteWorkingDir.equals("/")) throw new RuntimeException("Can NOT getWorkingDirTar when RemoteWorkingDir is: \""+mRemoteWorkingDir+"\"");
+        getTar_("", true);
+    }
+    // 清除增量上传的本地缓存，之后的增量上传会重新遍历远程目录
+    public void clearSyncCache() {
+        if (mSyncCacheDir == null) return;
+        File[] tFiles = new File(mSyncCacheDir).listFiles();
+        if (tFiles == null) return;
+        for (File tFile : tFiles) if (tFile.getName().startsWith("put-")) //noinspection ResultOfMethodCallIgnored
+            tFile.delete();
+    }
+    // 清除远程的内容寻址缓存
+    public void clearContentCache() throws JSchException {
+        if (mDead) throw new RuntimeException("Can NOT clearContentCache from a Dead SSH.");
+        removeDir(CAS_DIR);
+    }
+    /**
+     * 监听本地文件夹的修改并持续上传到服务器，避免每次 putDir 都重新遍历整个目录
+     * 使用 WatchService 监听整个目录树，短时间内的多次修改会合并，之后只上传新建或修改的文件（不会同步删除）
+     * 返回的 DirWatcher 可以使用 flush() 等待所有已经检测到的修改上传完成，不再需要时需要手动 close()
+     */
+    public DirWatcher watchWorkingDir() throws JSchException, IOException {return watchWorkingDir(4);}
+    public DirWatcher watchWorkingDir(int aThreadNumber) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT watchWorkingDir from a Dead SSH.");
+        // 如果本地目录是用户目录（获取工作目录失败）则禁止此操作
+        if (UT.samePath(mLocalWorkingDir, System.getProperty("user.home")) || mLocalWorkingDir.equals("/")) throw new RuntimeException("Can NOT watchWorkingDir when LocalWorkingDir is: \""+mLocalWorkingDir+"\"");
+        return new DirWatcher("", aThreadNumber, true);
+    }
+    public DirWatcher watchDir(String aDir) throws JSchException, IOException {return watchDir(aDir, 4);}
+    public DirWatcher watchDir(String aDir, int aThreadNumber) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT watchDir from a Dead SSH.");
+        return new DirWatcher(aDirNormalize_(aDir), aThreadNumber, false);
+    }
+    /**
+     * 测试不同加密算法在此服务器上的传输速度（MB/s，上传和下载的平均值），返回按照速度从快到慢排列的结果，并输出推荐的算法
+     * 每个算法会单独建立一个不压缩的连接，上传 aSize 字节到 /dev/null 并从 /dev/zero 下载 aSize 字节，jsch 或者服务器不支持的算法会被跳过
+     * 得到结果后可以使用 setCiphers 设置；测试过程中被中断会停止测试并抛出异常
+     */
+    public final static String DEFAULT_BENCHMARK_CIPHERS = "aes128-ctr,aes192-ctr,aes256-ctr";
+    public Map<String, Double> benchmarkCiphers() {return benchmarkCiphers(DEFAULT_BENCHMARK_CIPHERS);}
+    public Map<String, Double> benchmarkCiphers(String aCiphers) {return benchmarkCiphers(aCiphers, 32*1024*1024);}
+    public Map<String, Double> benchmarkCiphers(String aCiphers, long aSize) {
+        if (mDead) throw new RuntimeException("Can NOT benchmarkCiphers from a Dead SSH.");
+        List<Pair<String, Double>> tResults = new ArrayList<>();
+        for (String tCipher : aCiphers.split(",")) {
+            tCipher = tCipher.trim();
+            if (tCipher.isEmpty()) continue;
+            if (JSch.getConfig(tCipher) == null) {System.out.printf("%-32s not supported by jsch\n", tCipher); continue;}
+            Session tSession = null;
+            try {
+                tSession = newSession_(session());
+                tSession.setConfig("cipher.s2c", tCipher);
+                tSession.setConfig("cipher.c2s", tCipher);
+                tSession.setConfig("compression.s2c", "none");
+                tSession.setConfig("compression.c2s", "none");
+                tSession.connect();
+                double tUpload = benchmarkUpload_(tSession, aSize);
+                double tDownload = benchmarkDownload_(tSession, aSize);
+                tResults.add(new Pair<>(tCipher, (tUpload+tDownload)/2.0));
+                System.out.printf("%-32s upload: %8.2f MB/s, download: %8.2f MB/s\n", tCipher, tUpload, tDownload);
+            } catch (InterruptedIOException e) {
+                throw new RuntimeException(e);
+            } catch (Exception e) {
+                System.out.printf("%-32s not supported (%s)\n", tCipher, e.getMessage());
+            } finally {
+                if (tSession != null) tSession.disconnect();
+            }
+        }
+        tResults.sort((aA, aB) -> Double.compare(aB.second, aA.second));
+        Map<String, Double> rResults = new LinkedHashMap<>();
+        for (Pair<String, Double> tPair : tResults) rResults.put(tPair.first, tPair.second);
+        if (!tResults.isEmpty()) System.out.printf("Recommended cipher: %s, use setCiphers(\"%s\") to apply.\n", tResults.get(0).first, tResults.get(0).first);
+        System.out.flush();
+        return rResults;
+    }
+    // 上传 aSize 字节到远程的 /dev/null，返回速度（MB/s）
+    static double benchmarkUpload_(Session aSession, long aSize) throws JSchException, IOException {
+        ChannelExec tChannelExec = (ChannelExec) aSession.openChannel("exec");
+        tChannelExec.setCommand("cat > /dev/null");
+        OutputStream tOut = tChannelExec.getOutputStream();
+        InputStream tIn = tChannelExec.getInputStream();
+        tChannelExec.connect();
+        try {
+            byte[] tBuffer = new byte[32768];
+            new java.util.Random(0).nextBytes(tBuffer);
+            long tStart = System.nanoTime();
+            for (long tRest = aSize; tRest > 0; tRest -= tBuffer.length) {
+                if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Interrupted when benchmarking upload");
+                tOut.write(tBuffer, 0, (int)Math.min(tRest, tBuffer.length));
+            }
+            tOut.close();
+            // 阻塞读取到 EOF 来等待远程读取完成，中断时 jsch 的管道会抛出 InterruptedIOException，这里恢复中断标记
+            try {while (tIn.read(tBuffer) >= 0);} catch (InterruptedIOException e) {Thread.currentThread().interrupt(); throw e;}
+            waitClosed_(tChannelExec);
+            double tSeconds = (System.nanoTime()-tStart)/1e9;
+            return aSize/1048576.0/tSeconds;
+        } finally {
+            tChannelExec.disconnect();
+        }
+    }
+    // 从远程的 /dev/zero 下载 aSize 字节，返回速度（MB/s）
+    static double benchmarkDownload_(Session aSession, long aSize) throws JSchException, IOException {
+        ChannelExec tChannelExec = (ChannelExec) aSession.openChannel("exec");
+        tChannelExec.setCommand("head -c "+aSize+" /dev/zero");
+        InputStream tIn = tChannelExec.getInputStream();
+        long tStart = System.nanoTime();
+        tChannelExec.connect();
+        byte[] tBuffer = new byte[32768];
+        long tSize = 0; int tRead;
+        try {
+            try {while ((tRead = tIn.read(tBuffer)) > 0) tSize += tRead;} catch (InterruptedIOException e) {Thread.currentThread().interrupt(); throw e;}
+            double tSeconds = (System.nanoTime()-tStart)/1e9;
+            return tSize/1048576.0/tSeconds;
+        } finally {
+            tChannelExec.disconnect();
+        }
+    }
     
     
     /// 内部方法，这里统一认为目录结尾有 '/'，且不会自动添加
-    // 判断是否是文件夹，无论是什么情况报错都返回 false
-    static boolean isDir_(ChannelSftp aChannelSftp, String aDir) {
+    // 统一输入目录的格式，"." 认为是空目录，非空目录结尾需要有 '/'
+    static String aDirNormalize_(String aDir) {
+        if (aDir.equals(".")) aDir = "";
+        if (!aDir.isEmpty() && !aDir.endsWith("/")) aDir += "/";
+        return aDir;
+    }
+    // 判断是否是文件夹，无论是什么情况报错都返回 false，会优先使用缓存的结果
+    boolean isDir_(ChannelSftp aChannelSftp, String aDir) {
+        Boolean tCached = mAttrCache.isDir(aDir, mAttrCacheTTL);
+        if (tCached != null) return tCached;
         SftpATTRS tAttrs = null;
         try {tAttrs = aChannelSftp.stat(aDir);} catch (SftpException ignored) {}
+        if (tAttrs != null) mAttrCache.put(aDir, tAttrs.isDir(), mAttrCacheTTL);
         return tAttrs != null && tAttrs.isDir();
     }
-    // 判断是否是文件，无论是什么情况报错都返回 false
-    static boolean isFile_(ChannelSftp aChannelSftp, String aPath) {
+    // 判断是否是文件，无论是什么情况报错都返回 false，会优先使用缓存的结果
+    boolean isFile_(ChannelSftp aChannelSftp, String aPath) {
+        Boolean tCached = mAttrCache.isDir(aPath, mAttrCacheTTL);
+        if (tCached != null) return !tCached;
         SftpATTRS tAttrs = null;
         try {tAttrs = aChannelSftp.stat(aPath);} catch (SftpException ignored) {}
+        if (tAttrs != null) mAttrCache.put(aPath, tAttrs.isDir(), mAttrCacheTTL);
         return tAttrs != null && !tAttrs.isDir();
     }
     // 在远程服务器创建文件夹，实现跨文件夹创建文件夹。不同于一般的 mkdir，这里如果原本的目录存在会返回 true（主要是为了编程和使用的方便）
-    static boolean makeDir_(ChannelSftp aChannelSftp, String aDir) {
+    boolean makeDir_(ChannelSftp aChannelSftp, String aDir) {
         if (isDir_(aChannelSftp, aDir)) return true;
         // 如果目录不存在，则需要创建目录
         boolean tSuc = true;
@@ -697,61 +1653,1121 @@ public final class ServerSSH {
         }
         // 创建当前目录
         try {aChannelSftp.mkdir(aDir);} catch (SftpException e) {return false;}
+        mAttrCache.put(aDir, true, mAttrCacheTTL);
         return tSuc;
     }
+    // 通过一次 mkdir -p 指令创建所有的远程文件夹，缓存中已经存在的文件夹会跳过；远程不支持执行指令时会逐个使用 sftp 创建
+    boolean makeDirs_(ChannelSftp aChannelSftp, Collection<String> aDirs) {
+        List<String> tDirs = new ArrayList<>();
+        for (String tDir : aDirs) if (!tDir.isEmpty() && mAttrCache.isDir(tDir, mAttrCacheTTL) != Boolean.TRUE) tDirs.add(tDir);
+        if (tDirs.isEmpty()) return true;
+        boolean tSuc = true;
+        int tIdx = 0;
+        while (tSuc && tIdx < tDirs.size()) {
+            // 限制单个指令的长度，远程路径都是相对用户目录的，因此需要先回到用户目录
+            StringBuilder rCommand = new StringBuilder("cd ~ && mkdir -p --");
+            int tStart = tIdx;
+            while (tIdx < tDirs.size() && rCommand.length() < 65536) {rCommand.append(" ").append(quote_(tDirs.get(tIdx))); ++tIdx;}
+            try {
+                ChannelExec tChannelExec = systemChannel(rCommand.toString());
+                InputStream tIn = tChannelExec.getInputStream();
+                tChannelExec.connect(mChannelTimeout);
+                // 需要等待通道关闭才能得到正确的退出码，否则可能得到 -1 而退回到逐个创建
+                try {while (tIn.read() >= 0) {/**/} waitClosed_(tChannelExec); tSuc = tChannelExec.getExitStatus() == 0;}
+                finally {tChannelExec.disconnect();}
+            } catch (JSchException | IOException e) {
+                tSuc = false;
+            }
+            if (tSuc) for (String tDir : tDirs.subList(tStart, tIdx)) mAttrCache.put(tDir, true, mAttrCacheTTL);
+        }
+        if (tSuc) return true;
+        // 失败则逐个创建，已经创建的会直接通过缓存跳过
+        tSuc = true;
+        for (String tDir : tDirs) tSuc &= makeDir_(aChannelSftp, tDir);
+        return tSuc;
+    }
+    // 使用内容寻址缓存上传文件 <LocalFile, RemoteDir>，只上传缓存中没有的内容，然后在服务器上统一生成目标文件；返回仍然需要正常上传的文件，没有开启时直接返回输入
+    List<Pair<File, String>> putByContent_(ChannelSftp aChannelSftp, List<Pair<File, String>> aFiles, int aThreadNumber) throws JSchException {
+        if (!mContentCache || aFiles.isEmpty()) return aFiles;
+        // 被中断时直接全部正常上传（已经生成的目标文件会被覆盖）
+        try {return putByContentBlocking_(aChannelSftp, aFiles, aThreadNumber);}
+        catch (InterruptedException e) {Thread.currentThread().interrupt(); return aFiles;}
+    }
+    private List<Pair<File, String>> putByContentBlocking_(ChannelSftp aChannelSftp, List<Pair<File, String>> aFiles, int aThreadNumber) throws JSchException, InterruptedException {
+        List<Pair<File, String>> rRest = new ArrayList<>();
+        // 并行计算本地文件的 hash 值，空文件直接上传
+        List<Pair<Pair<File, String>, String>> tHashed = new ArrayList<>(); // <<LocalFile, RemoteDir>, Hash>
+        List<Pair<File, String>> tToHash = new ArrayList<>();
+        for (Pair<File, String> tPair : aFiles) {if (tPair.first.length() > 0) tToHash.add(tPair); else rRest.add(tPair);}
+        if (!tToHash.isEmpty()) {
+            ExecutorService tHashPool = Executors.newFixedThreadPool(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), tToHash.size())));
+            List<Future<String>> tFutures = new ArrayList<>();
+            for (final Pair<File, String> tPair : tToHash) tFutures.add(tHashPool.submit(() -> sha256_(tPair.first)));
+            tHashPool.shutdown();
+            for (int i = 0; i < tToHash.size(); ++i) {
+                try {tHashed.add(new Pair<>(tToHash.get(i), tFutures.get(i).get()));}
+                catch (ExecutionException e) {rRest.add(tToHash.get(i));}
+            }
+        }
+        if (tHashed.isEmpty()) return rRest;
+        // 一次查询服务器上已经存在的内容，查询失败则全部正常上传
+        final String tCasDir = mRemoteWorkingDir+CAS_DIR;
+        Map<String, File> tBlobs = new LinkedHashMap<>();
+        for (Pair<Pair<File, String>, String> tPair : tHashed) tBlobs.put(tPair.second, tPair.first.first);
+        Set<String> tExist = existBlobs_(tCasDir, tBlobs.keySet());
+        if (tExist == null || !makeDir_(aChannelSftp, tCasDir)) {for (Pair<Pair<File, String>, String> tPair : tHashed) rRest.add(tPair.first); return rRest;}
+        // 上传缺少的内容
+        final Set<String> tAvailable = ConcurrentHashMap.newKeySet();
+        tAvailable.addAll(tExist);
+        tBlobs.keySet().removeAll(tExist);
+        if (!tBlobs.isEmpty()) {
+            if (aThreadNumber <= 1) {
+                for (Map.Entry<String, File> tEntry : tBlobs.entrySet()) if (putBlob_(aChannelSftp, tEntry.getValue(), tCasDir, tEntry.getKey())) tAvailable.add(tEntry.getKey());
+            } else {
+                SftpPool tBlobPool = new SftpPool(this, Math.min(aThreadNumber, tBlobs.size()));
+                for (final Map.Entry<String, File> tEntry : tBlobs.entrySet()) tBlobPool.submit(aSftp -> {if (putBlob_(aSftp, tEntry.getValue(), tCasDir, tEntry.getKey())) tAvailable.add(tEntry.getKey());});
+                tBlobPool.shutdown();
+                tBlobPool.awaitTermination();
+            }
+        }
+        // 在服务器上统一生成目标文件，失败的文件需要正常上传
+        List<Pair<Pair<File, String>, String>> tToLink = new ArrayList<>();
+        for (Pair<Pair<File, String>, String> tPair : tHashed) {if (tAvailable.contains(tPair.second)) tToLink.add(tPair); else rRest.add(tPair.first);}
+        for (int tIdx : linkBlobs_(tCasDir, tToLink)) rRest.add(tToLink.get(tIdx).first);
+        return rRest;
+    }
+    // 通过一次指令查询缓存中已经存在的内容，执行失败返回 null
+    Set<String> existBlobs_(String aCasDir, Collection<String> aHashes) {
+        final String tMark = "SMARTSLURM-CAS";
+        Set<String> rExist = new HashSet<>();
+        List<String> tHashes = new ArrayList<>(aHashes);
+        int tIdx = 0;
+        while (tIdx < tHashes.size()) {
+            // 限制单个指令的长度，hash 值只包含十六进制字符因此不需要引号
+            StringBuilder rCommand = new StringBuilder("cd ~ && cd ").append(quote_(aCasDir)).append(" 2>/dev/null && for h in");
+            while (tIdx < tHashes.size() && rCommand.length() < 65536) {rCommand.append(" ").append(tHashes.get(tIdx)); ++tIdx;}
+            rCommand.append("; do [ -f \"$h\" ] && echo \"$h\"; done; echo ").append(tMark);
+            List<String> tLines;
+            try {tLines = systemLines_(rCommand.toString());} catch (JSchException | IOException e) {return null;}
+            if (!tLines.contains(tMark)) return null;
+            for (String tLine : tLines) if (aHashes.contains(tLine)) rExist.add(tLine);
+        }
+        return rExist;
+    }
+    // 上传单个内容到缓存中，先写入临时文件再重命名，保证缓存中的内容总是完整的
+    static boolean putBlob_(ChannelSftp aChannelSftp, File aLocalFile, String aCasDir, String aHash) {
+        String tPartPath = aCasDir+aHash+"."+UUID.randomUUID()+".part";
+        try {
+            aChannelSftp.put(aLocalFile.getPath(), tPartPath);
+            try {aChannelSftp.rename(tPartPath, aCasDir+aHash);}
+            catch (SftpException e) {aChannelSftp.rm(tPartPath); aChannelSftp.stat(aCasDir+aHash);} // 已经存在（被其他进程上传）则只需要删除临时文件
+            return true;
+        } catch (SftpException e) {
+            return false;
+        }
+    }
+    // 通过指令在服务器上统一从缓存生成目标文件，返回失败的序号
+    List<Integer> linkBlobs_(String aCasDir, List<Pair<Pair<File, String>, String>> aFiles) {
+        List<Integer> rFailed = new ArrayList<>();
+        int tIdx = 0;
+        while (tIdx < aFiles.size()) {
+            int tStart = tIdx;
+            // 限制单个指令的长度，失败时输出对应的序号
+            StringBuilder rCommand = new StringBuilder("cd ~");
+            while (tIdx < aFiles.size() && rCommand.length() < 65536) {
+                Pair<Pair<File, String>, String> tPair = aFiles.get(tIdx);
+                String tBlob = quote_(aCasDir+tPair.second);
+                String tTarget = quote_(tPair.first.second+tPair.first.first.getName());
+                if (mContentCacheHardLink) rCommand.append(String.format("; ln -f %s %s || echo %d", tBlob, tTarget, tIdx));
+                else rCommand.append(String.format("; { rm -f %s && { cp --reflink=auto %s %s 2>/dev/null || cp %s %s; }; } || echo %d", tTarget, tBlob, tTarget, tBlob, tTarget, tIdx));
+                ++tIdx;
+            }
+            List<String> tLines;
+            try {tLines = systemLines_(rCommand.toString());}
+            catch (JSchException | IOException e) {for (int i = tStart; i < tIdx; ++i) rFailed.add(i); continue;}
+            for (String tLine : tLines) {
+                try {int tFailed = Integer.parseInt(tLine.trim()); if (tFailed >= tStart && tFailed < tIdx) rFailed.add(tFailed);}
+                catch (NumberFormatException ignored) {}
+            }
+        }
+        return rFailed;
+    }
+    // 直接在服务器上通过一次 find -delete 删除远程文件夹，aKeepDir 为 true 时保留文件夹本身；远程不支持执行指令时返回 false，此时需要使用 sftp 删除
+    // 会在服务器上解析出实际路径（跟随软链接以及 ".."），不允许删除根目录，用户目录以及其上级目录；删除失败（find 退出码非零）时抛出异常
+    boolean removeRemote_(String aName, String aRemoteDir, boolean aKeepDir) {
+        String tPath = aRemoteDir;
+        while (tPath.endsWith("/")) tPath = tPath.substring(0, tPath.length()-1);
+        if (tPath.isEmpty() || tPath.equals(".") || tPath.equals("~")) throw new RuntimeException("Can NOT "+aName+" when remote dir is: \""+aRemoteDir+"\"");
+        // 远程路径都是相对用户目录的，因此需要先回到用户目录；路径不存在时不做任何操作（和 sftp 删除一致）
+        // 退出码 3 表示路径是受保护的目录，4 表示没有 find 指令
+        String tQuoted = quote_(tPath);
+        String tCommand = "cd ~ && H=$(pwd -P) || exit 1; command -v find >/dev/null || exit 4; "+
+                          "[ -e "+tQuoted+" ] || [ -L "+tQuoted+" ] || exit 0; "+
+                          "if [ -d "+tQuoted+" ]; then R=$(cd -P -- "+tQuoted+" && pwd -P) || exit 1; [ \"$R\" = / ] && exit 3; case \"$H/\" in \"$R\"/*) exit 3;; esac; fi; "+
+                          "find "+tQuoted+(aKeepDir?" -mindepth 1":"")+" -delete";
+        BoundedBuffer tErr = new BoundedBuffer(DEFAULT_EXEC_BUFFER_SIZE);
+        int tStatus;
+        try {tStatus = exec_(tCommand, new ByteArrayOutputStream(), tErr, 0);}
+        catch (JSchException | IOException e) {return false;}
+        finally {mAttrCache.invalidate(aRemoteDir); invalidateSyncCache_();}
+        switch (tStatus) {
+        case 0: return true;
+        case 3: throw new RuntimeException("Can NOT "+aName+" when remote dir is: \""+aRemoteDir+"\" (resolves to the root or home directory)");
+        case 4: return false;
+        default: throw new RuntimeException("Fail to "+aName+" remote dir \""+aRemoteDir+"\", exit status: "+tStatus+"\n"+new String(tErr.toByteArray(), StandardCharsets.UTF_8).trim());
+        }
+    }
+    // 遍历本地文件夹获取需要上传的文件 <LocalFile, RemoteDir>，期间会统一创建所有对应的远程文件夹，aWorkingDir 为 true 时会过滤掉 '.'，'_' 开头的文件和文件夹
+    List<Pair<File, String>> prepareUpload_(ChannelSftp aChannelSftp, String aDir, final boolean aWorkingDir) {
+        final List<String> tDirs = Collections.synchronizedList(new ArrayList<>());
+        final List<Pair<File, String>> rFiles = Collections.synchronizedList(new ArrayList<>());
+        (new RecurseLocalDir(this, aDir, true, true) {
+            @Override public boolean initRemoteDir(String aRemoteDir) {tDirs.add(aRemoteDir); return true;}
+            @Override public void doFile(File aLocalFile, String aRemoteDir) {rFiles.add(new Pair<>(aLocalFile, aRemoteDir));}
+            @Override public boolean dirFilter(String aLocalDirName) {return !aWorkingDir || (!aLocalDirName.startsWith(".") && !aLocalDirName.startsWith("_"));}
+            @Override public boolean fileFilter(String aLocalFileName) {return !aWorkingDir || (!aLocalFileName.startsWith(".") && !aLocalFileName.startsWith("_"));}
+        }).run();
+        makeDirs_(aChannelSftp, tDirs);
+        return rFiles;
+    }
+    // 边遍历本地文件夹边上传，遍历在另一个线程中并行进行；每积累一批文件夹就统一创建，然后将其中的文件提交到 aSftpPool
+    void putStreaming_(ChannelSftp aMainChannelSftp, SftpPool aSftpPool, final String aDir, final boolean aWorkingDir) throws InterruptedException {
+        final BlockingQueue<Pair<File, String>> tQueue = new LinkedBlockingQueue<>(); // 文件夹使用 <null, remoteDir> 表示
+        final Pair<File, String> tEnd = new Pair<>(null, null);
+        final RuntimeException[] tError = {null};
+        Thread tWalker = UT.threadFactory("ServerSSH-walker", UT.Worker.IO, true).newThread(() -> {
+            try {
+                (new RecurseLocalDir(this, aDir, true, true) {
+                    @Override public boolean initRemoteDir(String aRemoteDir) {tQueue.add(new Pair<>(null, aRemoteDir)); return true;}
+                    @Override public void doFile(File aLocalFile, String aRemoteDir) {tQueue.add(new Pair<>(aLocalFile, aRemoteDir));}
+                    @Override public boolean dirFilter(String aLocalDirName) {return !aWorkingDir || (!aLocalDirName.startsWith(".") && !aLocalDirName.startsWith("_"));}
+                    @Override public boolean fileFilter(String aLocalFileName) {return !aWorkingDir || (!aLocalFileName.startsWith(".") && !aLocalFileName.startsWith("_"));}
+                }).run();
+            } catch (RuntimeException e) {
+                tError[0] = e;
+            } finally {
+                tQueue.add(tEnd);
+            }
+        });
+        tWalker.start();
+        // 文件所在的文件夹一定在文件之前进入队列，因此提交文件之前先创建积累的文件夹即可
+        List<String> tDirs = new ArrayList<>();
+        List<Pair<File, String>> tFiles = new ArrayList<>();
+        while (true) {
+            Pair<File, String> tItem = tQueue.poll();
+            if (tItem == null || tItem == tEnd || tDirs.size() >= 1024 || tFiles.size() >= 1024) {
+                if (!tDirs.isEmpty()) {makeDirs_(aMainChannelSftp, tDirs); tDirs.clear();}
+                for (Pair<File, String> tPair : tFiles) aSftpPool.submit(aChannelSftp -> {try {putFile_(aChannelSftp, tPair.first, tPair.second);} catch (SftpException ignored) {}});
+                tFiles.clear();
+                if (tItem == null) tItem = tQueue.take();
+            }
+            if (tItem == tEnd) break;
+            if (tItem.first == null) tDirs.add(tItem.second);
+            else tFiles.add(tItem);
+        }
+        tWalker.join();
+        if (tError[0] != null) throw tError[0];
+    }
+    // 在服务器上执行 aOperation 指令，其中 %1$s 替换为 src，%2$s 替换为 dst（都已经加上引号），会先创建 dst 的上级文件夹；aSrcInWorkingDir 为 false 时 src 保持原样
+    boolean remoteOp_(String aOperation, String aSrc, String aDst, boolean aSrcInWorkingDir) throws JSchException, IOException {
+        if (aDst.endsWith("/")) aDst = aDst.substring(0, aDst.length()-1);
+        if (aSrcInWorkingDir && aSrc.endsWith("/")) aSrc = aSrc.substring(0, aSrc.length()-1);
+        String tDst = mRemoteWorkingDir+aDst;
+        String tSrc = aSrcInWorkingDir ? mRemoteWorkingDir+aSrc : aSrc;
+        if (tDst.isEmpty() || (aSrcInWorkingDir && tSrc.isEmpty())) throw new RuntimeException(String.format("Invalid path: \"%s\" -> \"%s\"", aSrc, aDst));
+        String tCommand = String.format("cd ~ && mkdir -p -- \"$(dirname -- %s)\" && { %s; }", quote_(tDst), String.format(aOperation, quote_(tSrc), quote_(tDst)));
+        // systemStatus_ 内部会清空远程路径状态的缓存
+        return systemStatus_(tCommand) == 0;
+    }
+    // 获取一个已经连接的 sftp 通道，会尝试一次重新连接，需要手动关闭
+    ChannelSftp openSftp_() throws JSchException {
+        if (!isConnecting()) connect();
+        ChannelSftp rChannelSftp = (ChannelSftp) session().openChannel("sftp");
+        rChannelSftp.connect(mChannelTimeout);
+        return rChannelSftp;
+    }
+    // 通过 sftp 的输出流上传数据到远程文件，会自动创建上级文件夹，开启 mTempRename 时会先写入临时文件再重命名
+    interface IDataWriter {void write(OutputStream aOut) throws IOException;}
+    void putData_(String aFilePath, IDataWriter aWriter) throws JSchException, SftpException, IOException {
+        ChannelSftp tChannelSftp = openSftp_();
+        try {
+            String tRemoteDir = mRemoteWorkingDir;
+            int tEndIdx = aFilePath.lastIndexOf("/");
+            if (tEndIdx > 0) { // 否则不用创建，认为 mRemoteWorkingDir 已经存在
+                tRemoteDir += aFilePath.substring(0, tEndIdx+1);
+                if (!makeDir_(tChannelSftp, tRemoteDir)) throw new RuntimeException("Fail when create remote dir: " + tRemoteDir);
+            }
+            String tName = aFilePath.substring(tEndIdx+1);
+            String tRemotePath = tRemoteDir+tName;
+            String tWritePath = mTempRename ? tRemoteDir+"."+tName+".part" : tRemotePath;
+            try (OutputStream tOut = tChannelSftp.put(tWritePath, ChannelSftp.OVERWRITE)) {aWriter.write(tOut);}
+            if (mTempRename) renameRemote_(tChannelSftp, tWritePath, tRemotePath);
+        } finally {
+            tChannelSftp.disconnect();
+        }
+    }
+    // 上传单个本地文件到远程文件夹，会根据设置进行断点续传以及临时文件重命名
+    void putFile_(ChannelSftp aChannelSftp, File aLocalFile, String aRemoteDir) throws SftpException {
+        String tRemotePath = aRemoteDir + aLocalFile.getName();
+        if (mAutoCompression) mTransferBytes.addAndGet(aLocalFile.length());
+        if (!resume_() && !mTempRename) {aChannelSftp.put(aLocalFile.getPath(), tRemotePath); return;}
+        String tWritePath = mTempRename ? aRemoteDir+"."+aLocalFile.getName()+".part" : tRemotePath;
+        int tMode = ChannelSftp.OVERWRITE;
+        boolean tDone = false;
+        if (resume_()) {
+            long tRemoteSize = -1;
+            try {tRemoteSize = aChannelSftp.stat(tWritePath).getSize();} catch (SftpException ignored) {}
+            long tLocalSize = aLocalFile.length();
+            // 只有已经写入的部分不超过源文件，并且尾部数据一致才会续传，否则重新传输
+            if (tRemoteSize > 0 && tRemoteSize <= tLocalSize && tailMatch_(aChannelSftp, tWritePath, aLocalFile, tRemoteSize)) {
+                if (tRemoteSize == tLocalSize) tDone = true;
+                else tMode = ChannelSftp.RESUME;
+            }
+        }
+        if (!tDone) aChannelSftp.put(aLocalFile.getPath(), tWritePath, tMode);
+        if (mTempRename) renameRemote_(aChannelSftp, tWritePath, tRemotePath);
+    }
+    // 将远程的临时文件重命名为目标文件并覆盖原本的文件，需要保证原子性，使得其他进程总是能读取到完整的文件
+    // jsch 在服务器支持时会使用 posix-rename 直接覆盖，否则目标文件存在时会失败，此时改为在服务器上执行 mv -f（同一文件系统中同样是原子的 rename）
+    void renameRemote_(ChannelSftp aChannelSftp, String aFrom, String aTo) throws SftpException {
+        try {aChannelSftp.rename(aFrom, aTo); return;}
+        catch (SftpException ignored) {}
+        int tStatus;
+        try {tStatus = exec_(String.format("cd ~ && mv -f -- %s %s", quote_(aFrom), quote_(aTo)), new ByteArrayOutputStream(), System.err, 0);}
+        catch (JSchException | IOException e) {throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "Fail when rename remote file: "+aTo);}
+        if (tStatus != 0) throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "Fail when rename remote file: "+aTo);
+    }
+    // 下载单个远程文件到本地文件夹，会根据设置进行断点续传以及临时文件重命名
+    void getFile_(ChannelSftp aChannelSftp, String aRemoteFile, String aLocalDir) throws SftpException {
+        String tName = aRemoteFile.substring(aRemoteFile.lastIndexOf("/")+1);
+        File tLocalFile = new File(aLocalDir + tName);
+        if (!resume_() && !mTempRename) {
+            aChannelSftp.get(aRemoteFile, aLocalDir);
+            if (mAutoCompression) mTransferBytes.addAndGet(tLocalFile.length());
+            return;
+        }
+        File tWriteFile = mTempRename ? new File(aLocalDir+"."+tName+".part") : tLocalFile;
+        int tMode = ChannelSftp.OVERWRITE;
+        boolean tDone = false;
+        if (resume_() && tWriteFile.isFile()) {
+            long tRemoteSize = aChannelSftp.stat(aRemoteFile).getSize();
+            long tLocalSize = tWriteFile.length();
+            if (tLocalSize > 0 && tLocalSize <= tRemoteSize && tailMatch_(aChannelSftp, aRemoteFile, tWriteFile, tLocalSize)) {
+                if (tLocalSize == tRemoteSize) tDone = true;
+                else tMode = ChannelSftp.RESUME;
+            }
+        }
+        if (!tDone) aChannelSftp.get(aRemoteFile, tWriteFile.getPath(), null, tMode);
+        if (mAutoCompression) mTransferBytes.addAndGet(tWriteFile.length());
+        if (mTempRename) {
+            try {Files.move(tWriteFile.toPath(), tLocalFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);}
+            catch (IOException e) {
+                try {Files.move(tWriteFile.toPath(), tLocalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);}
+                catch (IOException ee) {throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "Fail when rename local file: "+tLocalFile.getPath());}
+            }
+        }
+    }
+    // 是否可以续传，临时文件一定是之前中断的传输，而目标文件可能是旧版本的文件，因此需要开启尾部校验才会续传
+    boolean resume_() {return mResume && (mTempRename || mResumeCheckSize > 0);}
+    // 比较远程文件和本地文件在 [aEnd-mResumeCheckSize, aEnd) 区间的数据是否一致，没有开启校验时直接返回 true
+    boolean tailMatch_(ChannelSftp aChannelSftp, String aRemotePath, File aLocalFile, long aEnd) {
+        if (mResumeCheckSize <= 0) return true;
+        long tStart = Math.max(0, aEnd-mResumeCheckSize);
+        // 分块比较，避免一次分配整个校验区间
+        byte[] tRemoteData = new byte[(int)Math.min(aEnd-tStart, RESUME_CHECK_BUFFER_SIZE)];
+        byte[] tLocalData = new byte[tRemoteData.length];
+        try (InputStream tIn = aChannelSftp.get(aRemotePath, null, tStart); RandomAccessFile tFile = new RandomAccessFile(aLocalFile, "r")) {
+            tFile.seek(tStart);
+            long tRest = aEnd-tStart;
+            while (tRest > 0) {
+                int tLen = (int)Math.min(tRest, tRemoteData.length);
+                int tPos = 0, tRead;
+                while (tPos < tLen && (tRead = tIn.read(tRemoteData, tPos, tLen-tPos)) > 0) tPos += tRead;
+                if (tPos < tLen) return false;
+                tFile.readFully(tLocalData, 0, tLen);
+                for (int i = 0; i < tLen; ++i) if (tRemoteData[i] != tLocalData[i]) return false;
+                tRest -= tLen;
+            }
+        } catch (SftpException | IOException e) {
+            return false;
+        }
+        return true;
+    }
+    // 增量上传的具体实现，aWorkingDir 为 true 时会过滤掉 '.'，'_' 开头的文件和文件夹
+    void syncPut_(String aDir, int aThreadNumber, boolean aDelete, final boolean aWorkingDir) throws JSchException, InterruptedException, IOException {
+        // 创建并发线程池，会自动尝试重新连接
+        final SftpPool tSftpPool = new SftpPool(this, aThreadNumber);
+        // 获取文件传输通道，还是需要一个专门的频道来串行执行创建文件夹等操作
+        final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
+        tChannelSftp.connect(mChannelTimeout);
+        final String tRoot = mRemoteWorkingDir+aDir;
+        // 获取远程文件的状态 <path, [size, mtime]>，有缓存时直接使用缓存，否则需要遍历远程目录
+        final File tCacheFile = syncCacheFile_(tRoot, aWorkingDir);
+        Map<String, long[]> tCache = readSyncCache_(tCacheFile);
+        if (tCache == null) {
+            final Map<String, long[]> rRemoteState = new HashMap<>();
+            (new RecurseRemoteDir(this, aDir, tChannelSftp, false) {
+                @Override public void doFile(String aRemoteFile, long aSize, long aMTime, String aLocalDir) {rRemoteState.put(aRemoteFile.substring(tRoot.length()), new long[]{aSize, aMTime});}
+                @Override public boolean dirFilter(String aRemoteDirName) {return !aWorkingDir || (!aRemoteDirName.startsWith(".") && !aRemoteDirName.startsWith("_"));}
+                @Override public boolean fileFilter(String aRemoteFileName) {return !aWorkingDir || (!aRemoteFileName.startsWith(".") && !aRemoteFileName.startsWith("_"));}
+            }).run();
+            tCache = rRemoteState;
+        }
+        final Map<String, long[]> tOldState = tCache;
+        final Map<String, long[]> tNewState = new ConcurrentHashMap<>();
+        final Set<String> tLocalKeys = new HashSet<>();
+        final List<Pair<File, String>> tHashList = new ArrayList<>();
+        // 遍历本地文件夹并统一创建文件夹，只提交有变化的文件
+        for (Pair<File, String> tPair : prepareUpload_(tChannelSftp, aDir, aWorkingDir)) {
+            File tLocalFile = tPair.first;
+            String tRemoteDir = tPair.second;
+            String tKey = (tRemoteDir+tLocalFile.getName()).substring(tRoot.length());
+            tLocalKeys.add(tKey);
+            long[] tLocal = {tLocalFile.length(), tLocalFile.lastModified()/1000};
+            long[] tRemote = tOldState.get(tKey);
+            if (tRemote != null && tRemote[0] == tLocal[0] && tRemote[1] == tLocal[1]) {tNewState.put(tKey, tLocal); continue;}
+            // 大小相同的文件在开启 mSyncHash 后需要进一步比较内容
+            if (mSyncHash && tRemote != null && tRemote[0] == tLocal[0]) {tHashList.add(tPair); continue;}
+            syncPutFile_(tSftpPool, tLocalFile, tRemoteDir, tKey, tLocal, tNewState);
+        }
+        // 统一获取需要比较内容的远程文件的 hash 值
+        if (!tHashList.isEmpty()) {
+            List<String> tPaths = new ArrayList<>();
+            for (Pair<File, String> tPair : tHashList) tPaths.add(tPair.second.substring(mRemoteWorkingDir.length())+tPair.first.getName());
+            Map<String, String> tRemoteHashes = remoteSha256_(tPaths);
+            for (Pair<File, String> tPair : tHashList) {
+                File tLocalFile = tPair.first;
+                String tRemotePath = tPair.second+tLocalFile.getName();
+                String tKey = tRemotePath.substring(tRoot.length());
+                long[] tLocal = {tLocalFile.length(), tLocalFile.lastModified()/1000};
+                String tRemoteHash = tRemoteHashes.get(tRemotePath.substring(mRemoteWorkingDir.length()));
+                if (tRemoteHash != null && tRemoteHash.equals(sha256_(tLocalFile))) {
+                    // 内容相同则只需要同步修改时间
+                    try {tChannelSftp.setMtime(tRemotePath, (int)tLocal[1]); tNewState.put(tKey, tLocal);} catch (SftpException ignored) {}
+                } else {
+                    syncPutFile_(tSftpPool, tLocalFile, tPair.second, tKey, tLocal, tNewState);
+                }
+            }
+        }
+        // 删除本地已经不存在的远程文件，否则需要保留这些文件的状态
+        for (Map.Entry<String, long[]> tEntry : tOldState.entrySet()) if (!tLocalKeys.contains(tEntry.getKey())) {
+            final String tKey = tEntry.getKey();
+            // 过滤的文件本来就不会上传，即使缓存中有也不能删除
+            if (aWorkingDir && filtered_(tKey)) continue;
+            if (aDelete) tSftpPool.submit(aChannelSftp -> {try {aChannelSftp.rm(tRoot+tKey); mAttrCache.invalidate(tRoot+tKey);} catch (SftpException ignored) {}});
+            else tNewState.put(tKey, tEntry.getValue());
+        }
+        // 最后关闭通道
+        tChannelSftp.disconnect();
+        tSftpPool.shutdown();
+        tSftpPool.awaitTermination();
+        // 更新缓存
+        writeSyncCache_(tCacheFile, tNewState);
+    }
+    private void syncPutFile_(SftpPool aSftpPool, final File aLocalFile, final String aRemoteDir, final String aKey, final long[] aLocal, final Map<String, long[]> rNewState) {
+        aSftpPool.submit(aChannelSftp -> {
+            try {
+                putFile_(aChannelSftp, aLocalFile, aRemoteDir);
+                // 上传后同步修改时间，从而下次可以直接比较
+                aChannelSftp.setMtime(aRemoteDir+aLocalFile.getName(), (int)aLocal[1]);
+                rNewState.put(aKey, aLocal);
+            } catch (SftpException ignored) {}
+        });
+    }
+    // 增量下载的具体实现，aWorkingDir 为 true 时会过滤掉 '.'，'_' 开头的文件和文件夹
+    void syncGet_(String aDir, int aThreadNumber, boolean aDelete, final boolean aWorkingDir) throws JSchException, InterruptedException, IOException {
+        // 创建并发线程池，会自动尝试重新连接
+        final SftpPool tSftpPool = new SftpPool(this, aThreadNumber);
+        // 获取文件传输通道，需要一个专门的频道来串行执行获取目录等操作
+        final ChannelSftp tChannelSftp = (ChannelSftp) session().openChannel("sftp");
+        tChannelSftp.connect(mChannelTimeout);
+        final String tRoot = mRemoteWorkingDir+aDir;
+        final Set<String> tRemoteKeys = new HashSet<>();
+        final List<Pair<String, Pair<String, Long>>> tHashList = new ArrayList<>(); // <RemoteFile, <LocalDir, MTime>>
+        // 遍历远程文件夹，只提交有变化的文件
+        (new RecurseRemoteDir(this, aDir, tChannelSftp) {
+            @Override public boolean initLocalDir(String aLocalDir) {File tFile = new File(aLocalDir); return tFile.isDirectory() || tFile.mkdirs();}
+            @Override public void doFile(String aRemoteFile, long aSize, long aMTime, String aLocalDir) {
+                tRemoteKeys.add(aRemoteFile.substring(tRoot.length()));
+                File tLocalFile = new File(aLocalDir+aRemoteFile.substring(aRemoteFile.lastIndexOf("/")+1));
+                if (tLocalFile.isFile() && tLocalFile.length() == aSize) {
+                    if (tLocalFile.lastModified()/1000 == aMTime) return;
+                    // 大小相同的文件在开启 mSyncHash 后需要进一步比较内容
+                    if (mSyncHash) {tHashList.add(new Pair<>(aRemoteFile, new Pair<>(aLocalDir, aMTime))); return;}
+                }
+                syncGetFile_(tSftpPool, aRemoteFile, aLocalDir, aMTime);
+            }
+            @Override public boolean dirFilter(String aRemoteDirName) {return !aWorkingDir || (!aRemoteDirName.startsWith(".") && !aRemoteDirName.startsWith("_"));}
+            @Override public boolean fileFilter(String aRemoteFileName) {return !aWorkingDir || (!aRemoteFileName.startsWith(".") && !aRemoteFileName.startsWith("_"));}
+        }).run();
+        // 统一获取需要比较内容的远程文件的 hash 值
+        if (!tHashList.isEmpty()) {
+            List<String> tPaths = new ArrayList<>();
+            for (Pair<String, Pair<String, Long>> tPair : tHashList) tPaths.add(tPair.first.substring(mRemoteWorkingDir.length()));
+            Map<String, String> tRemoteHashes = remoteSha256_(tPaths);
+            for (Pair<String, Pair<String, Long>> tPair : tHashList) {
+                String tRemoteFile = tPair.first;
+                File tLocalFile = new File(tPair.second.first+tRemoteFile.substring(tRemoteFile.lastIndexOf("/")+1));
+                String tRemoteHash = tRemoteHashes.get(tRemoteFile.substring(mRemoteWorkingDir.length()));
+                // 内容相同则只需要同步修改时间
+                if (tRemoteHash != null && tRemoteHash.equals(sha256_(tLocalFile))) {//noinspection ResultOfMethodCallIgnored
+                    tLocalFile.setLastModified(tPair.second.second*1000L);
+                } else {
+                    syncGetFile_(tSftpPool, tRemoteFile, tPair.second.first, tPair.second.second);
+                }
+            }
+        }
+        // 删除远程已经不存在的本地文件
+        if (aDelete) (new RecurseLocalDir(this, aDir, false) {
+            @Override public void doFile(File aLocalFile, String aRemoteDir) {if (!tRemoteKeys.contains((aRemoteDir+aLocalFile.getName()).substring(tRoot.length()))) //noinspection ResultOfMethodCallIgnored
+                aLocalFile.delete();}
+            @Override public boolean dirFilter(String aLocalDirName) {return !aWorkingDir || (!aLocalDirName.startsWith(".") && !aLocalDirName.startsWith("_"));}
+            @Override public boolean fileFilter(String aLocalFileName) {return !aWorkingDir || (!aLocalFileName.startsWith(".") && !aLocalFileName.startsWith("_"));}
+        }).run();
+        // 最后关闭通道
+        tChannelSftp.disconnect();
+        tSftpPool.shutdown();
+        tSftpPool.awaitTermination();
+    }
+    private void syncGetFile_(SftpPool aSftpPool, final String aRemoteFile, final String aLocalDir, final long aMTime) {
+        aSftpPool.submit(aChannelSftp -> {
+            try {
+                getFile_(aChannelSftp, aRemoteFile, aLocalDir);
+                // 下载后同步修改时间，从而下次可以直接比较
+                //noinspection ResultOfMethodCallIgnored
+                new File(aLocalDir+aRemoteFile.substring(aRemoteFile.lastIndexOf("/")+1)).setLastModified(aMTime*1000L);
+            } catch (SftpException ignored) {}
+        });
+    }
+    // 通过一次 sha256sum 指令获取远程文件的 hash 值，输入的路径是相对 mRemoteWorkingDir 的路径，获取失败的文件不会出现在结果中
+    Map<String, String> remoteSha256_(List<String> aPaths) throws JSchException, IOException {
+        Map<String, String> rHashes = new HashMap<>();
+        int tIdx = 0;
+        while (tIdx < aPaths.size()) {
+            // 限制单个指令的长度
+            StringBuilder rCommand = new StringBuilder("sha256sum --");
+            while (tIdx < aPaths.size() && rCommand.length() < 65536) {rCommand.append(" ").append(quote_(aPaths.get(tIdx))); ++tIdx;}
+            for (String tLine : systemLines_(rCommand.toString())) {
+                if (tLine.length() < 67 || tLine.startsWith("\\")) continue; // 特殊文件名会被转义，直接跳过
+                rHashes.put(tLine.substring(66), tLine.substring(0, 64));
+            }
+        }
+        return rHashes;
+    }
+    // 计算本地文件的 sha256 值；不使用内存映射，因为映射的内存直到 GC 才会释放，大量文件时会占满地址空间，改为每个线程复用一个直接缓冲区流式读取
+    private final static int SHA256_BUFFER_SIZE = 1024*1024;
+    private final static ThreadLocal<ByteBuffer> SHA256_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(SHA256_BUFFER_SIZE));
+    static String sha256_(File aFile) throws IOException {
+        MessageDigest tDigest;
+        try {tDigest = MessageDigest.getInstance("SHA-256");} catch (NoSuchAlgorithmException e) {throw new RuntimeException(e);}
+        ByteBuffer tBuffer = SHA256_BUFFER.get();
+        try (FileChannel tChannel = FileChannel.open(aFile.toPath(), StandardOpenOption.READ)) {
+            tBuffer.clear();
+            while (tChannel.read(tBuffer) >= 0) {
+                tBuffer.flip();
+                tDigest.update(tBuffer);
+                tBuffer.clear();
+            }
+        }
+        return toHex_(tDigest.digest());
+    }
+    static String toHex_(byte[] aData) {
+        StringBuilder rStr = new StringBuilder();
+        for (byte tByte : aData) rStr.append(String.format("%02x", tByte));
+        return rStr.toString();
+    }
+    // 增量上传的缓存文件，按照服务器，远程目录以及是否过滤区分，没有设置缓存目录时返回 null
+    // 文件名为 put-{服务器}-{目录}.json，从而可以只清除一个服务器的缓存
+    File syncCacheFile_(String aRemoteDir, boolean aWorkingDir) {
+        if (mSyncCacheDir == null) return null;
+        return new File(mSyncCacheDir+syncCachePrefix_()+hash16_(String.format("%s|%s", aWorkingDir?"working":"all", aRemoteDir))+".json");
+    }
+    String syncCachePrefix_() {return "put-"+hash16_(String.format("%s@%s:%d", session().getUserName(), session().getHost(), session().getPort()))+"-";}
+    static String hash16_(String aKey) {
+        MessageDigest tDigest;
+        try {tDigest = MessageDigest.getInstance("SHA-256");} catch (NoSuchAlgorithmException e) {throw new RuntimeException(e);}
+        return toHex_(tDigest.digest(aKey.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+    }
+    // 清除这个服务器的所有增量上传缓存，在任何可能修改远程文件的操作后调用
+    void invalidateSyncCache_() {
+        if (mSyncCacheDir == null) return;
+        String tPrefix = syncCachePrefix_();
+        File[] tFiles = new File(mSyncCacheDir).listFiles();
+        if (tFiles == null) return;
+        for (File tFile : tFiles) if (tFile.getName().startsWith(tPrefix)) //noinspection ResultOfMethodCallIgnored
+            tFile.delete();
+    }
+    // 路径中任意一级以 '.' 或者 '_' 开头时在工作目录中会被过滤
+    static boolean filtered_(String aPath) {
+        for (String tName : aPath.split("/")) if (tName.startsWith(".") || tName.startsWith("_")) return true;
+        return false;
+    }
+    static Map<String, long[]> readSyncCache_(File aCacheFile) {
+        if (aCacheFile == null || !aCacheFile.isFile()) return null;
+        Map<String, long[]> rState = new HashMap<>();
+        try (Reader tReader = new InputStreamReader(new FileInputStream(aCacheFile), StandardCharsets.UTF_8)) {
+            JSONObject tJson = (JSONObject) new JSONParser().parse(tReader);
+            for (Object tKey : tJson.keySet()) {
+                JSONArray tValue = (JSONArray) tJson.get(tKey);
+                rState.put((String) tKey, new long[]{((Number) tValue.get(0)).longValue(), ((Number) tValue.get(1)).longValue()});
+            }
+        } catch (Exception e) {
+            return null; // 缓存损坏则认为没有缓存
+        }
+        return rState;
+    }
+    @SuppressWarnings("unchecked")
+    static void writeSyncCache_(File aCacheFile, Map<String, long[]> aState) throws IOException {
+        if (aCacheFile == null) return;
+        File tParent = aCacheFile.getParentFile();
+        if (tParent != null && !tParent.isDirectory() && !tParent.mkdirs()) throw new IOException("Fail when create sync cache dir: "+tParent.getPath());
+        JSONObject rJson = new JSONObject();
+        for (Map.Entry<String, long[]> tEntry : aState.entrySet()) {
+            JSONArray rValue = new JSONArray();
+            rValue.add(tEntry.getValue()[0]);
+            rValue.add(tEntry.getValue()[1]);
+            rJson.put(tEntry.getKey(), rValue);
+        }
+        try (Writer tWriter = new OutputStreamWriter(new FileOutputStream(aCacheFile), StandardCharsets.UTF_8)) {JSONObject.writeJSONString(rJson, tWriter);}
+    }
+    // tar 流上传的具体实现，本地边遍历边打包，远程直接解包，aWorkingDir 为 true 时会过滤掉 '.'，'_' 开头的文件和文件夹
+    void putTar_(String aDir, final boolean aWorkingDir) throws JSchException, IOException {
+        // 需要先保证远程目录存在
+        if (!makeDir(aDir)) throw new RuntimeException("Fail when create remote dir: "+mRemoteWorkingDir+aDir);
+        String tDir = aDir.isEmpty() ? "." : aDir;
+        // systemChannel 内部已经尝试了重连
+        ChannelExec tChannelExec = systemChannel(String.format("tar -x%sf - -C %s", mTarCompress?"z":"", quote_(tDir)));
+        InputStream tIn = tChannelExec.getInputStream();
+        OutputStream tOut = tChannelExec.getOutputStream();
+        tChannelExec.connect(mChannelTimeout);
+        final String tRoot = mRemoteWorkingDir+aDir;
+        final TarWriter tTar = new TarWriter(mTarCompress ? new GZIPOutputStream(tOut, 65536) : new BufferedOutputStream(tOut, 65536));
+        try {
+            // 递归子文件夹打包文件，打包过程中的错误统一包装成 UncheckedIOException 抛出
+            (new RecurseLocalDir(this, aDir) {
+                @Override public boolean initRemoteDir(String aRemoteDir) {
+                    if (aRemoteDir.length() > tRoot.length()) try {tTar.putDir(aRemoteDir.substring(tRoot.length()), System.currentTimeMillis()/1000);} catch (IOException e) {throw new UncheckedIOException(e);}
+                    return true;
+                }
+                @Override public void doFile(File aLocalFile, String aRemoteDir) {try {tTar.putFile((aRemoteDir+aLocalFile.getName()).substring(tRoot.length()), aLocalFile);} catch (IOException e) {throw new UncheckedIOException(e);}}
+                @Override public boolean dirFilter(String aLocalDirName) {return !aWorkingDir || (!aLocalDirName.startsWith(".") && !aLocalDirName.startsWith("_"));}
+                @Override public boolean fileFilter(String aLocalFileName) {return !aWorkingDir || (!aLocalFileName.startsWith(".") && !aLocalFileName.startsWith("_"));}
+            }).run();
+            // 关闭输出流会通知远程输入结束
+            tTar.close();
+        } catch (UncheckedIOException e) {
+            tChannelExec.disconnect();
+            throw e.getCause();
+        }
+        // 等待远程解包完成，解包可能会覆盖原本的文件，需要让对应的缓存失效
+        int tExitStatus;
+        try {
+            while (tIn.read() >= 0) {/**/}
+            waitClosed_(tChannelExec);
+            tExitStatus = tChannelExec.getExitStatus();
+        } finally {
+            mAttrCache.invalidate(tRoot);
+            // 最后关闭通道
+            tChannelExec.disconnect();
+        }
+        if (tExitStatus != 0) throw new RuntimeException("Fail when untar in remote dir: "+tRoot+" (exit status "+tExitStatus+")");
+    }
+    // tar 流下载的具体实现，远程打包，本地边读取边解包，aWorkingDir 为 true 时会过滤掉 '.'，'_' 开头的文件和文件夹
+    void getTar_(String aDir, boolean aWorkingDir) throws JSchException, IOException {
+        String tDir = aDir.isEmpty() ? "." : aDir;
+        String tCommand;
+        // 和 sftp 下载一致，符号链接和硬链接都下载为普通文件（-h --hard-dereference，需要 GNU tar），否则链接的文件会丢失
+        if (aWorkingDir) tCommand = String.format("cd %s && find -L . -mindepth 1 \\( -name '.*' -o -name '_*' \\) -prune -o -type f -print0 | tar -ch%sf - --hard-dereference --null -T -", quote_(tDir), mTarCompress?"z":"");
+        else tCommand = String.format("tar -ch%sf - --hard-dereference -C %s .", mTarCompress?"z":"", quote_(tDir));
+        // systemChannel 内部已经尝试了重连
+        ChannelExec tChannelExec = systemChannel(tCommand);
+        InputStream tIn = tChannelExec.getInputStream();
+        tChannelExec.connect(mChannelTimeout);
+        String tLocalRoot = mLocalWorkingDir+aDir;
+        int tExitStatus;
+        try (TarReader tTar = new TarReader(mTarCompress ? new GZIPInputStream(tIn, 65536) : new BufferedInputStream(tIn, 65536))) {
+            TarReader.Entry tEntry;
+            while ((tEntry = tTar.next()) != null) {
+                String tName = tEntry.name;
+                while (tName.startsWith("./")) tName = tName.substring(2);
+                if (tName.isEmpty() || tName.equals(".")) continue;
+                // 不允许跳出目标目录
+                if (tName.startsWith("/") || tName.equals("..") || tName.startsWith("../") || tName.contains("/../") || tName.endsWith("/..")) continue;
+                File tFile = new File(tLocalRoot+tName);
+                if (tEntry.isDir) {
+                    if (!tFile.isDirectory() && !tFile.mkdirs()) throw new IOException("Fail when create local dir: "+tFile.getPath());
+                } else if (tEntry.isFile) {
+                    File tParent = tFile.getParentFile();
+                    if (tParent != null && !tParent.isDirectory() && !tParent.mkdirs()) throw new IOException("Fail when create local dir: "+tParent.getPath());
+                    try (OutputStream tOut = new BufferedOutputStream(new FileOutputStream(tFile), 65536)) {tTar.copyTo(tOut);}
+                    //noinspection ResultOfMethodCallIgnored
+                    tFile.setLastModified(tEntry.mtime*1000L);
+                } else if (tEntry.isHardLink) {
+                    // 不支持 --hard-dereference 时仍然可能有硬链接，直接复制之前已经写入的文件
+                    String tLink = tEntry.linkName;
+                    while (tLink.startsWith("./")) tLink = tLink.substring(2);
+                    if (tLink.startsWith("/") || tLink.equals("..") || tLink.startsWith("../") || tLink.contains("/../")) throw new IOException("Invalid hard link in tar stream: "+tName+" -> "+tEntry.linkName);
+                    File tParent = tFile.getParentFile();
+                    if (tParent != null && !tParent.isDirectory() && !tParent.mkdirs()) throw new IOException("Fail when create local dir: "+tParent.getPath());
+                    Files.copy(new File(tLocalRoot+tLink).toPath(), tFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                } else if (tEntry.isSymLink) {
+                    throw new IOException("Unsupported symbolic link in tar stream: "+tName+" -> "+tEntry.linkName);
+                }
+            }
+            // 读取剩余的输出，并等待通道关闭，保证可以获得正确的退出状态
+            while (tIn.read() >= 0) {/**/}
+            waitClosed_(tChannelExec);
+            tExitStatus = tChannelExec.getExitStatus();
+        } finally {
+            tChannelExec.disconnect();
+        }
+        if (tExitStatus != 0) throw new RuntimeException("Fail when tar remote dir: "+mRemoteWorkingDir+aDir+" (exit status "+tExitStatus+")");
+    }
+    // exit-status 和输出的 EOF 是分开的消息，读取到 EOF 后需要等待通道关闭才能得到正确的退出码（否则可能是 -1）
+    static void waitClosed_(Channel aChannel) throws InterruptedIOException {
+        long tSleep = 1;
+        while (!aChannel.isClosed()) {
+            try {Thread.sleep(tSleep);} catch (InterruptedException e) {Thread.currentThread().interrupt(); throw new InterruptedIOException("Interrupted when waiting for channel to close");}
+            tSleep = Math.min(tSleep*2, 20);
+        }
+    }
+    // 自动压缩时判断此次传输是否需要压缩，aUpload 为 true 时抽样本地目录，否则抽样远程目录
+    // 数据可压缩并且估计压缩后的传输时间（受限于压缩速度或者压缩后的数据量）明显更短时才会压缩
+    boolean useCompression_(String aDir, boolean aUpload, boolean aWorkingDir) {
+        if (!mAutoCompression || !session().getConfig("compression.c2s").equals("none")) return false;
+        double[] tSample; // <raw, compressed, compress speed(byte/ms)>
+        try {tSample = aUpload ? sampleLocal_(aDir, aWorkingDir) : sampleRemote_(aDir, aWorkingDir);} catch (Exception e) {return false;}
+        if (tSample == null || tSample[0] < 4096) return false;
+        double tRatio = tSample[1] / tSample[0];
+        if (tRatio > 0.8) return false; // 已经压缩过的数据（例如 HDF5，压缩包）不值得再压缩
+        // 还不知道链路速度时（之前的传输都压缩了，不能用来测量）先用不压缩的主 session 探测一次，探测失败时只要可压缩就压缩
+        double tLinkSpeed = mLinkSpeed;
+        if (tLinkSpeed <= 0) tLinkSpeed = probeLinkSpeed_(aUpload);
+        if (tLinkSpeed <= 0) return true;
+        double tRawTime = 1.0 / tLinkSpeed;
+        double tZipTime = Math.max(1.0 / tSample[2], tRatio / tLinkSpeed);
+        return tZipTime < 0.8*tRawTime;
+    }
+    private final static int COMPRESSION_SAMPLE_FILES = 8, COMPRESSION_SAMPLE_SIZE = 65536;
+    private final static double DEFAULT_ZIP_SPEED = 50000; // byte/ms，远程抽样时无法测量压缩速度，使用这个估计值
+    // 抽样本地目录中的前几个文件的开头部分，使用和 ssh 相同的 zlib 等级压缩
+    double[] sampleLocal_(String aDir, final boolean aWorkingDir) throws IOException {
+        final Path tRoot = Paths.get(mLocalWorkingDir+aDir);
+        if (!Files.isDirectory(tRoot)) return null;
+        List<Path> tFiles;
+        try (java.util.stream.Stream<Path> tStream = Files.walk(tRoot)) {
+            tFiles = tStream.filter(tPath -> {
+                if (!Files.isRegularFile(tPath)) return false;
+                if (aWorkingDir) for (Path tName : tRoot.relativize(tPath)) if (tName.toString().startsWith(".") || tName.toString().startsWith("_")) return false;
+                return true;
+            }).limit(COMPRESSION_SAMPLE_FILES).collect(java.util.stream.Collectors.toList());
+        }
+        ByteArrayOutputStream tData = new ByteArrayOutputStream();
+        byte[] tBuffer = new byte[COMPRESSION_SAMPLE_SIZE];
+        for (Path tFile : tFiles) try (InputStream tIn = Files.newInputStream(tFile)) {
+            int tPos = 0, tRead;
+            while (tPos < tBuffer.length && (tRead = tIn.read(tBuffer, tPos, tBuffer.length-tPos)) > 0) tPos += tRead;
+            tData.write(tBuffer, 0, tPos);
+        }
+        byte[] tRaw = tData.toByteArray();
+        Deflater tDeflater = new Deflater(AUTO_COMPRESSION_LEVEL);
+        long tStart = System.nanoTime();
+        tDeflater.setInput(tRaw); tDeflater.finish();
+        long tCompressed = 0;
+        while (!tDeflater.finished()) tCompressed += tDeflater.deflate(tBuffer);
+        double tMs = Math.max(1e-3, (System.nanoTime()-tStart)/1e6);
+        tDeflater.end();
+        return new double[]{tRaw.length, tCompressed, tRaw.length/tMs};
+    }
+    // 抽样远程目录，在服务器上使用 gzip 统计压缩后的大小
+    double[] sampleRemote_(String aDir, boolean aWorkingDir) throws JSchException, IOException {
+        String tDir = quote_(mRemoteWorkingDir + (aDir.isEmpty() ? "." : aDir));
+        String tFind = aWorkingDir ? String.format("cd %s && find . -mindepth 1 \\( -name '.*' -o -name '_*' \\) -prune -o -type f -print", tDir) : String.format("find %s -type f", tDir);
+        String tSample = String.format("%s 2>/dev/null | head -n %d | while IFS= read -r f; do head -c %d \"$f\"; done", tFind, COMPRESSION_SAMPLE_FILES, COMPRESSION_SAMPLE_SIZE);
+        List<String> tLines = systemLines_(String.format("cd ~ && echo $(%s | wc -c) $(%s | gzip -%d -c | wc -c)", tSample, tSample, AUTO_COMPRESSION_LEVEL));
+        if (tLines.isEmpty()) return null;
+        String[] tTokens = tLines.get(tLines.size()-1).trim().split("\\s+");
+        if (tTokens.length < 2) return null;
+        try {return new double[]{Double.parseDouble(tTokens[0]), Double.parseDouble(tTokens[1]), DEFAULT_ZIP_SPEED};}
+        catch (NumberFormatException e) {return null;}
+    }
+    // 使用主 session 上传或者下载 LINK_SPEED_PROBE_SIZE 字节来测量链路速度，失败时返回 -1
+    double probeLinkSpeed_(boolean aUpload) {
+        try {
+            if (!isConnecting()) connect();
+            double tSpeed = (aUpload ? benchmarkUpload_(session(), LINK_SPEED_PROBE_SIZE) : benchmarkDownload_(session(), LINK_SPEED_PROBE_SIZE)) * 1048576.0 / 1000.0; // MB/s -> byte/ms
+            if (Double.isInfinite(tSpeed) || Double.isNaN(tSpeed) || tSpeed <= 0) return -1;
+            recordLinkSpeed_(tSpeed);
+            return tSpeed;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+    // 记录不压缩传输时的链路速度，使用指数滑动平均，数据量太小时不记录
+    void recordLinkSpeed_(boolean aCompressed, long aStartBytes, long aStartTime) {
+        if (!mAutoCompression || aCompressed) return;
+        long tBytes = mTransferBytes.get() - aStartBytes;
+        long tMs = System.currentTimeMillis() - aStartTime;
+        if (tBytes < 1048576 || tMs < 100) return;
+        recordLinkSpeed_((double)tBytes / tMs);
+    }
+    // 并行的传输可能同时记录，需要加锁保证滑动平均的更新不会丢失
+    synchronized void recordLinkSpeed_(double aSpeed) {
+        mLinkSpeed = mLinkSpeed <= 0 ? aSpeed : 0.7*mLinkSpeed + 0.3*aSpeed;
+    }
+    // 根据平均文件大小判断是否自动使用 tar 流传输，aLocal 为 true 时统计本地目录，否则统计远程目录
+    boolean useTar_(String aDir, boolean aLocal, final boolean aWorkingDir) throws JSchException {
+        if (mTarThreshold <= 0) return false;
+        final long[] tStat = {0, 0}; // <number, size>
+        if (aLocal) {
+            (new RecurseLocalDir(this, aDir, false, true) {
+                @Override public void doFile(File aLocalFile, BasicFileAttributes aAttrs, String aRemoteDir) {synchronized (tStat) {++tStat[0]; tStat[1] += aAttrs.size();}}
+                @Override public boolean dirFilter(String aLocalDirName) {return !aWorkingDir || (!aLocalDirName.startsWith(".") && !aLocalDirName.startsWith("_"));}
+                @Override public boolean fileFilter(String aLocalFileName) {return !aWorkingDir || (!aLocalFileName.startsWith(".") && !aLocalFileName.startsWith("_"));}
+            }).run();
+        } else {
+            String tDir = aDir.isEmpty() ? "." : aDir;
+            String tFind = aWorkingDir ? String.format("cd %s && find -L . -mindepth 1 \\( -name '.*' -o -name '_*' \\) -prune -o -type f -printf '%%s\\n'", quote_(tDir)) : String.format("find -L %s -type f -printf '%%s\\n'", quote_(tDir));
+            // 统计失败时直接使用 sftp 传输
+            List<String> tLines;
+            try {tLines = systemLines_(tFind+" | awk '{n+=1; s+=$1} END {print n+0, s+0}'");} catch (IOException e) {return false;}
+            if (tLines.isEmpty()) return false;
+            String[] tTokens = tLines.get(tLines.size()-1).trim().split("\\s+");
+            if (tTokens.length < 2) return false;
+            try {tStat[0] = Long.parseLong(tTokens[0]); tStat[1] = Long.parseLong(tTokens[1]);} catch (NumberFormatException e) {return false;}
+        }
+        return tStat[0] > 0 && tStat[1]/tStat[0] < mTarThreshold;
+    }
+    // 执行指令并获取输出的每一行，主要是内部使用
+    // 内部的输出（例如远程文件列表）可能很大，因此不限制大小
+    List<String> systemLines_(String aCommand) throws JSchException, IOException {
+        ByteArrayOutputStream tOut = new ByteArrayOutputStream();
+        exec_(aCommand, tOut, System.err, 0);
+        return ExecResult.lines_(tOut.toByteArray());
+    }
+    // 在持久 shell 中执行指令，没有空闲的 shell 时会创建新的，达到上限后则等待其他指令完成；执行失败的 shell 会直接关闭
+    // 超时时会直接关闭这个 shell 来打断读取，被中断时同样会关闭
+    int shellExec_(String aCommand, OutputStream aOut, OutputStream aErr, long aTimeout) throws JSchException, IOException {
+        if (mDead) throw new RuntimeException("Can NOT system from a Dead SSH.");
+        ControlShell tShell = borrowShell_();
+        boolean tSuc = false;
+        final boolean[] tTimeout = {false};
+        ScheduledFuture<?> tWatchdog = aTimeout <= 0 ? null : EXEC_WATCHDOG.schedule(() -> {tTimeout[0] = true; tShell.close();}, aTimeout, TimeUnit.MILLISECONDS);
+        try {
+            int rStatus = tShell.exec(aCommand, aOut, aErr);
+            tSuc = true;
+            return rStatus;
+        } catch (IOException e) {
+            if (tTimeout[0]) throw new InterruptedIOException("Command timed out after "+aTimeout+" ms: "+aCommand);
+            throw e;
+        } finally {
+            if (tWatchdog != null) tWatchdog.cancel(false);
+            returnShell_(tShell, tSuc && !tTimeout[0]);
+        }
+    }
+    private ControlShell borrowShell_() throws JSchException, IOException {
+        long tGeneration;
+        while (true) {
+            ControlShell tShell;
+            synchronized (mIdleShells) {
+                tShell = mIdleShells.poll();
+                tGeneration = mShellGeneration;
+                if (tShell == null && mShellCount < mShellNumber) {++mShellCount; break;}
+            }
+            if (tShell == null) {
+                try {tShell = mIdleShells.poll(SHELL_WAIT_TIME, TimeUnit.MILLISECONDS);} catch (InterruptedException e) {Thread.currentThread().interrupt(); throw new InterruptedIOException();}
+                if (tShell == null) continue; // 可能期间 shell 被关闭，需要重新判断是否可以创建
+            }
+            // 断开的 shell（例如重连之后）直接丢弃
+            if (tShell.isAlive()) return tShell;
+            returnShell_(tShell, false);
+        }
+        // 创建新的 shell，会尝试一次重新连接
+        try {
+            if (!isConnecting()) connect();
+            ControlShell rShell = new ControlShell(session(), mChannelTimeout, loginShell_(), mRemoteWorkingDir, mBeforeCommand);
+            rShell.mGeneration = tGeneration;
+            return rShell;
+        } catch (JSchException | IOException | RuntimeException e) {
+            synchronized (mIdleShells) {--mShellCount;}
+            throw e;
+        }
+    }
+    private void returnShell_(ControlShell aShell, boolean aReuse) {
+        synchronized (mIdleShells) {
+            // 启动时工作目录还不存在的 shell 只使用一次，之后重新创建来保证 mBeforeCommand 在工作目录中执行
+            if (aReuse && aShell.mInWorkingDir && aShell.mGeneration == mShellGeneration && mShellCount <= mShellNumber && !mDead) {mIdleShells.offer(aShell); return;}
+            --mShellCount;
+        }
+        aShell.close();
+    }
+    // 获取远程用户的登录 shell（exec 通道中的指令就是由它执行的），只检测一次；不兼容 POSIX sh 的语法时返回空字符串
+    String loginShell_() throws JSchException, IOException {
+        String rShell = mLoginShell;
+        if (rShell != null) return rShell;
+        // 会尝试一次重新连接
+        if (!isConnecting()) connect();
+        ChannelExec tChannelExec = (ChannelExec) session().openChannel("exec");
+        tChannelExec.setCommand("echo \"$SHELL\""); // csh，fish 等也支持这个语法
+        tChannelExec.setInputStream(null);
+        InputStream tIn = tChannelExec.getInputStream();
+        ByteArrayOutputStream tOut = new ByteArrayOutputStream();
+        tChannelExec.connect(mChannelTimeout);
+        try {
+            byte[] tBuffer = new byte[1024]; int tRead;
+            while ((tRead = tIn.read(tBuffer)) >= 0) tOut.write(tBuffer, 0, tRead);
+        } finally {
+            tChannelExec.disconnect();
+        }
+        rShell = new String(tOut.toByteArray(), StandardCharsets.UTF_8).trim();
+        // 没有设置 SHELL 时 sshd 使用的是 /bin/sh
+        if (rShell.isEmpty()) rShell = "/bin/sh";
+        String tName = rShell.substring(rShell.lastIndexOf('/')+1);
+        if (!Arrays.asList(POSIX_SHELLS).contains(tName)) rShell = "";
+        mLoginShell = rShell;
+        return rShell;
+    }
+    private void closeShells_() {
+        List<ControlShell> tShells = new ArrayList<>();
+        synchronized (mIdleShells) {
+            mIdleShells.drainTo(tShells);
+            mShellCount -= tShells.size();
+            ++mShellGeneration;
+        }
+        for (ControlShell tShell : tShells) tShell.close();
+    }
+    // 给 shell 指令中的路径等加上单引号，避免空格等特殊字符的问题
+    static String quote_(String aStr) {return "'"+aStr.replace("'", "'\\''")+"'";}
     // 内部实用类，递归的对本地文件夹进行操作，会同时记录对应的远程目录，减少重复代码
+    // 使用 NIO 遍历，每个条目只读取一次属性；开启并行时会使用 fork/join 并行遍历子文件夹，此时重写的方法需要是线程安全的
     static class RecurseLocalDir implements Runnable {
+        // 并行遍历共享的 fork/join 线程池，避免每次遍历都创建新的线程；工作线程都是 daemon 的
+        private final static ForkJoinPool WALK_POOL = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()), aPool -> {
+            ForkJoinWorkerThread tThread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(aPool);
+            tThread.setName("ServerSSH-walk-"+tThread.getPoolIndex());
+            tThread.setDaemon(true);
+            return tThread;
+        }, null, false);
+        
         private final ServerSSH mSSH;
         private final String mDir;
         private final boolean mCheckDirValid;
+        private final boolean mParallel;
         public RecurseLocalDir(ServerSSH aSSH, String aDir) {this(aSSH, aDir, true);}
-        public RecurseLocalDir(ServerSSH aSSH, String aDir, boolean aCheckDirValid) {mSSH = aSSH; mDir = aDir; mCheckDirValid = aCheckDirValid;}
+        public RecurseLocalDir(ServerSSH aSSH, String aDir, boolean aCheckDirValid) {this(aSSH, aDir, aCheckDirValid, false);}
+        public RecurseLocalDir(ServerSSH aSSH, String aDir, boolean aCheckDirValid, boolean aParallel) {mSSH = aSSH; mDir = aDir; mCheckDirValid = aCheckDirValid; mParallel = aParallel;}
         
         @Override public void run() {
-            File tLocalDir = new File(mSSH.mLocalWorkingDir + mDir);
-            if (!tLocalDir.isDirectory()) {if (mCheckDirValid) throw new RuntimeException("Invalid Dir: " + mDir); return;}
-            doDir(tLocalDir, mSSH.mRemoteWorkingDir + mDir);
+            Path tLocalDir = Paths.get(mSSH.mLocalWorkingDir + mDir);
+            if (!Files.isDirectory(tLocalDir)) {if (mCheckDirValid) throw new RuntimeException("Invalid Dir: " + mDir); return;}
+            if (!mParallel) {doDir(tLocalDir, mSSH.mRemoteWorkingDir + mDir); return;}
+            WALK_POOL.invoke(new DirTask(tLocalDir, mSSH.mRemoteWorkingDir + mDir));
+        }
+        private void doDir(Path aLocalDir, String aRemoteDir) {
+            List<Pair<Path, BasicFileAttributes>> tEntries = list_(aLocalDir);
+            if (tEntries == null) return;
+            if (initRemoteDir(aRemoteDir)) for (Pair<Path, BasicFileAttributes> tEntry : tEntries) {
+                String tName = tEntry.first.getFileName().toString();
+                if (tEntry.second.isDirectory()) {if (dirFilter(tName))  doDir(tEntry.first, aRemoteDir+tName+"/");}
+                else if (tEntry.second.isRegularFile()) {if (fileFilter(tName)) doFile(tEntry.first.toFile(), tEntry.second, aRemoteDir);}
+            }
+            doDirFinal(aLocalDir.toFile(), aRemoteDir);
+        }
+        // 并行版本，当前线程处理文件，子文件夹作为子任务并行处理，全部完成后再执行 doDirFinal
+        private class DirTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final Path mLocalDir;
+            private final String mRemoteDir;
+            DirTask(Path aLocalDir, String aRemoteDir) {mLocalDir = aLocalDir; mRemoteDir = aRemoteDir;}
+            @Override protected void compute() {
+                List<Pair<Path, BasicFileAttributes>> tEntries = list_(mLocalDir);
+                if (tEntries == null) return;
+                if (initRemoteDir(mRemoteDir)) {
+                    List<DirTask> tSubTasks = new ArrayList<>();
+                    for (Pair<Path, BasicFileAttributes> tEntry : tEntries) {
+                        String tName = tEntry.first.getFileName().toString();
+                        if (tEntry.second.isDirectory()) {if (dirFilter(tName))  tSubTasks.add(new DirTask(tEntry.first, mRemoteDir+tName+"/"));}
+                        else if (tEntry.second.isRegularFile()) {if (fileFilter(tName)) doFile(tEntry.first.toFile(), tEntry.second, mRemoteDir);}
+                    }
+                    invokeAll(tSubTasks);
+                }
+                doDirFinal(mLocalDir.toFile(), mRemoteDir);
+            }
         }
-        private void doDir(File aLocalDir, String aRemoteDir) {
-            File[] tLocalFiles = aLocalDir.listFiles();
-            if (tLocalFiles == null) return;
-            if (initRemoteDir(aRemoteDir)) for (File tFile : tLocalFiles) {
-                if (tFile.isDirectory()) {if (dirFilter(tFile.getName()))  doDir(tFile, aRemoteDir+tFile.getName()+"/");}
-                else if (tFile.isFile()) {if (fileFilter(tFile.getName())) doFile(tFile, aRemoteDir);}
+        // 列出文件夹内的条目以及对应的属性（会跟随链接，和 File.isDirectory 一致），无法读取时返回 null
+        private static List<Pair<Path, BasicFileAttributes>> list_(Path aLocalDir) {
+            List<Pair<Path, BasicFileAttributes>> rEntries = new ArrayList<>();
+            try (DirectoryStream<Path> tStream = Files.newDirectoryStream(aLocalDir)) {
+                for (Path tPath : tStream) {
+                    try {rEntries.add(new Pair<>(tPath, Files.readAttributes(tPath, BasicFileAttributes.class)));} catch (IOException ignored) {}
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                return null;
             }
-            doDirFinal(aLocalDir, aRemoteDir);
+            return rEntries;
         }
         
         // stuff to override
         public boolean initRemoteDir(String aRemoteDir) {return true;} // 开始遍历本地文件夹之前初始化对应的远程文件夹，返回 false 则表示此远程文件夹初始失败，不会进行后续的遍历此文件夹操作
         public void doFile(File aLocalFile, String aRemoteDir) {/**/} // 对于此本地文件夹内的文件进行操作
+        public void doFile(File aLocalFile, BasicFileAttributes aAttrs, String aRemoteDir) {doFile(aLocalFile, aRemoteDir);} // 需要文件大小等属性时重写这个，避免重复读取
         public void doDirFinal(File aLocalDir, String aRemoteDir) {/**/} // 最后对此本地文件夹进行操作
         public boolean dirFilter(String aLocalDirName) {return true;} // 文件夹过滤器，返回 true 才会执行后续操作
         public boolean fileFilter(String aLocalFileName) {return true;} // 文件过滤器，返回 true 才会执行后续操作
     }
     // 内部实用类，递归的对远程文件夹进行操作，会同时记录对应的本地目录，减少重复代码。需要一个 channel 来获取远程文件夹的列表
+    // 会优先通过一次 find 指令获取整个目录树并边读取边回调，远程不支持执行指令时再使用多个 sftp 通道并行的遍历
     static class RecurseRemoteDir implements Runnable {
+        // 输出列表之前的标记，用来忽略 mBeforeCommand 可能的输出
+        private final static String LIST_MARK = "\nSMARTSLURM-LIST";
+        // 并行遍历时使用的 sftp 通道数目
+        private final static int LIST_THREAD_NUMBER = 4;
+        
         private final ServerSSH mSSH;
         private final String mDir;
         private final ChannelSftp mChannelSftp;
         private final boolean mCheckDirValid;
+        private ExecutorService mListPool = null;
+        private BlockingQueue<ChannelSftp> mListChannels = null;
         public RecurseRemoteDir(ServerSSH aSSH, String aDir, ChannelSftp aChannelSftp) {this(aSSH, aDir, aChannelSftp, true);}
         public RecurseRemoteDir(ServerSSH aSSH, String aDir, ChannelSftp aChannelSftp, boolean aCheckDirValid) {mSSH = aSSH; mDir = aDir; mChannelSftp = aChannelSftp; mCheckDirValid = aCheckDirValid;}
     
         @Override public void run() {
             String tRemoteDir = mSSH.mRemoteWorkingDir+mDir;
-            if (!isDir_(mChannelSftp, tRemoteDir)) {if (mCheckDirValid) throw new RuntimeException("Invalid Dir: " + mDir); return;}
-            doDir(tRemoteDir, mSSH.mLocalWorkingDir+mDir);
+            // 先尝试一次获取整个目录树，失败再使用 sftp 遍历
+            if (runFind_(tRemoteDir, mSSH.mLocalWorkingDir+mDir)) return;
+            if (!mSSH.isDir_(mChannelSftp, tRemoteDir)) {if (mCheckDirValid) throw new RuntimeException("Invalid Dir: " + mDir); return;}
+            openListPool_();
+            try {doDir(tRemoteDir, mSSH.mLocalWorkingDir+mDir, list_(tRemoteDir));}
+            finally {closeListPool_();}
         }
+        
+        // 通过一次 find 指令获取整个目录树（先序），边读取边回调，返回 false 表示没有获取到结果需要使用 sftp 遍历
+        private boolean runFind_(String aRemoteDir, String aLocalDir) {
+            ChannelExec tChannelExec;
+            InputStream tIn;
+            try {
+                // 远程路径都是相对用户目录的，因此需要先回到用户目录
+                tChannelExec = mSSH.systemChannel(String.format("cd ~ && printf '%%s\\0' %s && find %s -printf '%%y %%s %%T@ %%P\\0'", quote_(LIST_MARK), aRemoteDir.isEmpty() ? "." : quote_(aRemoteDir)));
+                tIn = new BufferedInputStream(tChannelExec.getInputStream(), 65536);
+                tChannelExec.connect(mSSH.mChannelTimeout);
+            } catch (JSchException | IOException e) {
+                return false;
+            }
+            boolean tMarked = false, tHasRoot = false;
+            // 当前所在的文件夹栈，<RemoteDir, LocalDir>，以及需要跳过的子目录前缀
+            Deque<Pair<String, String>> tDirStack = new ArrayDeque<>();
+            String tSkip = null;
+            ByteArrayOutputStream tBuffer = new ByteArrayOutputStream();
+            try {
+                int tByte;
+                while ((tByte = tIn.read()) >= 0) {
+                    if (tByte != 0) {tBuffer.write(tByte); continue;}
+                    String tRecord = new String(tBuffer.toByteArray(), StandardCharsets.UTF_8);
+                    tBuffer.reset();
+                    if (!tMarked) {tMarked = tRecord.endsWith(LIST_MARK); continue;}
+                    // 格式为 "type size mtime path"，路径可能含有空格
+                    String[] tTokens = tRecord.split(" ", 4);
+                    if (tTokens.length < 4) continue;
+                    boolean tIsDir = tTokens[0].equals("d");
+                    long tSize, tMTime;
+                    try {
+                        tSize = Long.parseLong(tTokens[1]);
+                        int tDot = tTokens[2].indexOf('.');
+                        tMTime = Long.parseLong(tDot < 0 ? tTokens[2] : tTokens[2].substring(0, tDot));
+                    } catch (NumberFormatException e) {continue;}
+                    String tPath = tTokens[3];
+                    // 第一个是根目录本身，需要是文件夹
+                    if (!tHasRoot) {
+                        tHasRoot = true;
+                        if (!tIsDir) {if (mCheckDirValid) throw new RuntimeException("Invalid Dir: " + mDir); return true;}
+                        tDirStack.push(new Pair<>(aRemoteDir, aLocalDir));
+                        if (!initLocalDir(aLocalDir)) tSkip = "";
+                        continue;
+                    }
+                    if (tSkip != null) {if (tPath.startsWith(tSkip)) continue; tSkip = null;}
+                    // 先序遍历，不是当前文件夹内的文件表示当前文件夹已经遍历完成
+                    int tSlash = tPath.lastIndexOf('/');
+                    String tParent = aRemoteDir + (tSlash < 0 ? "" : tPath.substring(0, tSlash+1));
+                    while (tDirStack.size() > 1 && !tDirStack.peek().first.equals(tParent)) {Pair<String, String> tDir = tDirStack.pop(); doDirFinal(tDir.first, tDir.second);}
+                    if (!tDirStack.peek().first.equals(tParent)) continue;
+                    String tName = tPath.substring(tSlash+1);
+                    String tLocalDir = tDirStack.peek().second;
+                    if (tIsDir) {
+                        if (!dirFilter(tName)) {tSkip = tPath+"/"; continue;}
+                        tDirStack.push(new Pair<>(aRemoteDir+tPath+"/", tLocalDir+tName+"/"));
+                        if (!initLocalDir(tLocalDir+tName+"/")) tSkip = tPath+"/";
+                    } else {
+                        if (fileFilter(tName)) doFile(aRemoteDir+tPath, tSize, tMTime, tLocalDir);
+                    }
+                }
+            } catch (IOException e) {
+                // 读取中断时已经回调的部分无法撤回，只能抛出错误
+                if (tHasRoot) throw new UncheckedIOException(e);
+            } finally {
+                tChannelExec.disconnect();
+            }
+            if (!tHasRoot) return false;
+            while (!tDirStack.isEmpty()) {Pair<String, String> tDir = tDirStack.pop(); doDirFinal(tDir.first, tDir.second);}
+            return true;
+        }
+        
+        // 并行遍历需要的 sftp 通道，打开失败时则直接使用 mChannelSftp 串行遍历
+        private void openListPool_() {
+            List<ChannelSftp> tChannels = new ArrayList<>();
+            for (int i = 0; i < LIST_THREAD_NUMBER; ++i) {
+                try {
+                    ChannelSftp tChannelSftp = (ChannelSftp) mSSH.session().openChannel("sftp");
+                    tChannelSftp.connect(mSSH.mChannelTimeout);
+                    tChannels.add(tChannelSftp);
+                } catch (JSchException e) {
+                    break;
+                }
+            }
+            if (tChannels.isEmpty()) return;
+            mListChannels = new LinkedBlockingQueue<>(tChannels);
+            mListPool = UT.newFixedThreadPool(tChannels.size(), "ServerSSH-list", UT.Worker.IO);
+        }
+        private void closeListPool_() {
+            if (mListPool == null) return;
+            mListPool.shutdownNow();
+            for (ChannelSftp tChannelSftp : mListChannels) tChannelSftp.disconnect();
+            mListPool = null; mListChannels = null;
+        }
+        // 获取远程文件夹的列表，有并行通道时会提交到线程池中异步获取
         @SuppressWarnings("unchecked")
-        private void doDir(String aRemoteDir, String aLocalDir) {
+        private Future<Vector<ChannelSftp.LsEntry>> list_(final String aRemoteDir) {
+            if (mListPool == null) {
+                Vector<ChannelSftp.LsEntry> tRemoteFiles = null;
+                try {tRemoteFiles = mChannelSftp.ls(aRemoteDir);} catch (SftpException ignored) {}
+                return CompletableFuture.completedFuture(tRemoteFiles);
+            }
+            final BlockingQueue<ChannelSftp> tChannels = mListChannels;
+            return mListPool.submit(() -> {
+                ChannelSftp tChannelSftp = tChannels.take();
+                try {return (Vector<ChannelSftp.LsEntry>) tChannelSftp.ls(aRemoteDir);}
+                catch (SftpException e) {return null;}
+                finally {tChannels.put(tChannelSftp);}
+            });
+        }
+        private void doDir(String aRemoteDir, String aLocalDir, Future<Vector<ChannelSftp.LsEntry>> aRemoteFiles) {
             Vector<ChannelSftp.LsEntry> tRemoteFiles = null;
-            try {tRemoteFiles = mChannelSftp.ls(aRemoteDir);} catch (SftpException ignored) {}
+            try {tRemoteFiles = aRemoteFiles.get();}
+            catch (InterruptedException e) {Thread.currentThread().interrupt();}
+            catch (ExecutionException ignored) {}
             if (tRemoteFiles == null) return;
-            if (initLocalDir(aLocalDir)) for (ChannelSftp.LsEntry tFile : tRemoteFiles) {
-                if (tFile.getFilename().equals(".") || tFile.getFilename().equals("..")) continue;
-                if (tFile.getAttrs().isDir()) {if (dirFilter(tFile.getFilename())) doDir(aRemoteDir+tFile.getFilename()+"/", aLocalDir+tFile.getFilename()+"/");}
-                else {if (fileFilter(tFile.getFilename())) doFile(aRemoteDir+tFile.getFilename(), aLocalDir);}
+            if (initLocalDir(aLocalDir)) {
+                // 先提交所有子文件夹的列表获取，从而在遍历当前子文件夹时可以并行获取其余子文件夹的列表
+                Map<String, Future<Vector<ChannelSftp.LsEntry>>> tSubDirs = new HashMap<>();
+                for (ChannelSftp.LsEntry tFile : tRemoteFiles) {
+                    if (tFile.getFilename().equals(".") || tFile.getFilename().equals("..")) continue;
+                    if (tFile.getAttrs().isDir() && dirFilter(tFile.getFilename())) tSubDirs.put(tFile.getFilename(), list_(aRemoteDir+tFile.getFilename()+"/"));
+                }
+                for (ChannelSftp.LsEntry tFile : tRemoteFiles) {
+                    if (tFile.getFilename().equals(".") || tFile.getFilename().equals("..")) continue;
+                    if (tFile.getAttrs().isDir()) {Future<Vector<ChannelSftp.LsEntry>> tSubFiles = tSubDirs.get(tFile.getFilename()); if (tSubFiles != null) doDir(aRemoteDir+tFile.getFilename()+"/", aLocalDir+tFile.getFilename()+"/", tSubFiles);}
+                    else {if (fileFilter(tFile.getFilename())) doFile(aRemoteDir+tFile.getFilename(), tFile.getAttrs().getSize(), tFile.getAttrs().getMTime(), aLocalDir);}
+                }
             }
             doDirFinal(aRemoteDir, aLocalDir);
         }
@@ -759,11 +2775,39 @@ public final class ServerSSH {
         // stuff to override
         public boolean initLocalDir(String aLocalDir) {return true;} // 开始遍历远程文件夹之前初始化对应的本地文件夹，返回 false 则表示此本地文件夹初始失败，不会进行后续的遍历此文件夹操作
         public void doFile(String aRemoteFile, String aLocalDir) {/**/} // 对于此远程文件夹内的文件进行操作
+        public void doFile(String aRemoteFile, long aSize, long aMTime, String aLocalDir) {doFile(aRemoteFile, aLocalDir);} // 需要文件大小和修改时间（秒）时重写这个方法
         public void doDirFinal(String aRemoteDir, String aLocalDir) {/**/} // 最后对此远程文件夹进行操作
         public boolean dirFilter(String aRemoteDirName) {return true;} // 文件夹过滤器，返回 true 才会执行后续操作
         public boolean fileFilter(String aRemoteFileName) {return true;} // 文件过滤器，返回 true 才会执行后续操作
     }
     
+    // 内部实用类，远程路径状态的缓存，只记录存在的文件夹和文件，路径结尾的 '/' 会被忽略；超时或者被自身的写操作影响时失效
+    static class AttrCache {
+        private final Map<String, Pair<Boolean, Long>> mCache = new HashMap<>(); // <Path, <IsDir, ExpireTime>>
+        
+        private static String key_(String aPath) {return aPath.endsWith("/") ? aPath.substring(0, aPath.length()-1) : aPath;}
+        // 返回 null 表示没有缓存
+        synchronized Boolean isDir(String aPath, long aTTL) {
+            if (aTTL <= 0) return null;
+            String tKey = key_(aPath);
+            Pair<Boolean, Long> tValue = mCache.get(tKey);
+            if (tValue == null) return null;
+            if (System.currentTimeMillis() > tValue.second) {mCache.remove(tKey); return null;}
+            return tValue.first;
+        }
+        synchronized void put(String aPath, boolean aIsDir, long aTTL) {
+            if (aTTL <= 0) return;
+            mCache.put(key_(aPath), new Pair<>(aIsDir, System.currentTimeMillis()+aTTL));
+        }
+        // 移除此路径以及其下所有路径的缓存
+        synchronized void invalidate(String aPath) {
+            String tKey = key_(aPath);
+            if (tKey.isEmpty()) {mCache.clear(); return;}
+            mCache.keySet().removeIf(aKey -> aKey.equals(tKey) || aKey.startsWith(tKey+"/"));
+        }
+        synchronized void clear() {mCache.clear();}
+    }
+    
     /// 并发部分
     // 类似线程池的 Sftp 通道，可以重写实现提交任务并且并发的上传和下载
     static class SftpPool {
@@ -771,30 +2815,43 @@ public final class ServerSSH {
         private final LinkedList<ISftpTask> mTaskList = new LinkedList<>();
         private final ExecutorService mPool;
         private boolean mDead = false;
+        private int mAlive; // 还在工作的通道数目，全部失败后提交的任务不会再被执行
+        private Throwable mError = null; // 通道失败的原因
         
-        SftpPool(ServerSSH aSSH, int aThreadNumber) throws JSchException {
+        SftpPool(ServerSSH aSSH, int aThreadNumber) throws JSchException {this(aSSH, aThreadNumber, null);}
+        // 可以指定通道所在的 session（例如自动压缩的 session），null 表示使用主 session
+        SftpPool(ServerSSH aSSH, int aThreadNumber, Session aSession) throws JSchException {
             // 会尝试一次重新连接
             if (!aSSH.isConnecting()) aSSH.connect();
+            if (aSession == null) aSession = aSSH.session();
             // 初始化线程池
-            mPool = Executors.newFixedThreadPool(aThreadNumber);
+            mPool = UT.newFixedThreadPool(aThreadNumber, "ServerSSH-sftp", UT.Worker.IO);
+            mAlive = aThreadNumber;
             // 提交长期任务
             for (int i = 0; i < aThreadNumber; ++i) {
-                final ChannelSftp tChannelSftp = (ChannelSftp) aSSH.session().openChannel("sftp");
+                final ChannelSftp tChannelSftp = (ChannelSftp) aSession.openChannel("sftp");
                 mPool.execute(() -> {
-                    try {tChannelSftp.connect();} catch (JSchException e) {tChannelSftp.disconnect(); throw new RuntimeException(e);}
-                    // 每个 Sftp 都从 mTaskList 中竞争获取 task 并执行
-                    while (true) {
-                        ISftpTask tTask;
-                        synchronized (mTaskList) {tTask = mTaskList.pollFirst();}
-                        if (tTask != null) tTask.doTask(tChannelSftp);
-                        else {
-                            if (mDead) break;
-                            // 否则继续等待任务输入
-                            try {Thread.sleep(50);} catch (InterruptedException e) {e.printStackTrace(); break;}
+                    try {
+                        try {tChannelSftp.connect(aSSH.mChannelTimeout);} catch (JSchException e) {throw new RuntimeException(e);}
+                        // 每个 Sftp 都从 mTaskList 中竞争获取 task 并执行
+                        while (true) {
+                            ISftpTask tTask;
+                            synchronized (mTaskList) {tTask = mTaskList.pollFirst();}
+                            if (tTask != null) tTask.doTask(tChannelSftp);
+                            else {
+                                if (mDead) break;
+                                // 否则继续等待任务输入
+                                try {Thread.sleep(50);} catch (InterruptedException e) {e.printStackTrace(); break;}
+                            }
                         }
+                    } catch (RuntimeException e) {
+                        synchronized (mTaskList) {if (mError == null) mError = e;}
+                        throw e;
+                    } finally {
+                        synchronized (mTaskList) {--mAlive;}
+                        // 最后关闭通道
+                        tChannelSftp.disconnect();
                     }
-                    // 最后关闭通道
-                    tChannelSftp.disconnect();
                 });
             }
         }
@@ -805,6 +2862,175 @@ public final class ServerSSH {
             if (mDead) throw new RuntimeException("Can NOT submit tasks to a Dead SftpPool.");
             synchronized (mTaskList) {mTaskList.addLast(aSftpTask);}
         }
+        // 所有通道都已经失败（例如连接失败）时取出不会再被执行的任务，否则返回 null
+        List<ISftpTask> drainIfBroken() {
+            synchronized (mTaskList) {
+                if (mAlive > 0) return null;
+                List<ISftpTask> rTasks = new ArrayList<>(mTaskList);
+                mTaskList.clear();
+                return rTasks;
+            }
+        }
+        Throwable error() {synchronized (mTaskList) {return mError;}}
+    }
+    // 监听本地文件夹并持续上传的类，内部使用一个线程处理监听事件，使用 SftpPool 并行上传
+    public class DirWatcher implements AutoCloseable {
+        private final Path mRoot;
+        private final String mDir;
+        private final boolean mWorkingDir; // 是否使用和 putWorkingDir 相同的过滤器
+        private final WatchService mWatchService;
+        private final Map<WatchKey, Path> mKeys = new HashMap<>();
+        private final Set<Path> mPending = new LinkedHashSet<>(); // 检测到修改但是还没有提交上传的文件
+        private final Map<Path, long[]> mStates = new HashMap<>(); // 已知文件的 <修改时间，大小>，flush 时重新扫描对比来找到还没有收到事件的修改，只在监听线程中访问
+        private final SftpPool mSftpPool;
+        private final ExecutorService mPool = UT.newSingleThreadExecutor("ServerSSH-watch", UT.Worker.IDLE);
+        private int mUploading = 0; // 正在上传的文件数目
+        private long mFlushRequest = 0, mFlushDone = 0; // 请求立刻提交（不再等待合并修改）的次数以及已经处理的次数
+        private Throwable mError = null; // 上传通道全部失败的原因，此时不会再上传
+        private volatile boolean mClosed = false;
+        private long mDebounce = 200; // ms 最后一次修改后等待这么长时间没有新的修改才会上传
+        
+        DirWatcher(String aDir, int aThreadNumber, boolean aWorkingDir) throws JSchException, IOException {
+            mDir = aDir; mWorkingDir = aWorkingDir;
+            mRoot = Paths.get(mLocalWorkingDir+aDir);
+            if (!Files.isDirectory(mRoot)) throw new RuntimeException("Invalid Dir: " + aDir);
+            mWatchService = mRoot.getFileSystem().newWatchService();
+            // 先注册监听再创建线程池，避免漏掉期间的修改
+            register_(mRoot, false);
+            mSftpPool = new SftpPool(ServerSSH.this, aThreadNumber);
+            mPool.execute(this::keepWatch_);
+        }
+        
+        public DirWatcher setDebounce(long aDebounce) {mDebounce = Math.max(0, aDebounce); return this;}
+        // 等待调用之前的所有修改上传完成，会跳过合并修改的等待，并且重新扫描目录来包含还没有收到事件的修改；上传通道全部失败时会抛出异常
+        public void flush() throws InterruptedException {
+            synchronized (this) {
+                long tRequest = ++mFlushRequest;
+                while (!mClosed && mError == null && (mFlushDone < tRequest || !mPending.isEmpty() || mUploading > 0)) wait(50);
+                if (mError != null) throw new RuntimeException("Fail to upload in DirWatcher: "+mDir, mError);
+            }
+        }
+        public Task task_flush() {return new Task() {
+            @Override public boolean run() throws Exception {flush(); return true;}
+        };}
+        // 停止监听，已经提交的上传会继续完成
+        @Override public void close() throws IOException {
+            mClosed = true;
+            mWatchService.close();
+            mPool.shutdown();
+        }
+        public boolean awaitTermination() throws InterruptedException {
+            boolean tSuc = mPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            return mSftpPool.awaitTermination() && tSuc;
+        }
+        
+        private boolean filter_(Path aPath) {
+            if (!mWorkingDir) return true;
+            for (Path tName : mRoot.relativize(aPath)) if (tName.toString().startsWith(".") || tName.toString().startsWith("_")) return false;
+            return true;
+        }
+        // 递归注册文件夹，aAddFiles 时会将已有的文件也加入上传（用于新建的文件夹，注册之前可能已经写入了文件）
+        private void register_(Path aDir, boolean aAddFiles) throws IOException {
+            Files.walkFileTree(aDir, new SimpleFileVisitor<Path>() {
+                @Override public FileVisitResult preVisitDirectory(Path aSubDir, BasicFileAttributes aAttrs) throws IOException {
+                    if (!filter_(aSubDir)) return FileVisitResult.SKIP_SUBTREE;
+                    mKeys.put(aSubDir.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), aSubDir);
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override public FileVisitResult visitFile(Path aFile, BasicFileAttributes aAttrs) {
+                    if (!aAttrs.isRegularFile() || !filter_(aFile)) return FileVisitResult.CONTINUE;
+                    if (aAddFiles) {synchronized (DirWatcher.this) {mPending.add(aFile);}}
+                    else mStates.put(aFile, state_(aAttrs));
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override public FileVisitResult visitFileFailed(Path aFile, IOException aException) {return FileVisitResult.CONTINUE;}
+            });
+        }
+        private long[] state_(BasicFileAttributes aAttrs) {return new long[]{aAttrs.lastModifiedTime().toMillis(), aAttrs.size()};}
+        // 重新扫描目录，和记录的状态不同的文件加入上传；监听事件可能有延迟（或者溢出），flush 时需要扫描才能保证不漏掉修改
+        private void rescan_() {
+            try {
+                Files.walkFileTree(mRoot, new SimpleFileVisitor<Path>() {
+                    @Override public FileVisitResult preVisitDirectory(Path aSubDir, BasicFileAttributes aAttrs) {
+                        return filter_(aSubDir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                    }
+                    @Override public FileVisitResult visitFile(Path aFile, BasicFileAttributes aAttrs) {
+                        if (!aAttrs.isRegularFile() || !filter_(aFile)) return FileVisitResult.CONTINUE;
+                        if (!Arrays.equals(mStates.get(aFile), state_(aAttrs))) synchronized (DirWatcher.this) {mPending.add(aFile);}
+                        return FileVisitResult.CONTINUE;
+                    }
+                    @Override public FileVisitResult visitFileFailed(Path aFile, IOException aException) {return FileVisitResult.CONTINUE;}
+                });
+            } catch (IOException ignored) {}
+        }
+        private void keepWatch_() {
+            long tLastEvent = 0;
+            while (!mClosed) {
+                WatchKey tKey;
+                try {tKey = mWatchService.poll(Math.max(10, Math.min(mDebounce, 50)), TimeUnit.MILLISECONDS);}
+                catch (InterruptedException | ClosedWatchServiceException e) {break;}
+                // 收集所有的修改
+                while (tKey != null) {
+                    Path tDir = mKeys.get(tKey);
+                    if (tDir != null) for (WatchEvent<?> tEvent : tKey.pollEvents()) {
+                        if (tEvent.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // 事件溢出时无法知道具体修改了哪些文件，只能重新遍历整个目录
+                            try {register_(mRoot, true);} catch (IOException ignored) {}
+                            continue;
+                        }
+                        Path tPath = tDir.resolve((Path)tEvent.context());
+                        if (!filter_(tPath)) continue;
+                        if (Files.isDirectory(tPath)) {try {register_(tPath, true);} catch (IOException ignored) {}}
+                        else synchronized (this) {mPending.add(tPath);}
+                    }
+                    if (!tKey.reset()) mKeys.remove(tKey);
+                    tKey = mWatchService.poll();
+                    tLastEvent = System.currentTimeMillis();
+                }
+                // 合并修改，一段时间内没有新的修改或者请求 flush 时才提交上传
+                long tFlushRequest;
+                synchronized (this) {tFlushRequest = mFlushRequest;}
+                boolean tFlush = tFlushRequest > mFlushDone;
+                if (!tFlush && System.currentTimeMillis()-tLastEvent < mDebounce) {dropIfBroken_(); continue;}
+                if (tFlush) rescan_();
+                List<Path> tFiles;
+                synchronized (this) {
+                    tFiles = new ArrayList<>(mPending);
+                    mPending.clear();
+                    mUploading += tFiles.size();
+                    mFlushDone = tFlushRequest;
+                }
+                // 提交之前记录文件的状态，上传期间再次修改的文件在下次扫描时会重新上传
+                for (Path tFile : tFiles) {
+                    try {mStates.put(tFile, state_(Files.readAttributes(tFile, BasicFileAttributes.class)));}
+                    catch (IOException e) {mStates.remove(tFile);}
+                }
+                for (Path tFile : tFiles) mSftpPool.submit(aChannelSftp -> {
+                    try {
+                        if (Files.isRegularFile(tFile)) {
+                            String tRemoteDir = mRemoteWorkingDir + mDir;
+                            Path tParent = mRoot.relativize(tFile).getParent();
+                            if (tParent != null) tRemoteDir += tParent.toString().replace(File.separatorChar, '/') + "/";
+                            if (makeDir_(aChannelSftp, tRemoteDir)) putFile_(aChannelSftp, tFile.toFile(), tRemoteDir);
+                        }
+                    } catch (SftpException ignored) {
+                    } finally {
+                        synchronized (DirWatcher.this) {--mUploading;}
+                    }
+                });
+                dropIfBroken_();
+            }
+            mSftpPool.shutdown();
+        }
+        // 上传通道全部失败时提交的上传不会再执行，直接丢弃并记录错误，避免 flush 一直等待
+        private void dropIfBroken_() {
+            List<SftpPool.ISftpTask> tDropped = mSftpPool.drainIfBroken();
+            if (tDropped == null) return;
+            synchronized (this) {
+                mUploading -= tDropped.size();
+                if (mError == null) mError = mSftpPool.error() != null ? mSftpPool.error() : new IOException("All sftp channels are closed");
+            }
+        }
     }
     // 由于一个 channel 只能执行一个指令，这里直接使用线程池来实现 system 的并发，接口和 SystemThreadPool 保持一致
     public SystemPool pool(int aThreadNumber) {if (mDead) throw new RuntimeException("Can NOT get pool from a Dead SSH."); return new SystemPool(aThreadNumber);}
@@ -812,7 +3038,7 @@ public final class ServerSSH {
         private final ThreadPoolExecutor mPool;
         
         public SystemPool(int aThreadNumber) {
-            mPool = new ThreadPoolExecutor(aThreadNumber, aThreadNumber, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+            mPool = new ThreadPoolExecutor(aThreadNumber, aThreadNumber, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), UT.threadFactory("ServerSSH-system", UT.Worker.IO, false));
         }
         public Future<?> submitSystem(String aCommand) {
             return mPool.submit(() -> {try {system(aCommand);} catch (JSchException | IOException e) {throw new RuntimeException(e);}});
@@ -827,6 +3053,182 @@ public final class ServerSSH {
         public void shutdown() {mPool.shutdown();}
         public List<Runnable> shutdownNow() {return mPool.shutdownNow();}
     }
+
+    // exec 的结果，包含退出码，标准输出以及错误输出
+    public static final class ExecResult {
+        private final int mExitStatus;
+        private final byte[] mStdout, mStderr;
+        private final boolean mTruncated;
+        ExecResult(int aExitStatus, byte[] aStdout, byte[] aStderr, boolean aTruncated) {mExitStatus = aExitStatus; mStdout = aStdout; mStderr = aStderr; mTruncated = aTruncated;}
+        
+        public int exitStatus() {return mExitStatus;}
+        public boolean isSuccess() {return mExitStatus == 0;}
+        public boolean isTruncated() {return mTruncated;}
+        public byte[] stdoutBytes() {return mStdout;}
+        public byte[] stderrBytes() {return mStderr;}
+        public String stdout() {return new String(mStdout, StandardCharsets.UTF_8);}
+        public String stderr() {return new String(mStderr, StandardCharsets.UTF_8);}
+        public List<String> stdoutLines() {return lines_(mStdout);}
+        public List<String> stderrLines() {return lines_(mStderr);}
+        @Override public String toString() {return String.format("ExecResult{exit: %d, stdout: %d bytes, stderr: %d bytes%s}", mExitStatus, mStdout.length, mStderr.length, mTruncated?", truncated":"");}
+        
+        static List<String> lines_(byte[] aData) {
+            List<String> rLines = new ArrayList<>();
+            BufferedReader tReader = new BufferedReader(new StringReader(new String(aData, StandardCharsets.UTF_8)));
+            String tLine;
+            try {while ((tLine = tReader.readLine()) != null) rLines.add(tLine);} catch (IOException e) {throw new RuntimeException(e);}
+            return rLines;
+        }
+    }
+    // 流式获取 exec 输出的监听器，aData 只在调用期间有效
+    public interface IStreamListener {void onData(byte[] aData, int aLength) throws IOException;}
+    static final class ListenerStream extends OutputStream {
+        private final IStreamListener mListener;
+        private final byte[] mOne = new byte[1];
+        ListenerStream(IStreamListener aListener) {mListener = aListener;}
+        @Override public void write(int b) throws IOException {if (mListener != null) {mOne[0] = (byte) b; mListener.onData(mOne, 1);}}
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            if (mListener == null || len <= 0) return;
+            if (off == 0) {mListener.onData(b, len); return;}
+            mListener.onData(Arrays.copyOfRange(b, off, off+len), len);
+        }
+    }
+    // 有上限的输出缓存，超过上限的部分直接丢弃
+    static final class BoundedBuffer extends ByteArrayOutputStream {
+        private final int mLimit;
+        private boolean mTruncated = false;
+        BoundedBuffer(int aLimit) {mLimit = aLimit;}
+        @Override public synchronized void write(int b) {if (count < mLimit) super.write(b); else mTruncated = true;}
+        @Override public synchronized void write(byte[] b, int off, int len) {
+            int tLen = Math.min(len, mLimit-count);
+            if (tLen < len) mTruncated = true;
+            if (tLen > 0) super.write(b, off, tLen);
+        }
+        boolean isTruncated() {return mTruncated;}
+    }
+    // 持久的控制 shell，启动时和 systemChannel 一样先 cd 到工作目录再执行一次 mBeforeCommand，之后每个指令的输出和退出码都使用唯一的标记分隔，这样每个小指令只需要一次往返
+    // 一个 shell 同一时刻只执行一个指令；指令在子 shell 中执行并且不读取输入，因此指令中的 cd，exit 等不会影响之后的指令
+    static final class ControlShell {
+        private final ChannelExec mChannel;
+        private final OutputStream mIn;
+        private final InputStream mOut;
+        private final String mMark;
+        long mGeneration = 0;
+        private final String mRemoteWorkingDir;
+        boolean mInWorkingDir = false; // 启动时是否成功 cd 到了工作目录
+        // 错误输出由单独的线程读取，避免错误输出过多时阻塞整个 session
+        private OutputStream mErrSink = null;
+        private long mErrCount = 0;
+        private boolean mErrClosed = false;
+        
+        ControlShell(Session aSession, int aTimeout, String aShell, String aRemoteWorkingDir, String aBeforeCommand) throws JSchException, IOException {
+            mMark = "__SMARTSLURM_"+UUID.randomUUID().toString().replace("-", "")+"__";
+            mRemoteWorkingDir = aRemoteWorkingDir;
+            mChannel = (ChannelExec) aSession.openChannel("exec");
+            mChannel.setCommand(String.format("exec %s -s", quote_(aShell)));
+            mIn = mChannel.getOutputStream();
+            mOut = new BufferedInputStream(mChannel.getInputStream());
+            final InputStream tErr = new BufferedInputStream(mChannel.getExtInputStream());
+            mChannel.connect(aTimeout);
+            UT.threadFactory("ControlShell-stderr", UT.Worker.IO, true).newThread(() -> pumpErr_(tErr)).start();
+            // 在主 shell 中先 cd 到工作目录再执行 mBeforeCommand，这样设置的环境以及目录会保留给之后的指令，输出直接忽略
+            try {
+                mInWorkingDir = exec_(String.format("cd; cd %s", aRemoteWorkingDir), new ByteArrayOutputStream(), new ByteArrayOutputStream()) == 0;
+                if (aBeforeCommand != null && !aBeforeCommand.isEmpty()) exec_(String.format("{ %s\n}", aBeforeCommand), new ByteArrayOutputStream(), System.err);
+            } catch (IOException e) {close(); throw e;}
+        }
+        boolean isAlive() {return mChannel.isConnected() && !mChannel.isClosed();}
+        void close() {mChannel.disconnect();}
+        
+        // 执行指令，输出写入 aOut 和 aErr，返回退出码；失败时 shell 的状态不再确定，需要调用者关闭这个 shell
+        // 子 shell 会继承主 shell 的目录（即 mBeforeCommand 执行后的目录），重新 cd "$PWD" 来应对目录被删除后重建的情况；启动时工作目录还不存在则和 systemChannel 一样每次重新 cd
+        int exec(String aCommand, OutputStream aOut, OutputStream aErr) throws IOException {
+            if (mInWorkingDir) return exec_(String.format("(cd \"$PWD\" 2>/dev/null;%s\n)", aCommand), aOut, aErr);
+            return exec_(String.format("(cd; cd %s;%s\n)", mRemoteWorkingDir, aCommand), aOut, aErr);
+        }
+        private int exec_(String aBody, OutputStream aOut, OutputStream aErr) throws IOException {
+            long tErrCount;
+            synchronized (this) {mErrSink = aErr; tErrCount = mErrCount;}
+            mIn.write(String.format("%s </dev/null; printf '\\n%s %%d\\n' $?; printf '\\n%s\\n' >&2\n", aBody, mMark, mMark).getBytes(StandardCharsets.UTF_8));
+            mIn.flush();
+            // 读取输出直到标记，标记之后为退出码
+            SentinelScanner tScanner = new SentinelScanner(("\n"+mMark+" ").getBytes(StandardCharsets.UTF_8));
+            OutputStream tOut = new BufferedOutputStream(aOut);
+            int tByte;
+            while ((tByte = mOut.read()) >= 0) {if (tScanner.feed(tByte, tOut)) break;}
+            tOut.flush();
+            if (tByte < 0) throw new EOFException("Control shell closed");
+            StringBuilder rStatus = new StringBuilder();
+            while ((tByte = mOut.read()) >= 0 && tByte != '\n') rStatus.append((char) tByte);
+            if (tByte < 0) throw new EOFException("Control shell closed");
+            // 等待错误输出也读取到标记
+            synchronized (this) {
+                while (mErrCount == tErrCount && !mErrClosed) {
+                    try {wait();} catch (InterruptedException e) {Thread.currentThread().interrupt(); throw new InterruptedIOException();}
+                }
+                mErrSink = null;
+                if (mErrCount == tErrCount) throw new EOFException("Control shell closed");
+            }
+            try {return Integer.parseInt(rStatus.toString().trim());} catch (NumberFormatException e) {throw new IOException("Invalid exit status: "+rStatus);}
+        }
+        private void pumpErr_(InputStream aErr) {
+            SentinelScanner tScanner = new SentinelScanner(("\n"+mMark+"\n").getBytes(StandardCharsets.UTF_8));
+            // 暂存输出，没有更多数据或者读取到标记时才写入当前指令的错误输出
+            OutputStream tSink = new BufferedOutputStream(new OutputStream() {
+                @Override public void write(int b) throws IOException {write(new byte[]{(byte) b}, 0, 1);}
+                @Override public void write(byte[] b, int off, int len) throws IOException {
+                    OutputStream tErrSink;
+                    synchronized (ControlShell.this) {tErrSink = mErrSink;}
+                    if (tErrSink != null) tErrSink.write(b, off, len);
+                }
+            });
+            try {
+                int tByte;
+                while ((tByte = aErr.read()) >= 0) {
+                    if (tScanner.feed(tByte, tSink)) {
+                        tSink.flush();
+                        synchronized (this) {++mErrCount; notifyAll();}
+                    } else if (aErr.available() == 0) {
+                        tSink.flush();
+                    }
+                }
+            } catch (IOException ignored) {
+            } finally {
+                synchronized (this) {mErrClosed = true; notifyAll();}
+            }
+        }
+    }
+    // 在字节流中查找标记，标记之前的数据会原样写入输出（可能匹配标记的部分会暂存，确认不匹配后再写入），使用 KMP 保证线性时间
+    static final class SentinelScanner {
+        private final byte[] mPattern;
+        private final int[] mFail;
+        private int mMatched = 0;
+        SentinelScanner(byte[] aPattern) {
+            mPattern = aPattern;
+            mFail = new int[aPattern.length];
+            for (int i = 1, j = 0; i < aPattern.length; ++i) {
+                while (j > 0 && aPattern[i] != aPattern[j]) j = mFail[j-1];
+                if (aPattern[i] == aPattern[j]) ++j;
+                mFail[i] = j;
+            }
+        }
+        // 输入一个字节，找到完整的标记时返回 true 并重置状态
+        boolean feed(int aByte, OutputStream aOut) throws IOException {
+            byte tByte = (byte) aByte;
+            while (mMatched > 0 && mPattern[mMatched] != tByte) {
+                int tFallback = mFail[mMatched-1];
+                aOut.write(mPattern, 0, mMatched-tFallback); // 暂存的前缀中不再可能匹配的部分
+                mMatched = tFallback;
+            }
+            if (mPattern[mMatched] == tByte) {
+                ++mMatched;
+                if (mMatched == mPattern.length) {mMatched = 0; return true;}
+            } else {
+                aOut.write(aByte);
+            }
+            return false;
+        }
+    }
     
     // 手动加载 UT，会自动重新设置工作目录，会在调用静态函数 get 或者 load 时自动加载保证路径的正确性
     static {UT.init();}
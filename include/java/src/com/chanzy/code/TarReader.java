@@ -0,0 +1,148 @@
+package com.chanzy.code;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author CHanzy
+ * 流式读取 tar 格式的类，支持 ustar，GNU 的 LongLink 扩展以及 pax 扩展头中的 path 和 linkpath
+ * 不会产生临时文件，直接从输入流中读取
+ */
+public class TarReader implements Closeable {
+    private final static int BLOCK_SIZE = 512;
+    
+    /** tar 中的一项，只保留需要使用的信息 */
+    public static class Entry {
+        public final String name;
+        public final long size;
+        public final long mtime; // 单位为秒
+        public final boolean isDir;
+        public final boolean isFile;
+        public final boolean isHardLink; // 硬链接不包含数据，指向 tar 中之前的 linkName 项
+        public final boolean isSymLink;
+        public final String linkName;
+        Entry(String aName, long aSize, long aMTime, char aType, String aLinkName) {
+            name = aName; size = aSize; mtime = aMTime; linkName = aLinkName;
+            isDir = aType == '5';
+            isFile = aType == '0' || aType == 0 || aType == '7';
+            isHardLink = aType == '1';
+            isSymLink = aType == '2';
+        }
+    }
+    
+    private final InputStream mIn;
+    private final byte[] mHeader = new byte[BLOCK_SIZE];
+    private final byte[] mBuffer = new byte[65536];
+    private long mRest = 0; // 当前项剩余没有读取的数据（包括补齐的部分）
+    private long mRestData = 0; // 当前项剩余没有读取的有效数据
+    
+    public TarReader(InputStream aIn) {mIn = aIn;}
+    
+    // 获取下一项，会跳过当前项没有读取的数据，到达结尾返回 null
+    public Entry next() throws IOException {
+        String tLongName = null, tLongLinkName = null;
+        while (true) {
+            skip_(mRest);
+            mRest = 0; mRestData = 0;
+            if (!readFully_(mHeader)) return null;
+            if (isZero_(mHeader)) return null;
+            char tType = (char)mHeader[156];
+            long tSize = parseOctal_(mHeader, 124, 12);
+            long tMTime = parseOctal_(mHeader, 136, 12);
+            mRestData = tSize;
+            mRest = (tSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            if (tType == 'L') {tLongName = cString_(readData_()); continue;}
+            if (tType == 'K') {tLongLinkName = cString_(readData_()); continue;}
+            if (tType == 'x') {
+                byte[] tData = readData_();
+                String tPath = paxValue_(tData, "path"); if (tPath != null) tLongName = tPath;
+                String tLinkPath = paxValue_(tData, "linkpath"); if (tLinkPath != null) tLongLinkName = tLinkPath;
+                continue;
+            }
+            if (tType == 'g') continue;
+            String tName = tLongName;
+            if (tName == null) {
+                tName = cString_(mHeader, 0, 100);
+                String tPrefix = cString_(mHeader, 345, 155);
+                if (!tPrefix.isEmpty()) tName = tPrefix + "/" + tName;
+            }
+            String tLinkName = tLongLinkName==null ? cString_(mHeader, 157, 100) : tLongLinkName;
+            return new Entry(tName, tSize, tMTime, tType, tLinkName);
+        }
+    }
+    // 将当前项的数据写入输出流
+    public void copyTo(OutputStream aOut) throws IOException {
+        while (mRestData > 0) {
+            int tRead = mIn.read(mBuffer, 0, (int)Math.min(mBuffer.length, mRestData));
+            if (tRead < 0) throw new EOFException("Unexpected end of tar stream");
+            aOut.write(mBuffer, 0, tRead);
+            mRestData -= tRead; mRest -= tRead;
+        }
+    }
+    @Override public void close() throws IOException {mIn.close();}
+    
+    private byte[] readData_() throws IOException {
+        ByteArrayOutputStream rOut = new ByteArrayOutputStream();
+        copyTo(rOut);
+        return rOut.toByteArray();
+    }
+    private boolean readFully_(byte[] rData) throws IOException {
+        int tPos = 0;
+        while (tPos < rData.length) {
+            int tRead = mIn.read(rData, tPos, rData.length-tPos);
+            if (tRead < 0) {if (tPos == 0) return false; throw new EOFException("Unexpected end of tar stream");}
+            tPos += tRead;
+        }
+        return true;
+    }
+    private void skip_(long aSize) throws IOException {
+        while (aSize > 0) {
+            int tRead = mIn.read(mBuffer, 0, (int)Math.min(mBuffer.length, aSize));
+            if (tRead < 0) throw new EOFException("Unexpected end of tar stream");
+            aSize -= tRead;
+        }
+    }
+    private static boolean isZero_(byte[] aData) {
+        for (byte tByte : aData) if (tByte != 0) return false;
+        return true;
+    }
+    private static long parseOctal_(byte[] aData, int aOffset, int aLength) {
+        // 最高位为 1 时是 GNU 的二进制格式，用于超大文件
+        if ((aData[aOffset] & 0x80) != 0) {
+            long rValue = 0;
+            for (int i = aOffset+1; i < aOffset+aLength; ++i) rValue = (rValue << 8) | (aData[i] & 0xFF);
+            return rValue;
+        }
+        long rValue = 0;
+        for (int i = aOffset; i < aOffset+aLength; ++i) {
+            byte tByte = aData[i];
+            if (tByte == 0 || tByte == ' ') {if (rValue != 0) break; else continue;}
+            rValue = (rValue << 3) + (tByte - '0');
+        }
+        return rValue;
+    }
+    private static String cString_(byte[] aData) {return cString_(aData, 0, aData.length);}
+    private static String cString_(byte[] aData, int aOffset, int aLength) {
+        int tEnd = aOffset;
+        while (tEnd < aOffset+aLength && aData[tEnd] != 0) ++tEnd;
+        return new String(aData, aOffset, tEnd-aOffset, StandardCharsets.UTF_8);
+    }
+    // pax 扩展头的格式为 "%d %s=%s\n"，这里只需要 path 和 linkpath
+    private static String paxValue_(byte[] aData, String aKey) {
+        String tPrefix = aKey+"=";
+        String rPath = null;
+        int tIdx = 0;
+        while (tIdx < aData.length) {
+            int tSpace = tIdx;
+            while (tSpace < aData.length && aData[tSpace] != ' ') ++tSpace;
+            if (tSpace >= aData.length) break;
+            int tLength;
+            try {tLength = Integer.parseInt(new String(aData, tIdx, tSpace-tIdx, StandardCharsets.US_ASCII));} catch (NumberFormatException e) {break;}
+            if (tLength <= 0 || tIdx+tLength > aData.length) break;
+            String tRecord = new String(aData, tSpace+1, tIdx+tLength-tSpace-2, StandardCharsets.UTF_8);
+            if (tRecord.startsWith(tPrefix)) rPath = tRecord.substring(tPrefix.length());
+            tIdx += tLength;
+        }
+        return rPath;
+    }
+}
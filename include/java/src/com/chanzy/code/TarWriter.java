@@ -0,0 +1,99 @@
+package com.chanzy.code;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * @author CHanzy
+ * 流式写入 tar 格式（ustar，超长文件名使用 GNU 的 LongLink 扩展，超大文件使用 GNU 的二进制大小）的类
+ * 不会产生临时文件，直接写入到输入的输出流中
+ */
+public class TarWriter implements Closeable {
+    private final static int BLOCK_SIZE = 512;
+    
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[65536];
+    
+    public TarWriter(OutputStream aOut) {mOut = aOut;}
+    
+    // 写入文件夹，aName 为在 tar 中的相对路径，aMTime 单位为秒
+    public void putDir(String aName, long aMTime) throws IOException {
+        if (!aName.endsWith("/")) aName += "/";
+        putHeader_(aName, 0, aMTime, '5', 0755);
+    }
+    // 写入文件，aName 为在 tar 中的相对路径
+    public void putFile(String aName, File aFile) throws IOException {
+        long tSize = aFile.length();
+        putHeader_(aName, tSize, aFile.lastModified()/1000, '0', aFile.canExecute() ? 0755 : 0644);
+        long tWritten = 0;
+        try (InputStream tIn = new FileInputStream(aFile)) {
+            int tRead;
+            while (tWritten < tSize && (tRead = tIn.read(mBuffer, 0, (int)Math.min(mBuffer.length, tSize-tWritten))) > 0) {
+                mOut.write(mBuffer, 0, tRead);
+                tWritten += tRead;
+            }
+        }
+        // 文件在写入过程中变小时需要补零，保证和头部记录的大小一致
+        while (tWritten < tSize) {
+            int tLen = (int)Math.min(mBuffer.length, tSize-tWritten);
+            Arrays.fill(mBuffer, 0, tLen, (byte)0);
+            mOut.write(mBuffer, 0, tLen);
+            tWritten += tLen;
+        }
+        pad_(tSize);
+    }
+    // 结束时需要写入两个全零的块
+    @Override public void close() throws IOException {
+        mOut.write(new byte[BLOCK_SIZE*2]);
+        mOut.close();
+    }
+    
+    private void putHeader_(String aName, long aSize, long aMTime, char aType, int aMode) throws IOException {
+        byte[] tName = aName.getBytes(StandardCharsets.UTF_8);
+        // 超过 100 字节的文件名先写入一个 LongLink 项
+        if (tName.length > 100) {
+            byte[] tLongName = new byte[tName.length+1];
+            System.arraycopy(tName, 0, tLongName, 0, tName.length);
+            mOut.write(header_("././@LongLink".getBytes(StandardCharsets.UTF_8), tLongName.length, 0, 'L', 0644));
+            mOut.write(tLongName);
+            pad_(tLongName.length);
+        }
+        mOut.write(header_(tName, aSize, aMTime, aType, aMode));
+    }
+    private static byte[] header_(byte[] aName, long aSize, long aMTime, char aType, int aMode) {
+        byte[] rHeader = new byte[BLOCK_SIZE];
+        System.arraycopy(aName, 0, rHeader, 0, Math.min(aName.length, 100));
+        octal_(rHeader, 100, 8, aMode);
+        octal_(rHeader, 108, 8, 0); // uid
+        octal_(rHeader, 116, 8, 0); // gid
+        octal_(rHeader, 124, 12, aSize);
+        octal_(rHeader, 136, 12, aMTime);
+        rHeader[156] = (byte)aType;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, rHeader, 257, 8);
+        // 计算校验和时校验和字段视为空格
+        for (int i = 148; i < 156; ++i) rHeader[i] = ' ';
+        long tSum = 0;
+        for (byte tByte : rHeader) tSum += tByte & 0xFF;
+        octal_(rHeader, 148, 7, tSum);
+        return rHeader;
+    }
+    private static void octal_(byte[] rHeader, int aOffset, int aLength, long aValue) {
+        String tStr = Long.toOctalString(aValue);
+        int tPad = aLength-1-tStr.length();
+        // 八进制放不下时（例如 8 GiB 以上的文件）使用 GNU 的二进制格式：首字节最高位为 1，之后为大端序的数值
+        if (tPad < 0) {
+            if (aValue < 0) throw new IllegalArgumentException("Negative value for tar header: "+aValue);
+            rHeader[aOffset] = (byte)0x80;
+            for (int i = aOffset+aLength-1; i > aOffset; --i) {rHeader[i] = (byte)aValue; aValue >>>= 8;}
+            return;
+        }
+        for (int i = 0; i < tPad; ++i) rHeader[aOffset+i] = '0';
+        for (int i = 0; i < tStr.length(); ++i) rHeader[aOffset+tPad+i] = (byte)tStr.charAt(i);
+        rHeader[aOffset+aLength-1] = 0;
+    }
+    private void pad_(long aSize) throws IOException {
+        int tRest = (int)(aSize % BLOCK_SIZE);
+        if (tRest > 0) mOut.write(new byte[BLOCK_SIZE-tRest]);
+    }
+}
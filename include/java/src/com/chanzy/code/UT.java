@@ -1,15 +1,23 @@
 package com.chanzy.code;
 
+import com.chanzy.ServerLocal;
 import com.chanzy.ServerSLURM;
 import com.chanzy.ServerSSH;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author CHanzy
@@ -65,6 +73,19 @@ public class UT {
             , GET_WORKING_DIR_PAR
             , CLEAR_WORKING_DIR
             , CLEAR_WORKING_DIR_PAR
+            , SYNC_PUT_DIR
+            , SYNC_GET_DIR
+            , SYNC_PUT_WORKING_DIR
+            , SYNC_GET_WORKING_DIR
+            , PUT_DIR_TAR
+            , GET_DIR_TAR
+            , PUT_WORKING_DIR_TAR
+            , GET_WORKING_DIR_TAR
+            , PUT_BYTES
+            , COPY
+            , MOVE
+            , SYMLINK
+            , HARDLINK
             // SLURM stuff
             , SLURM_CANCEL_ALL
             , CANCEL_ALL // 兼容旧版
@@ -74,6 +95,11 @@ public class UT {
             , SLURM_SUBMIT_BASH
             , SLURM_SUBMIT_SRUN
             , SLURM_SUBMIT_SRUN_BASH
+            , SLURM_REDUCE
+            // Local stuff
+            , LOCAL_SYSTEM
+            , LOCAL_SUBMIT_SYSTEM
+            , LOCAL_CANCEL_THIS
         }
         public static Task fromString(final Object aTaskCreator, String aStr) {
             Pair<String, List<String>> tPair = getKeyValue_(aStr);
@@ -85,6 +111,7 @@ public class UT {
             case SLURM_CANCEL_ALL: case CANCEL_ALL:
             case SLURM_CANCEL_THIS: case CANCEL_THIS:
             case SLURM_SUBMIT_SYSTEM: case SLURM_SUBMIT_BASH: case SLURM_SUBMIT_SRUN: case SLURM_SUBMIT_SRUN_BASH:
+            case SLURM_REDUCE:
                 return fromString_(aTaskCreator, (aTaskCreator instanceof ServerSLURM) ? (ServerSLURM)aTaskCreator : null, tKey, tValue);
             case SYSTEM:
             case PUT_DIR:     case GET_DIR:     case CLEAR_DIR:
@@ -95,12 +122,34 @@ public class UT {
             case PUT_WORKING_DIR:   case PUT_WORKING_DIR_PAR:
             case GET_WORKING_DIR:   case GET_WORKING_DIR_PAR:
             case CLEAR_WORKING_DIR: case CLEAR_WORKING_DIR_PAR:
+            case SYNC_PUT_DIR:         case SYNC_GET_DIR:
+            case SYNC_PUT_WORKING_DIR: case SYNC_GET_WORKING_DIR:
+            case PUT_DIR_TAR:          case GET_DIR_TAR:
+            case PUT_WORKING_DIR_TAR:  case GET_WORKING_DIR_TAR:
+            case PUT_BYTES:
+            case COPY: case MOVE: case SYMLINK: case HARDLINK:
                 return fromString_(aTaskCreator, (aTaskCreator instanceof ServerSLURM) ? ((ServerSLURM)aTaskCreator).ssh() : (aTaskCreator instanceof ServerSSH) ? (ServerSSH)aTaskCreator : null, tKey, tValue);
+            case LOCAL_SYSTEM: case LOCAL_SUBMIT_SYSTEM: case LOCAL_CANCEL_THIS:
+                return fromString_(aTaskCreator, (aTaskCreator instanceof ServerLocal) ? (ServerLocal)aTaskCreator : null, tKey, tValue);
             case NULL: default:
                 return null;
             }
         }
         
+        static Task fromString_(final Object aTaskCreator, ServerLocal aLocal, Type aKey, String... aValues) {
+            if (aLocal == null) return null;
+            switch (aKey) {
+            case LOCAL_SYSTEM:
+                return aLocal.task_system           (aValues[0]);
+            case LOCAL_SUBMIT_SYSTEM:
+                return aLocal.task_submitSystem     (fromString(aTaskCreator, aValues[0]), fromString(aTaskCreator, aValues[1]), aValues[2], Integer.parseInt(aValues[3]), aValues[4]);
+            case LOCAL_CANCEL_THIS:
+                return aLocal.task_cancelThis();
+            default:
+                return null;
+            }
+        }
+        
         static Task fromString_(final Object aTaskCreator, ServerSLURM aSLURM, Type aKey, String... aValues) {
             if (aSLURM == null) return null;
             switch (aKey) {
@@ -116,6 +165,9 @@ public class UT {
                 return aSLURM.task_submitSrun       (fromString(aTaskCreator, aValues[0]), fromString(aTaskCreator, aValues[1]), aValues[2], aValues[3], Integer.parseInt(aValues[4]), Integer.parseInt(aValues[5]), aValues[6]);
             case SLURM_SUBMIT_SRUN_BASH:
                 return aSLURM.task_submitSrunBash   (fromString(aTaskCreator, aValues[0]), fromString(aTaskCreator, aValues[1]), aValues[2], aValues[3], Integer.parseInt(aValues[4]), Integer.parseInt(aValues[5]), aValues[6]);
+            case SLURM_REDUCE:
+                // 旧版的镜像中登录节点会存为最后一项的 "null"，同样转为 null
+                return aSLURM.task_reduce           (new String(DatatypeConverter.parseBase64Binary(aValues[0]), StandardCharsets.UTF_8), aValues[1], (aValues[2].equals(ServerSLURM.REDUCE_LOGIN_NODE) || aValues[2].equals("null")) ? null : aValues[2]);
             default:
                 return null;
             }
@@ -158,6 +210,32 @@ public class UT {
                 return aSSH.task_clearWorkingDir();
             case CLEAR_WORKING_DIR_PAR:
                 return aSSH.task_clearWorkingDir(Integer.parseInt(aValues[0]));
+            case SYNC_PUT_DIR:
+                return aSSH.task_syncPutDir         (aValues[0], Integer.parseInt(aValues[1]), Boolean.parseBoolean(aValues[2]));
+            case SYNC_GET_DIR:
+                return aSSH.task_syncGetDir         (aValues[0], Integer.parseInt(aValues[1]), Boolean.parseBoolean(aValues[2]));
+            case SYNC_PUT_WORKING_DIR:
+                return aSSH.task_syncPutWorkingDir  (Integer.parseInt(aValues[0]), Boolean.parseBoolean(aValues[1]));
+            case SYNC_GET_WORKING_DIR:
+                return aSSH.task_syncGetWorkingDir  (Integer.parseInt(aValues[0]), Boolean.parseBoolean(aValues[1]));
+            case PUT_DIR_TAR:
+                return aSSH.task_putDirTar          (aValues[0]);
+            case GET_DIR_TAR:
+                return aSSH.task_getDirTar          (aValues[0]);
+            case PUT_WORKING_DIR_TAR:
+                return aSSH.task_putWorkingDirTar   ();
+            case GET_WORKING_DIR_TAR:
+                return aSSH.task_getWorkingDirTar   ();
+            case PUT_BYTES:
+                return aSSH.task_putBytes           (aValues[0], DatatypeConverter.parseBase64Binary(aValues[1]));
+            case COPY:
+                return aSSH.task_copy               (aValues[0], aValues[1]);
+            case MOVE:
+                return aSSH.task_move               (aValues[0], aValues[1]);
+            case SYMLINK:
+                return aSSH.task_symlink            (aValues[0], aValues[1]);
+            case HARDLINK:
+                return aSSH.task_hardlink           (aValues[0], aValues[1]);
             default:
                 return null;
             }
@@ -273,6 +351,59 @@ public class UT {
         return WORKING_PATH.resolve(aPath).toString();
     }
     
+    /**
+     * @author CHanzy
+     * optional virtual threads for the background workers, looked up by reflection so this still runs on java 8
+     * IDLE workers mostly sleep (e.g. the submit loop of ServerSLURM), they use virtual threads on java 21+;
+     * IO workers mostly block on jsch channel streams, which wait inside synchronized blocks and pin the carrier thread before java 24,
+     * so they only use virtual threads on java 24+ and fall back to platform threads otherwise
+     */
+    public enum Worker {IDLE, IO}
+    public static boolean setVirtualThreads(boolean aVirtualThreads) {
+        USE_VIRTUAL_THREADS = aVirtualThreads && VIRTUAL_BUILDER != null;
+        return USE_VIRTUAL_THREADS;
+    }
+    public static boolean isVirtualThreads() {return USE_VIRTUAL_THREADS;}
+    public static boolean isVirtualThreads(Worker aWorker) {return USE_VIRTUAL_THREADS && (aWorker == Worker.IDLE || JAVA_VERSION >= 24);}
+    // platform threads are daemon only if aDaemon, virtual threads are always daemon
+    public static ThreadFactory threadFactory(String aName, Worker aWorker, boolean aDaemon) {
+        if (isVirtualThreads(aWorker)) {
+            try {
+                Object tBuilder = VIRTUAL_BUILDER.invoke(null);
+                tBuilder = BUILDER_NAME.invoke(tBuilder, aName+"-", 0L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(tBuilder);
+            } catch (ReflectiveOperationException ignored) {}
+        }
+        final AtomicInteger tCount = new AtomicInteger(0);
+        return r -> {Thread t = new Thread(r, aName+"-"+tCount.getAndIncrement()); t.setDaemon(aDaemon); return t;};
+    }
+    public static ExecutorService newFixedThreadPool(int aThreadNumber, String aName, Worker aWorker) {return Executors.newFixedThreadPool(aThreadNumber, threadFactory(aName, aWorker, false));}
+    public static ExecutorService newSingleThreadExecutor(String aName, Worker aWorker) {return Executors.newSingleThreadExecutor(threadFactory(aName, aWorker, false));}
+    public static ExecutorService newCachedThreadPool(String aName, Worker aWorker) {return Executors.newCachedThreadPool(threadFactory(aName, aWorker, true));}
+    
+    private static volatile boolean USE_VIRTUAL_THREADS = false;
+    private static final int JAVA_VERSION;
+    private static final Method VIRTUAL_BUILDER, BUILDER_NAME, BUILDER_FACTORY;
+    static {
+        String tVersion = System.getProperty("java.specification.version", "1.8");
+        if (tVersion.startsWith("1.")) tVersion = tVersion.substring(2);
+        int tJavaVersion;
+        try {tJavaVersion = Integer.parseInt(tVersion);} catch (NumberFormatException e) {tJavaVersion = 8;}
+        JAVA_VERSION = tJavaVersion;
+        Method tOfVirtual = null, tName = null, tFactory = null;
+        if (JAVA_VERSION >= 21) {
+            try {
+                tOfVirtual = Thread.class.getMethod("ofVirtual");
+                Class<?> tBuilderClass = Class.forName("java.lang.Thread$Builder");
+                tName = tBuilderClass.getMethod("name", String.class, long.class);
+                tFactory = tBuilderClass.getMethod("factory");
+            } catch (ReflectiveOperationException e) {
+                tOfVirtual = null;
+            }
+        }
+        VIRTUAL_BUILDER = tOfVirtual; BUILDER_NAME = tName; BUILDER_FACTORY = tFactory;
+    }
+    
     // reset the working dir to correct value
     private static Path WORKING_PATH;
     private static boolean INITIALIZED = false;